@@ -0,0 +1,114 @@
+package simpleserver.benchmark;
+
+import simpleserver.repository.MessageLog;
+import simpleserver.repository.MessageRepository;
+import simpleserver.repository.PersistenceSettings;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.stream.Stream;
+
+/**
+ * Shared setup for the benchmarks: quiet logging, loopback connections and a message repository backed by
+ * a temporary log directory.
+ */
+public final class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * The server logs every request at INFO, which would turn most benchmarks into console benchmarks.
+     */
+    public static void quietLogging() {
+        LogManager.getLogManager().reset();
+        java.util.logging.Logger.getLogger("").setLevel(Level.SEVERE);
+    }
+
+    /**
+     * Opens a loopback TCP connection and returns the server side of it. Everything written to the returned
+     * channel is read and discarded by a daemon thread, so responses never fill the socket buffers.
+     */
+    public static SocketChannel loopbackChannel() throws IOException {
+        try (var listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            var peer = SocketChannel.open(listener.getLocalAddress());
+            var channel = listener.accept();
+
+            var drain = new Thread(() -> discard(peer), "benchmark-drain");
+            drain.setDaemon(true);
+            drain.start();
+            return channel;
+        }
+    }
+
+    private static void discard(SocketChannel peer) {
+        var buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try (peer) {
+            while (peer.read(buffer) >= 0)
+                buffer.clear();
+        } catch (IOException e) {
+            // connection closed by the benchmark teardown
+        }
+    }
+
+    /**
+     * Creates a PKCS12 key store with a self-signed certificate for {@code localhost}, using the JDK's keytool.
+     */
+    public static Path selfSignedKeyStore(Path directory, String password) throws IOException {
+        Path keyStore = directory.resolve("localhost.p12");
+        var keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "localhost", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "2",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-keystore", keyStore.toString(), "-storetype", "PKCS12", "-storepass", password)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectErrorStream(true)
+                .start();
+        try {
+            if (!keytool.waitFor(1, TimeUnit.MINUTES) || keytool.exitValue() != 0)
+                throw new IOException("keytool failed to create " + keyStore);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating " + keyStore, e);
+        }
+        return keyStore;
+    }
+
+    public static RunningRepository startRepository(PersistenceSettings settings) throws IOException {
+        Path directory = Files.createTempDirectory("simpleserver-jmh");
+        var repository = new MessageRepository(MessageLog.open(directory, 64L * 1024 * 1024), settings);
+        var writer = new Thread(repository, "message-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return new RunningRepository(repository, writer, directory);
+    }
+
+    public record RunningRepository(MessageRepository repository, Thread writer, Path directory) {
+
+        public void stop() throws InterruptedException {
+            writer.interrupt();
+            writer.join();
+            deleteRecursively(directory);
+        }
+    }
+
+    public static void deleteRecursively(Path path) {
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package simpleserver.repository;
+
+import org.openjdk.jmh.annotations.*;
+import simpleserver.benchmark.BenchmarkFixtures;
+import simpleserver.dto.Message;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sustained write throughput of {@link MessageRepository}. With {@link DurabilityPolicy#NONE} senders only
+ * wait when the queue is full; with {@link DurabilityPolicy#BEFORE_ACK} every sender waits for the batch
+ * containing its message to be synced, so this also shows how well group commit shares fsyncs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class MessageRepositoryBenchmark {
+    @Param({"NONE", "BEFORE_ACK"})
+    private DurabilityPolicy durabilityPolicy;
+
+    private BenchmarkFixtures.RunningRepository running;
+    private final Message message = new Message("alice", "bob", "benchmark message payload");
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkFixtures.quietLogging();
+        running = BenchmarkFixtures.startRepository(PersistenceSettings.builder()
+                .queueCapacity(1024)
+                .blockMillis(TimeUnit.SECONDS.toMillis(10))
+                .durabilityPolicy(durabilityPolicy)
+                .build());
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        running.stop();
+    }
+
+    @Benchmark
+    public Long saveMessage() throws Exception {
+        var persisted = running.repository().saveMessage(message).persisted();
+        return durabilityPolicy == DurabilityPolicy.BEFORE_ACK ? persisted.get() : null;
+    }
+}
@@ -0,0 +1,65 @@
+package simpleserver.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import simpleserver.benchmark.BenchmarkFixtures;
+import simpleserver.client.SimpleClient;
+import simpleserver.dto.Message;
+import simpleserver.util.JsonResponse;
+import simpleserver.util.StatusEnum;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization and write of responses by {@link ClientResponder}, for a plain status response, a response
+ * carrying a message and a canned server request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientResponderBenchmark {
+    private ClientResponder responder;
+    private SimpleClient client;
+    private JsonObject statusResponse;
+    private JsonObject messageResponse;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkFixtures.quietLogging();
+        responder = new ClientResponder(new ServerRequests(LocalDateTime.now(), new ServerMetrics()));
+        client = SimpleClient.builder()
+                .username("alice")
+                .socketChannel(BenchmarkFixtures.loopbackChannel())
+                .build();
+
+        statusResponse = JsonResponse.serverResponse(StatusEnum.SUCCESS, "Message sent successfully");
+        messageResponse = JsonResponse.serverResponse(StatusEnum.SUCCESS, "New message");
+        messageResponse.addProperty("messageObject", new Gson().toJson(new Message("alice", "bob", "benchmark message payload")));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.getSocketChannel().close();
+    }
+
+    @Benchmark
+    public void status() {
+        responder.respond(client, statusResponse);
+    }
+
+    @Benchmark
+    public void message() {
+        responder.respond(client, messageResponse);
+    }
+
+    @Benchmark
+    public void serverRequest() {
+        responder.respond(client, "ping");
+    }
+}
@@ -0,0 +1,100 @@
+package simpleserver.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import simpleserver.benchmark.BenchmarkFixtures;
+import simpleserver.client.UserAuthority;
+import simpleserver.dto.Message;
+import simpleserver.repository.PersistenceSettings;
+import simpleserver.repository.UserRepository;
+import simpleserver.service.MessageService;
+import simpleserver.service.UserService;
+import simpleserver.util.JsonResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one request line in {@link ClientRequestHandler}: JSON parsing, dispatch and the response write,
+ * for a logged in client on a loopback connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestHandlingBenchmark {
+    private final Gson gson = new Gson();
+    private BenchmarkFixtures.RunningRepository running;
+    private SocketChannel channel;
+    private ClientRequestHandler handler;
+    private String pingRequest;
+    private String messageRequest;
+    private String openRequest;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkFixtures.quietLogging();
+        running = BenchmarkFixtures.startRepository(PersistenceSettings.builder().build());
+
+        File users = File.createTempFile("simpleserver-jmh-users", ".json");
+        users.deleteOnExit();
+        var userRepository = new UserRepository(users.getPath());
+        var messageService = new MessageService(running.repository());
+        var userService = new UserService(messageService, userRepository);
+        var responder = new ClientResponder(new ServerRequests(LocalDateTime.now(), new ServerMetrics()));
+
+        channel = BenchmarkFixtures.loopbackChannel();
+        userService.registerNewUser("alice", "secret");
+        userService.loginUser(channel, "alice", "secret");
+        handler = new ClientRequestHandler(responder, channel, userService, messageService, new ServerMetrics());
+
+        var message = request("message");
+        message.addProperty("messageObject", gson.toJson(new Message("alice", "alice", "benchmark message payload")));
+        messageRequest = message.toString();
+        pingRequest = request("ping").toString();
+        openRequest = request("open").toString();
+        handler.handleRequest(pingRequest);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        channel.close();
+        running.stop();
+    }
+
+    @Benchmark
+    public JsonObject parse() {
+        return gson.fromJson(messageRequest, JsonObject.class);
+    }
+
+    @Benchmark
+    public void ping() {
+        handler.handleRequest(pingRequest);
+    }
+
+    @Benchmark
+    public void sendAndOpen() {
+        handler.handleRequest(messageRequest);
+        handler.handleRequest(openRequest);
+    }
+
+    @Benchmark
+    public void parseMessageObject(Blackhole blackhole) {
+        var json = gson.fromJson(messageRequest, JsonObject.class);
+        blackhole.consume(gson.fromJson(json.get("messageObject").getAsString(), Message.class));
+    }
+
+    private static JsonObject request(String type) {
+        var request = new JsonObject();
+        request.addProperty("user", JsonResponse.userResponse("alice", "secret", UserAuthority.USER, true).toString());
+        request.addProperty("request", type);
+        return request;
+    }
+}
@@ -0,0 +1,96 @@
+package simpleserver.service;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import simpleserver.benchmark.BenchmarkFixtures;
+import simpleserver.client.SimpleClient;
+import simpleserver.dto.Message;
+import simpleserver.repository.PersistenceSettings;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link MessageService#sendMessage} followed by {@link MessageService#openMessage} from several threads.
+ * The mailbox map itself is not thread safe, so every thread works on its own recipient and the threads
+ * only contend on the message repository's queue and writer. With {@code shards} above 0 the mailboxes are
+ * owned by that many shard threads instead, so compare the thread counts against the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageServiceBenchmark {
+    private static final int MAX_THREADS = 64;
+
+    @Param({"0", "4"})
+    public int shards;
+
+    private BenchmarkFixtures.RunningRepository running;
+    private MailboxShards mailboxShards;
+    private MessageService messageService;
+    private final AtomicInteger nextRecipient = new AtomicInteger();
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkFixtures.quietLogging();
+        running = BenchmarkFixtures.startRepository(PersistenceSettings.builder().queueCapacity(1024).build());
+        messageService = new MessageService(running.repository());
+        if (shards > 0) {
+            mailboxShards = new MailboxShards(shards);
+            messageService.setShards(mailboxShards);
+        }
+        for (int i = 0; i < MAX_THREADS; i++)
+            messageService.addClient(SimpleClient.builder().username(recipient(i)).build());
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        if (mailboxShards != null)
+            mailboxShards.close();
+        running.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Recipient {
+        private SimpleClient client;
+        private Message message;
+
+        @Setup
+        public void setUp(MessageServiceBenchmark benchmark) {
+            String username = recipient(benchmark.nextRecipient.getAndIncrement() % MAX_THREADS);
+            client = SimpleClient.builder().username(username).build();
+            message = new Message(username, "sender", "benchmark message payload");
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public JsonObject sendAndOpenSingleThread(Recipient recipient) {
+        return sendAndOpen(recipient);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public JsonObject sendAndOpenFourThreads(Recipient recipient) {
+        return sendAndOpen(recipient);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public JsonObject sendAndOpenSixteenThreads(Recipient recipient) {
+        return sendAndOpen(recipient);
+    }
+
+    private JsonObject sendAndOpen(Recipient recipient) {
+        messageService.sendMessage(recipient.message);
+        return messageService.openMessage(recipient.client);
+    }
+
+    private static String recipient(int index) {
+        return "recipient" + index;
+    }
+}
@@ -0,0 +1,73 @@
+package simpleserver.service;
+
+import org.openjdk.jmh.annotations.*;
+import simpleserver.benchmark.BenchmarkFixtures;
+import simpleserver.dto.RegisteredUserCredentials;
+import simpleserver.repository.UserRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * {@link UserService#loginUser} and {@link UserService#userIsConnected} against a growing number of
+ * registered and connected users. Both look the user up by interned id, so the cost should stay flat as
+ * {@code users} grows.
+ * The service only uses channels as map keys, so mocks stand in for them instead of thousands of sockets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserServiceBenchmark {
+    @Param({"10", "1000", "10000"})
+    private int users;
+
+    private UserService userService;
+    private SocketChannel loginChannel;
+    private String lastUser;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkFixtures.quietLogging();
+        File usersFile = File.createTempFile("simpleserver-jmh-users", ".json");
+        usersFile.deleteOnExit();
+        var userRepository = new UserRepository(usersFile.getPath());
+        userService = new UserService(new MessageService(null), userRepository);
+
+        // Every user but the last one is connected; the last one logs in and out in the benchmark.
+        for (int i = 0; i < users; i++)
+            userRepository.addUser(new RegisteredUserCredentials(username(i), "password"));
+        for (int i = 0; i < users - 1; i++)
+            userService.loginUser(mock(SocketChannel.class), username(i), "password");
+        lastUser = username(users - 1);
+        loginChannel = mock(SocketChannel.class);
+    }
+
+    @Benchmark
+    public LoginResult loginAndDisconnect() {
+        var result = userService.loginUser(loginChannel, lastUser, "password");
+        userService.disconnectClient(loginChannel);
+        return result;
+    }
+
+    @Benchmark
+    public boolean userIsConnected() {
+        return userService.userIsConnected(username(ThreadLocalRandom.current().nextInt(users)));
+    }
+
+    @Benchmark
+    public boolean userIsNotConnected() {
+        return userService.userIsConnected(lastUser);
+    }
+
+    private static String username(int index) {
+        return "user" + index;
+    }
+}
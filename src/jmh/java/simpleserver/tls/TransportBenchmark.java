@@ -0,0 +1,158 @@
+package simpleserver.tls;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import simpleserver.benchmark.BenchmarkFixtures;
+import simpleserver.client.UserAuthority;
+import simpleserver.repository.UserRepository;
+import simpleserver.server.ClientRequestHandler;
+import simpleserver.server.ClientResponder;
+import simpleserver.server.ServerMetrics;
+import simpleserver.server.ServerRequests;
+import simpleserver.service.MessageService;
+import simpleserver.service.UserService;
+import simpleserver.util.JsonResponse;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain TCP against TLS in front of the real {@link ClientRequestHandler}. {@code connect} opens a connection,
+ * completes the handshake, gets one {@code ping} answered and closes it, which is what a reconnect storm costs
+ * per client; {@code ping} is the steady-state round trip on an open connection.
+ * <p>
+ * {@code tls} forgets each session after the handshake, so every connection does the full key exchange;
+ * {@code tls-resumed} keeps the ticket the server sends after the handshake and resumes with it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+    private static final String PASSWORD = "benchmark";
+
+    @Param({"plain", "tls", "tls-resumed"})
+    public String transport;
+
+    private final byte[] pingRequest = (pingRequest() + "\n").getBytes(StandardCharsets.UTF_8);
+    private Path directory;
+    private TlsContext serverTls;
+    private TlsContext clientTls;
+    private ServerSocketChannel listener;
+    private InetSocketAddress address;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkFixtures.quietLogging();
+        directory = Files.createTempDirectory("simpleserver-jmh-tls");
+        Path keyStore = BenchmarkFixtures.selfSignedKeyStore(directory, PASSWORD);
+        serverTls = TlsContext.forServer(TlsSettings.builder().keyStore(keyStore.toString()).keyStorePassword(PASSWORD).build());
+        clientTls = TlsContext.forClient(TlsSettings.builder().trustStore(keyStore.toString()).trustStorePassword(PASSWORD).build());
+
+        var messageService = new MessageService(null);
+        var userService = new UserService(messageService, new UserRepository(directory.resolve("users.json").toString()));
+        var responder = new ClientResponder(new ServerRequests(LocalDateTime.now(), new ServerMetrics()));
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        address = (InetSocketAddress) listener.getLocalAddress();
+        var acceptor = new Thread(() -> {
+            while (listener.isOpen()) {
+                try {
+                    SocketChannel connection = listener.accept();
+                    userService.addConnection(connection);
+                    ByteChannel secured = transport.equals("plain") ? connection : serverTls.serverChannel(connection);
+                    var handler = new Thread(new ClientRequestHandler(responder, connection, secured, userService,
+                            messageService, new ServerMetrics()));
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "benchmark-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        listener.close();
+        serverTls.close();
+        clientTls.close();
+        BenchmarkFixtures.deleteRecursively(directory);
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        private final ByteBuffer response = ByteBuffer.allocate(4096);
+        private ByteChannel channel;
+
+        @Setup
+        public void setUp(TransportBenchmark benchmark) throws IOException {
+            channel = benchmark.open();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Benchmark
+    public int connect() throws IOException {
+        try (var channel = open()) {
+            int responseBytes = roundTrip(channel, ByteBuffer.allocate(4096));
+            if (channel instanceof TlsChannel secured && transport.equals("tls"))
+                secured.getSession().invalidate();
+            return responseBytes;
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int ping(Connection connection) throws IOException {
+        return roundTrip(connection.channel, connection.response);
+    }
+
+    private ByteChannel open() throws IOException {
+        var connection = SocketChannel.open(address);
+        if (transport.equals("plain"))
+            return connection;
+        var secured = clientTls.clientChannel(connection, address.getHostString(), address.getPort());
+        secured.handshake();
+        return secured;
+    }
+
+    /**
+     * Sends a ping and reads up to the end of the response line.
+     */
+    private int roundTrip(ByteChannel channel, ByteBuffer response) throws IOException {
+        var request = ByteBuffer.wrap(pingRequest);
+        while (request.hasRemaining())
+            channel.write(request);
+        response.clear();
+        while (response.position() == 0 || response.get(response.position() - 1) != '\n') {
+            if (channel.read(response) < 0)
+                throw new IOException("Server closed the connection");
+        }
+        return response.position();
+    }
+
+    private static String pingRequest() {
+        var ping = new JsonObject();
+        ping.addProperty("user", JsonResponse.userResponse("", "", UserAuthority.USER, false).toString());
+        ping.addProperty("request", "ping");
+        return ping.toString();
+    }
+}
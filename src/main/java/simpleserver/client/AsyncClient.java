@@ -0,0 +1,534 @@
+package simpleserver.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import simpleserver.dto.Message;
+import simpleserver.tls.TlsChannel;
+import simpleserver.tls.TlsContext;
+import simpleserver.util.JsonResponse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking client for the server. All requests of one client share a single connection that is
+ * served by one I/O thread; every request carries an {@code id} which the server echoes, so requests
+ * can be pipelined and each returned future completes with its own response. Lines without an id were
+ * not asked for (e.g. the server ending the connection) and go to the push listener. Many users can share
+ * the connection through {@link #newSession()}.
+ * <p>
+ * Futures complete and the push listener is called on the I/O thread, so callbacks must not block.
+ * When the connection is lost all pending futures complete exceptionally.
+ */
+public class AsyncClient implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncClient.class);
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final Gson gson = new Gson();
+    private final InetSocketAddress address;
+    private final ReconnectPolicy reconnectPolicy;
+    private final TlsContext tls;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final Map<String, CompletableFuture<ServerResponse>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicLong nextSessionId = new AtomicLong();
+    private final Session mainSession = new Session(null);
+    private final List<Session> sessions = new CopyOnWriteArrayList<>(List.of(mainSession));
+    private SocketChannel channel;
+    private ByteChannel transport;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ByteBuffer writing;
+    private volatile Consumer<ServerResponse> pushListener = response -> LOGGER.debug("Unhandled push: {}", response);
+    private volatile boolean closed;
+
+    AsyncClient(SocketChannel channel, InetSocketAddress address, ReconnectPolicy reconnectPolicy, TlsContext tls)
+            throws IOException {
+        this.address = address;
+        this.reconnectPolicy = reconnectPolicy;
+        this.tls = tls;
+        this.selector = Selector.open();
+        attach(channel, secure(channel));
+        this.ioThread = new Thread(this::runLoop, "simpleserver-client-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Connects to the server, blocking until the connection is established. The client does not reconnect.
+     */
+    public static AsyncClient connect(String host, int port) throws IOException {
+        return connect(host, port, ReconnectPolicy.DISABLED);
+    }
+
+    /**
+     * Connects to the server, blocking until the connection is established. When the connection is lost the
+     * client reconnects following the policy and resumes its logged in sessions with their resume tokens,
+     * falling back to a login when the server no longer knows the token. Requests that were waiting for a
+     * response when the connection was lost complete exceptionally; requests made while reconnecting are sent
+     * once the sessions are resumed.
+     */
+    public static AsyncClient connect(String host, int port, ReconnectPolicy reconnectPolicy) throws IOException {
+        return connect(host, port, reconnectPolicy, null);
+    }
+
+    /**
+     * Like {@link #connect(String, int, ReconnectPolicy)}, over TLS when a context is given. The handshake
+     * completes before this returns; reconnects resume the TLS session where the server still has it.
+     *
+     * @throws javax.net.ssl.SSLException if the server's certificate is not trusted
+     */
+    public static AsyncClient connect(String host, int port, ReconnectPolicy reconnectPolicy, TlsContext tls)
+            throws IOException {
+        var address = new InetSocketAddress(host, port);
+        var channel = SocketChannel.open(address);
+        try {
+            return new AsyncClient(channel, address, reconnectPolicy, tls);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public void setPushListener(Consumer<ServerResponse> pushListener) {
+        this.pushListener = pushListener;
+    }
+
+    /**
+     * Starts another session on this connection. Each session logs in on its own, so one connection can carry
+     * many users; the server tags its responses with the session id.
+     */
+    public Session newSession() {
+        var session = new Session("s" + nextSessionId.incrementAndGet());
+        sessions.add(session);
+        return session;
+    }
+
+    /**
+     * The connection's own session, which the request methods of this client use.
+     */
+    public Session getMainSession() {
+        return mainSession;
+    }
+
+    public CompletableFuture<ServerResponse> login(String username, String password) {
+        return mainSession.login(username, password);
+    }
+
+    public CompletableFuture<ServerResponse> register(String username, String password) {
+        return mainSession.register(username, password);
+    }
+
+    public CompletableFuture<ServerResponse> logout() {
+        return mainSession.logout();
+    }
+
+    public CompletableFuture<ServerResponse> send(String receiverId, String text) {
+        return mainSession.send(receiverId, text);
+    }
+
+    public CompletableFuture<ServerResponse> open() {
+        return mainSession.open();
+    }
+
+    public CompletableFuture<ServerResponse> command(String requestType) {
+        return mainSession.command(requestType);
+    }
+
+    public String getUsername() {
+        return mainSession.getUsername();
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    private CompletableFuture<ServerResponse> transmit(JsonObject request) {
+        var response = new CompletableFuture<ServerResponse>();
+        String id = request.get("id").getAsString();
+        pending.put(id, response);
+        if (closed) {
+            pending.remove(id);
+            response.completeExceptionally(new ClosedChannelException());
+            return response;
+        }
+
+        outbound.add(ByteBuffer.wrap((request + "\n").getBytes(StandardCharsets.UTF_8)));
+        selector.wakeup();
+        return response;
+    }
+
+    private void runLoop() {
+        try {
+            while (!closed) {
+                try {
+                    serve();
+                    LOGGER.info("Server closed the connection");
+                } catch (IOException e) {
+                    if (!closed)
+                        LOGGER.info("Lost connection with server: {}", e.getMessage());
+                }
+                if (closed || !reconnect())
+                    break;
+            }
+        } finally {
+            closed = true;
+            closeQuietly();
+            failPending();
+        }
+    }
+
+    /**
+     * Writes and reads until the connection is closed.
+     */
+    private void serve() throws IOException {
+        while (!closed) {
+            selector.select();
+            flush();
+            boolean readable = false;
+            for (var key : selector.selectedKeys())
+                readable |= key.isValid() && key.isReadable();
+            selector.selectedKeys().clear();
+            // TLS may hold decrypted input, or have finished handshake tasks, without the socket being readable
+            if ((readable || transport instanceof TlsChannel) && !read())
+                return;
+        }
+    }
+
+    /**
+     * @return false when the policy gave up or the client was closed
+     */
+    private boolean reconnect() {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            LOGGER.debug("Error while closing the lost connection", e);
+        }
+        outbound.clear();
+        writing = null;
+        readBuffer.clear();
+        failPending();
+
+        for (int attempt = 0; attempt < reconnectPolicy.maxAttempts() && !closed; attempt++) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(reconnectPolicy.delayMillis(attempt)));
+            if (closed)
+                return false;
+            try {
+                var reconnected = SocketChannel.open(address);
+                try {
+                    var secured = secure(reconnected);
+                    resumeSessions(secured);
+                    attach(reconnected, secured);
+                } catch (IOException e) {
+                    reconnected.close();
+                    throw e;
+                }
+                LOGGER.info("Reconnected to server after {} attempts", attempt + 1);
+                return true;
+            } catch (IOException e) {
+                LOGGER.debug("Reconnect attempt {} failed: {}", attempt + 1, e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the resume requests of the logged in sessions before anything queued while reconnecting.
+     */
+    private void resumeSessions(ByteChannel reconnected) throws IOException {
+        for (var session : sessions) {
+            var resume = session.newResumeRequest();
+            if (resume == null)
+                continue;
+            var response = new CompletableFuture<ServerResponse>();
+            pending.put(resume.get("id").getAsString(), response);
+            response.thenAccept(session::resumed);
+
+            var bytes = ByteBuffer.wrap((resume + "\n").getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining())
+                reconnected.write(bytes);
+        }
+    }
+
+    /**
+     * Completes the TLS handshake while the channel is still blocking.
+     */
+    private ByteChannel secure(SocketChannel connected) throws IOException {
+        if (tls == null)
+            return connected;
+        var secured = tls.clientChannel(connected, address.getHostString(), address.getPort());
+        secured.setTaskListener(selector::wakeup);
+        secured.handshake();
+        return secured;
+    }
+
+    private void attach(SocketChannel connected, ByteChannel secured) throws IOException {
+        connected.configureBlocking(false);
+        connected.register(selector, SelectionKey.OP_READ);
+        channel = connected;
+        transport = secured;
+    }
+
+    private void flush() throws IOException {
+        while (true) {
+            if (writing == null)
+                writing = outbound.poll();
+            if (writing == null)
+                break;
+            transport.write(writing);
+            if (writing.hasRemaining())
+                break;
+            writing = null;
+        }
+
+        boolean written = writing == null && (!(transport instanceof TlsChannel secured) || secured.flush());
+        var key = channel.keyFor(selector);
+        key.interestOps(written ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * @return false when the server closed the connection
+     */
+    private boolean read() throws IOException {
+        while (true) {
+            int read = transport.read(readBuffer);
+            if (read < 0)
+                return false;
+            if (read == 0)
+                return true;
+            dispatchLines();
+        }
+    }
+
+    private void dispatchLines() {
+        var buffer = readBuffer;
+        buffer.flip();
+        int lineStart = buffer.position();
+        for (int i = lineStart; i < buffer.limit(); i++) {
+            if (buffer.get(i) != '\n')
+                continue;
+            dispatch(new String(buffer.array(), lineStart, i - lineStart, StandardCharsets.UTF_8));
+            lineStart = i + 1;
+        }
+        buffer.position(lineStart);
+        buffer.compact();
+
+        if (!buffer.hasRemaining()) {
+            var larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            readBuffer = larger.put(buffer);
+        }
+    }
+
+    private void dispatch(String line) {
+        JsonObject json;
+        try {
+            json = JsonParser.parseString(line).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            LOGGER.warn("Received malformed response: {}", line);
+            return;
+        }
+
+        var response = ServerResponse.of(json);
+        if (!json.has("id")) {
+            try {
+                pushListener.accept(response);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Push listener failed", e);
+            }
+            return;
+        }
+
+        var future = pending.remove(json.get("id").getAsString());
+        if (future == null)
+            LOGGER.warn("Received response to an unknown request: {}", line);
+        else
+            future.complete(response);
+    }
+
+    private void failPending() {
+        for (var id : pending.keySet()) {
+            var future = pending.remove(id);
+            if (future != null)
+                future.completeExceptionally(new ClosedChannelException());
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            transport.close();
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.debug("Error while closing the connection", e);
+        }
+    }
+
+    /**
+     * Closes the connection. Requests that were not answered yet complete exceptionally.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        LockSupport.unpark(ioThread);
+        if (Thread.currentThread() == ioThread)
+            return;
+        try {
+            ioThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The requests of one user. Requests after a login or register, including pipelined ones, are made as that
+     * user; if the login fails the previous user is restored.
+     */
+    public class Session {
+        private final String id;
+        private final AtomicReference<Identity> identity = new AtomicReference<>(new Identity("", ""));
+        private volatile String resumeToken;
+
+        private Session(String id) {
+            this.id = id;
+        }
+
+        /**
+         * The tag of this session, null for the connection's own session.
+         */
+        public String getId() {
+            return id;
+        }
+
+        public CompletableFuture<ServerResponse> login(String username, String password) {
+            var request = newRequest("login");
+            request.addProperty("loginUsername", username);
+            request.addProperty("loginPassword", password);
+            return sendAs(request, new Identity(username, password));
+        }
+
+        /**
+         * Registers a new user, which the server also logs in. Like {@link #login(String, String)}.
+         */
+        public CompletableFuture<ServerResponse> register(String username, String password) {
+            var request = newRequest("register");
+            request.addProperty("registerUsername", username);
+            request.addProperty("registerPassword", password);
+            return sendAs(request, new Identity(username, password));
+        }
+
+        /**
+         * Sends a direct message from the logged in user.
+         */
+        public CompletableFuture<ServerResponse> send(String receiverId, String text) {
+            var request = newRequest("message");
+            request.addProperty("messageObject", gson.toJson(new Message(receiverId, identity.get().username(), text)));
+            return transmit(request);
+        }
+
+        /**
+         * Opens the oldest unread message, see {@link ServerResponse#openedMessage()}.
+         */
+        public CompletableFuture<ServerResponse> open() {
+            return transmit(newRequest("open"));
+        }
+
+        /**
+         * Sends a request without parameters, e.g. {@code ping}, {@code uptime}, {@code info} or {@code help}.
+         */
+        public CompletableFuture<ServerResponse> command(String requestType) {
+            return transmit(newRequest(requestType));
+        }
+
+        public String getUsername() {
+            return identity.get().username();
+        }
+
+        /**
+         * Ends this session on the server, the connection stays open.
+         */
+        public CompletableFuture<ServerResponse> logout() {
+            return sendAs(newRequest("logout"), new Identity("", ""));
+        }
+
+        private JsonObject newRequest(String requestType) {
+            var request = new JsonObject();
+            request.addProperty("id", Long.toString(nextId.incrementAndGet()));
+            var user = identity.get();
+            request.addProperty("user", JsonResponse.userResponse(user.username(), user.password(), UserAuthority.USER, false).toString());
+            request.addProperty("request", requestType);
+            if (id != null)
+                request.addProperty("session", id);
+            return request;
+        }
+
+        private CompletableFuture<ServerResponse> sendAs(JsonObject request, Identity user) {
+            var previous = identity.getAndSet(user);
+            return transmit(request).thenApply(response -> {
+                if (!response.isSuccess())
+                    identity.compareAndSet(user, previous);
+                else
+                    resumeToken = tokenOf(response);
+                return response;
+            });
+        }
+
+        /**
+         * @return null when the session has nothing to resume
+         */
+        private JsonObject newResumeRequest() {
+            if (resumeToken == null)
+                return null;
+            var request = newRequest("resume");
+            request.addProperty("resumeToken", resumeToken);
+            return request;
+        }
+
+        private void resumed(ServerResponse response) {
+            if (response.isSuccess()) {
+                resumeToken = tokenOf(response);
+                return;
+            }
+
+            resumeToken = null;
+            var user = identity.get();
+            if (!user.password().isEmpty()) {
+                LOGGER.info("Unable to resume the session of {}, logging in again", user.username());
+                login(user.username(), user.password());
+            }
+        }
+
+        private static String tokenOf(ServerResponse response) {
+            var token = response.json().get("resumeToken");
+            return token == null ? null : token.getAsString();
+        }
+    }
+
+    private record Identity(String username, String password) {
+    }
+}
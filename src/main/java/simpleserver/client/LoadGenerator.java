@@ -0,0 +1,393 @@
+package simpleserver.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import simpleserver.dto.Message;
+import simpleserver.util.JsonResponse;
+import simpleserver.util.LatencyHistogram;
+import simpleserver.util.LoggingUtil;
+import simpleserver.util.ServerConfig;
+import simpleserver.util.StatusEnum;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless load generator. Opens many simulated clients from one JVM, all driven by a single selector
+ * thread, registers and logs them in, then runs a mix of message, open and ping requests against the server
+ * for a fixed time. Every client has at most one request in flight (a closed loop, like a real user), so
+ * the offered load follows the server's latency. At the end it prints throughput and latency percentiles
+ * per request type.
+ * <p>
+ * Start it with {@code SimpleClient load} or directly through {@link #main}; see {@link LoadSettings}
+ * for the options.
+ */
+public class LoadGenerator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final LoadSettings settings;
+    private final Gson gson = new Gson();
+    private final Selector selector;
+    private final InetSocketAddress serverAddress;
+    private final String payload;
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private final List<SimulatedClient> readyClients = new ArrayList<>();
+    private final ArrayDeque<SimulatedClient> thinking = new ArrayDeque<>();
+    private final EnumMap<RequestType, RequestStatistics> statistics = new EnumMap<>(RequestType.class);
+    private int pendingConnects;
+    private int failed;
+    private boolean stopping;
+
+    public LoadGenerator(LoadSettings settings) throws IOException {
+        this.settings = settings;
+        this.selector = Selector.open();
+        this.serverAddress = new InetSocketAddress(settings.getHost(), settings.getPort());
+        this.payload = "x".repeat(Math.max(1, settings.getMessageBytes()));
+        for (RequestType type : RequestType.values())
+            statistics.put(type, new RequestStatistics());
+    }
+
+    public static void main(String[] args) {
+        LoggingUtil.initLogManager();
+        var settings = LoadSettings.fromConfig(ServerConfig.load());
+        try {
+            new LoadGenerator(settings).run();
+        } catch (IOException e) {
+            LOGGER.warn("Load test aborted: {}", e.toString());
+            System.exit(1);
+        }
+    }
+
+    public void run() throws IOException {
+        LOGGER.info("Connecting {} clients to {}", settings.getClients(), serverAddress);
+        long setupDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.getSetupTimeoutSeconds());
+        while (readyClients.size() + failed < settings.getClients()) {
+            if (System.nanoTime() > setupDeadline) {
+                LOGGER.warn("Setup timed out, starting with the clients logged in so far");
+                break;
+            }
+            connectMore();
+            poll();
+        }
+        LOGGER.info("{} clients logged in, {} failed. Running traffic for {}s",
+                readyClients.size(), failed, settings.getDurationSeconds());
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(settings.getDurationSeconds());
+        if (!readyClients.isEmpty()) {
+            for (SimulatedClient client : readyClients)
+                sendNext(client);
+            while (System.nanoTime() < deadline) {
+                poll();
+                wakeThinkingClients();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        stopping = true;
+        long drainDeadline = System.nanoTime() + DRAIN_NANOS;
+        while (clients.stream().anyMatch(client -> client.inFlight != null) && System.nanoTime() < drainDeadline)
+            poll();
+
+        report(elapsed);
+        for (SimulatedClient client : clients)
+            close(client);
+        selector.close();
+    }
+
+    private void connectMore() {
+        while (pendingConnects < settings.getConnectBatch() && clients.size() < settings.getClients()) {
+            var client = new SimulatedClient(settings.getUsernamePrefix() + clients.size(), "password");
+            clients.add(client);
+            pendingConnects++;
+            try {
+                client.channel = SocketChannel.open();
+                client.channel.configureBlocking(false);
+                client.key = client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+                if (client.channel.connect(serverAddress))
+                    connected(client);
+            } catch (IOException e) {
+                fail(client, e.toString());
+            }
+        }
+    }
+
+    private void poll() throws IOException {
+        long timeoutMillis = 100;
+        var next = thinking.peek();
+        if (next != null)
+            timeoutMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.wakeAtNanos - System.nanoTime()));
+
+        selector.select(key -> {
+            var client = (SimulatedClient) key.attachment();
+            try {
+                if (key.isConnectable() && client.channel.finishConnect())
+                    connected(client);
+                if (key.isValid() && key.isWritable())
+                    flush(client);
+                if (key.isValid() && key.isReadable())
+                    read(client);
+            } catch (IOException e) {
+                fail(client, e.toString());
+            }
+        }, timeoutMillis);
+    }
+
+    private void connected(SimulatedClient client) throws IOException {
+        pendingConnects--;
+        client.state = ClientState.REGISTERING;
+        client.key.interestOps(SelectionKey.OP_READ);
+
+        var request = newRequest(client, "register");
+        request.addProperty("registerUsername", client.username);
+        request.addProperty("registerPassword", client.password);
+        send(client, RequestType.REGISTER, request.toString());
+    }
+
+    private void loggedIn(SimulatedClient client) {
+        client.state = ClientState.READY;
+        client.userProperty = JsonResponse.userResponse(client.username, client.password, UserAuthority.USER, true).toString();
+        client.pingRequest = newRequest(client, "ping").toString();
+        client.openRequest = newRequest(client, "open").toString();
+        readyClients.add(client);
+    }
+
+    private JsonObject newRequest(SimulatedClient client, String requestType) {
+        var request = new JsonObject();
+        request.addProperty("user", client.userProperty);
+        request.addProperty("request", requestType);
+        return request;
+    }
+
+    private void sendNext(SimulatedClient client) throws IOException {
+        int total = settings.getMessageWeight() + settings.getOpenWeight() + settings.getPingWeight();
+        int pick = ThreadLocalRandom.current().nextInt(Math.max(1, total));
+
+        if (pick < settings.getMessageWeight()) {
+            var recipient = readyClients.get(ThreadLocalRandom.current().nextInt(readyClients.size()));
+            var request = newRequest(client, "message");
+            request.addProperty("messageObject", gson.toJson(new Message(recipient.username, client.username, payload)));
+            send(client, RequestType.MESSAGE, request.toString());
+        } else if (pick < settings.getMessageWeight() + settings.getOpenWeight()) {
+            send(client, RequestType.OPEN, client.openRequest);
+        } else {
+            send(client, RequestType.PING, client.pingRequest);
+        }
+    }
+
+    private void send(SimulatedClient client, RequestType type, String request) throws IOException {
+        client.inFlight = type;
+        client.sentNanos = System.nanoTime();
+        client.writeBuffer = ByteBuffer.wrap((request + "\n").getBytes(StandardCharsets.UTF_8));
+        flush(client);
+    }
+
+    private void flush(SimulatedClient client) throws IOException {
+        client.channel.write(client.writeBuffer);
+        if (client.writeBuffer.hasRemaining())
+            client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        else
+            client.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void read(SimulatedClient client) throws IOException {
+        if (client.channel.read(client.readBuffer) < 0) {
+            fail(client, "server closed the connection");
+            return;
+        }
+
+        var buffer = client.readBuffer;
+        buffer.flip();
+        int lineStart = buffer.position();
+        for (int i = lineStart; i < buffer.limit(); i++) {
+            if (buffer.get(i) != '\n')
+                continue;
+            var line = new String(buffer.array(), lineStart, i - lineStart, StandardCharsets.UTF_8);
+            lineStart = i + 1;
+            buffer.position(lineStart);
+            handleResponse(client, line);
+            if (client.state == ClientState.FAILED)
+                return;
+        }
+        buffer.compact();
+
+        if (!buffer.hasRemaining()) {
+            var larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            client.readBuffer = larger.put(buffer);
+        }
+    }
+
+    private void handleResponse(SimulatedClient client, String line) throws IOException {
+        long latency = System.nanoTime() - client.sentNanos;
+        var type = client.inFlight;
+        if (type == null)
+            return;
+        client.inFlight = null;
+
+        JsonObject response;
+        try {
+            response = gson.fromJson(line, JsonObject.class);
+        } catch (JsonParseException e) {
+            response = JsonResponse.serverResponse(StatusEnum.ERROR, "unparseable response");
+        }
+        String status = response.has("status") ? response.get("status").getAsString() : StatusEnum.SUCCESS.name();
+        String message = response.has("message") ? response.get("message").getAsString() : "";
+        if (!stopping)
+            statistics.get(type).record(latency, status);
+
+        switch (type) {
+            case REGISTER -> {
+                if (StatusEnum.SUCCESS.name().equals(status)) {
+                    loggedIn(client);
+                } else if (message.contains("already registered")) {
+                    var request = newRequest(client, "login");
+                    request.addProperty("loginUsername", client.username);
+                    request.addProperty("loginPassword", client.password);
+                    send(client, RequestType.LOGIN, request.toString());
+                } else {
+                    fail(client, message);
+                }
+            }
+            case LOGIN -> {
+                if (StatusEnum.SUCCESS.name().equals(status))
+                    loggedIn(client);
+                else
+                    fail(client, message);
+            }
+            default -> scheduleNext(client);
+        }
+    }
+
+    private void scheduleNext(SimulatedClient client) throws IOException {
+        if (stopping)
+            return;
+        if (settings.getThinkTimeMillis() <= 0) {
+            sendNext(client);
+            return;
+        }
+        // Every client thinks for the same time, so the queue stays ordered by wake up time.
+        client.wakeAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getThinkTimeMillis());
+        thinking.add(client);
+    }
+
+    private void wakeThinkingClients() throws IOException {
+        long now = System.nanoTime();
+        while (!thinking.isEmpty() && thinking.peek().wakeAtNanos <= now) {
+            var client = thinking.poll();
+            if (client.state == ClientState.READY)
+                sendNext(client);
+        }
+    }
+
+    private void fail(SimulatedClient client, String reason) {
+        if (client.state == ClientState.FAILED)
+            return;
+        if (client.state == ClientState.CONNECTING)
+            pendingConnects--;
+        LOGGER.debug("Client {} failed: {}", client.username, reason);
+        failed++;
+        client.state = ClientState.FAILED;
+        client.inFlight = null;
+        close(client);
+    }
+
+    private void close(SimulatedClient client) {
+        try {
+            if (client.channel != null)
+                client.channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close client channel: {}", e.toString());
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%nLoad test against %s: %d clients, %d logged in, %d failed, traffic for %.1fs%n",
+                serverAddress, settings.getClients(), readyClients.size(), failed, seconds);
+        System.out.printf("%-9s %10s %8s %8s %10s %9s %9s %9s %9s %9s %9s%n",
+                "request", "count", "errors", "busy", "req/s", "mean(us)", "p50", "p90", "p99", "p99.9", "max");
+
+        statistics.forEach((type, stats) -> {
+            var histogram = stats.latency;
+            if (histogram.getCount() == 0)
+                return;
+            boolean setup = type == RequestType.REGISTER || type == RequestType.LOGIN;
+            System.out.printf("%-9s %10d %8d %8d %10s %9d %9d %9d %9d %9d %9d%n",
+                    type.name().toLowerCase(), histogram.getCount(), stats.errors, stats.busy,
+                    setup ? "-" : String.format("%.0f", histogram.getCount() / seconds),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.getMeanNanos()),
+                    histogram.getValueAtPercentile(50, TimeUnit.MICROSECONDS),
+                    histogram.getValueAtPercentile(90, TimeUnit.MICROSECONDS),
+                    histogram.getValueAtPercentile(99, TimeUnit.MICROSECONDS),
+                    histogram.getValueAtPercentile(99.9, TimeUnit.MICROSECONDS),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.getMaxNanos()));
+        });
+    }
+
+    private enum RequestType {
+        REGISTER,
+        LOGIN,
+        MESSAGE,
+        OPEN,
+        PING
+    }
+
+    private enum ClientState {
+        CONNECTING,
+        REGISTERING,
+        READY,
+        FAILED
+    }
+
+    private static class RequestStatistics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long errors;
+        private long busy;
+
+        void record(long latencyNanos, String status) {
+            latency.record(latencyNanos);
+            if (StatusEnum.ERROR.name().equals(status))
+                errors++;
+            else if (StatusEnum.BUSY.name().equals(status))
+                busy++;
+        }
+    }
+
+    private static class SimulatedClient {
+        private final String username;
+        private final String password;
+        private ClientState state = ClientState.CONNECTING;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(8 * 1024);
+        private ByteBuffer writeBuffer;
+        private String userProperty;
+        private String pingRequest;
+        private String openRequest;
+        private RequestType inFlight;
+        private long sentNanos;
+        private long wakeAtNanos;
+
+        SimulatedClient(String username, String password) {
+            this.username = username;
+            this.password = password;
+            this.userProperty = JsonResponse.userResponse("", "", UserAuthority.USER, false).toString();
+        }
+    }
+}
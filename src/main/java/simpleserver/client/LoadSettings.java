@@ -0,0 +1,58 @@
+package simpleserver.client;
+
+import lombok.Builder;
+import lombok.Getter;
+import simpleserver.util.ServerConfig;
+
+/**
+ * Settings of the {@link LoadGenerator}, read from {@code load.*} system properties,
+ * e.g. {@code -Dload.clients=2000 -Dload.durationSeconds=60}.
+ */
+@Getter
+@Builder
+public class LoadSettings {
+    @Builder.Default
+    private final String host = "localhost";
+    @Builder.Default
+    private final int port = 5000;
+    @Builder.Default
+    private final int clients = 1000;
+    /** Connections that may be waiting to be accepted at once, to stay within the server's accept backlog. */
+    @Builder.Default
+    private final int connectBatch = 50;
+    @Builder.Default
+    private final long durationSeconds = 30;
+    @Builder.Default
+    private final long setupTimeoutSeconds = 120;
+    /** Pause between a response and the client's next request. 0 sends the next request immediately. */
+    @Builder.Default
+    private final long thinkTimeMillis = 0;
+    @Builder.Default
+    private final int messageWeight = 40;
+    @Builder.Default
+    private final int openWeight = 40;
+    @Builder.Default
+    private final int pingWeight = 20;
+    @Builder.Default
+    private final int messageBytes = 64;
+    @Builder.Default
+    private final String usernamePrefix = "load" + Long.toString(System.currentTimeMillis(), 36) + "-";
+
+    public static LoadSettings fromConfig(ServerConfig config) {
+        var defaults = LoadSettings.builder().build();
+        return LoadSettings.builder()
+                .host(config.getString("load.host", defaults.host))
+                .port(config.getInt("load.port", defaults.port))
+                .clients(config.getInt("load.clients", defaults.clients))
+                .connectBatch(config.getInt("load.connectBatch", defaults.connectBatch))
+                .durationSeconds(config.getLong("load.durationSeconds", defaults.durationSeconds))
+                .setupTimeoutSeconds(config.getLong("load.setupTimeoutSeconds", defaults.setupTimeoutSeconds))
+                .thinkTimeMillis(config.getLong("load.thinkTimeMillis", defaults.thinkTimeMillis))
+                .messageWeight(config.getInt("load.mix.message", defaults.messageWeight))
+                .openWeight(config.getInt("load.mix.open", defaults.openWeight))
+                .pingWeight(config.getInt("load.mix.ping", defaults.pingWeight))
+                .messageBytes(config.getInt("load.messageBytes", defaults.messageBytes))
+                .usernamePrefix(config.getString("load.usernamePrefix", defaults.usernamePrefix))
+                .build();
+    }
+}
@@ -0,0 +1,26 @@
+package simpleserver.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How {@link AsyncClient} reconnects after losing the connection: up to {@code maxAttempts} attempts, waiting
+ * a random time between 0 and an exponentially growing bound before each, so that clients dropped together
+ * do not all come back at the same moment.
+ */
+public record ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, int maxAttempts) {
+    public static final ReconnectPolicy DISABLED = new ReconnectPolicy(0, 0, 0);
+
+    /**
+     * Starts at 100 ms, doubles up to 10 s and gives up after 20 attempts.
+     */
+    public static ReconnectPolicy defaults() {
+        return new ReconnectPolicy(100, 10_000, 20);
+    }
+
+    long delayMillis(int attempt) {
+        long bound = initialDelayMillis << Math.min(attempt, 30);
+        if (bound <= 0 || bound > maxDelayMillis)
+            bound = maxDelayMillis;
+        return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+}
@@ -0,0 +1,46 @@
+package simpleserver.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import simpleserver.dto.Message;
+import simpleserver.util.StatusEnum;
+
+import java.util.Optional;
+
+/**
+ * A response line received by {@link AsyncClient}. {@code json} is the whole response as sent by the server.
+ */
+public record ServerResponse(StatusEnum status, String message, JsonObject json) {
+    private static final Gson GSON = new Gson();
+
+    static ServerResponse of(JsonObject json) {
+        StatusEnum status = null;
+        if (json.has("status")) {
+            try {
+                status = StatusEnum.valueOf(json.get("status").getAsString());
+            } catch (IllegalArgumentException e) {
+                // unknown status, left empty
+            }
+        }
+        String message = json.has("message") ? json.get("message").getAsString() : null;
+        return new ServerResponse(status, message, json);
+    }
+
+    public boolean isSuccess() {
+        return status == StatusEnum.SUCCESS;
+    }
+
+    /**
+     * The message carried by a response to {@code open}, empty when there was no new message.
+     */
+    public Optional<Message> openedMessage() {
+        if (!json.has("messageObject"))
+            return Optional.empty();
+        return Optional.of(GSON.fromJson(json.get("messageObject").getAsString(), Message.class));
+    }
+
+    @Override
+    public String toString() {
+        return json.toString();
+    }
+}
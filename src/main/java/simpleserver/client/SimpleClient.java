@@ -1,145 +1,101 @@
 package simpleserver.client;
 
-import com.google.gson.*;
 import lombok.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import simpleserver.dto.Message;
 import simpleserver.dto.RegisteredUserCredentials;
-import simpleserver.util.JsonResponse;
+import simpleserver.tls.TlsContext;
+import simpleserver.tls.TlsSettings;
 import simpleserver.util.LoggingUtil;
+import simpleserver.util.ServerConfig;
 
+import javax.net.ssl.SSLException;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetSocketAddress;
-import java.nio.channels.Channels;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 
 
 @Data
 @Builder
 public class SimpleClient {
     private static final Logger LOGGER = LoggerFactory.getLogger(SimpleClient.class.getName());
-    private BufferedReader reader;
-    private PrintWriter writer;
     private String username;
     private String password;
     private UserAuthority authority;
     private boolean isLoggedIn;
-    private final Gson gson = new Gson();
     private SocketChannel socketChannel;
+    /** Tag of the session on a multiplexed connection, null for the connection's own session. */
+    private String sessionId;
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("load")) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         LoggingUtil.initLogManager();
-        SimpleClient.builder().build().connectToServer();
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        boolean tls = args.length > 2 && args[2].equals("tls");
+        SimpleClient.builder().build().connectToServer(host, port, tls);
     }
 
-    private void connectToServer() {
-        this.username = "";
-        this.password = "";
-        this.authority = UserAuthority.USER;
-        this.isLoggedIn = false;
-
-        try {
-            InetSocketAddress serverAddress = new InetSocketAddress("localhost", 5000);
-            socketChannel = SocketChannel.open(serverAddress);
-
-            reader = new BufferedReader(Channels.newReader(socketChannel, StandardCharsets.UTF_8));
-            writer = new PrintWriter(Channels.newWriter(socketChannel, StandardCharsets.UTF_8));
-
-            ExecutorService readThread = Executors.newSingleThreadExecutor();
-            readThread.execute(new IncomingReader());
-
+    /**
+     * @param tls whether to connect over TLS, trusting the certificates in {@code tls.trustStore}
+     */
+    private void connectToServer(String host, int port, boolean tls) {
+        try (var tlsContext = tls ? TlsContext.forClient(TlsSettings.fromConfig(ServerConfig.load())) : null;
+             var client = AsyncClient.connect(host, port, ReconnectPolicy.defaults(), tlsContext)) {
+            client.setPushListener(response -> System.out.println("Server response: " + response));
             LOGGER.info("Connection with server established");
             BufferedReader clientOptionReader = new BufferedReader(new InputStreamReader(System.in));
 
-            while (true) {
-                var serverRequest = new JsonObject();
-
-                var message = clientOptionReader.readLine();
+            String message;
+            while ((message = clientOptionReader.readLine()) != null && client.isOpen()) {
                 var messageArray = message.split(" ");
-
-                var userProperty = JsonResponse.userResponse(username, password, authority, isLoggedIn);
-
-                serverRequest.addProperty("user", gson.toJsonTree(userProperty).toString());
-
-                serverRequest.addProperty("request", messageArray[0]);
+                CompletableFuture<ServerResponse> response;
 
                 if (messageArray[0].equals("message")) {
-                    var receiverId = message.split(" ")[1];
+                    if (messageArray.length < 2) {
+                        System.out.println("When using 'message' need to provide the receiver and the message");
+                        continue;
+                    }
                     var messagePayload = String.join(" ", Arrays.copyOfRange(messageArray, 2, messageArray.length));
-
-                    var userMessage = new Message(receiverId, username, messagePayload);
-
-                    var jsonMessage = gson.toJson(userMessage);
-                    serverRequest.addProperty("messageObject", jsonMessage);
+                    response = client.send(messageArray[1], messagePayload);
                 } else if (messageArray[0].equals("login") || messageArray[0].equals("register")) {
-                    try {
-                        String username = messageArray[1];
-                        String password = messageArray[2];
-                        serverRequest.addProperty(messageArray[0].concat("Username") ,username);
-                        serverRequest.addProperty(messageArray[0].concat("Password"), password);
-                    } catch (ArrayIndexOutOfBoundsException e) {
+                    if (messageArray.length < 3) {
                         System.out.println("When using 'Login' or 'Register' need to provide username and password");
                         continue;
                     }
+                    response = messageArray[0].equals("login")
+                            ? client.login(messageArray[1], messageArray[2])
+                            : client.register(messageArray[1], messageArray[2]);
+                } else if (messageArray[0].equals("open")) {
+                    response = client.open();
+                } else {
+                    response = client.command(messageArray[0]);
                 }
 
-                LOGGER.debug("Sending message to server: {}", serverRequest);
-                messageServer(serverRequest.toString());
+                response.whenComplete(SimpleClient::printResponse);
             }
+        } catch (SSLException e) {
+            LOGGER.info("Secure connection with server cannot be established: {}", e.getMessage());
         } catch (IOException e) {
             LOGGER.info("Connection with server cannot be established, or server disconnected");
-            System.exit(0);
         }
+        System.exit(0);
     }
 
-    private void messageServer(String message) {
-        writer.println(message);
-        writer.flush();
-        LOGGER.debug("message sent to server: {}", message);
-    }
-
-    public class IncomingReader implements Runnable {
-        @Override
-        public void run() {
-            LOGGER.info("Client reader startup successful");
-            String message;
-            try {
-                while ((message = reader.readLine()) != null) {
-                    LOGGER.debug("Received message: {}", message);
-                    var jsonMessage = gson.fromJson(message, JsonObject.class);
-
-                    if (jsonMessage.has("messageObject")) {
-                        System.out.println("New message: " + jsonMessage.get("messageObject").getAsString());
-                    } else {
-                        System.out.println("Server response: " + message);
-
-                        if (jsonMessage.get("status").getAsString().equals("SUCCESS") &&
-                            jsonMessage.get("message").getAsString().equals("Successfully Logged In")) {
-
-                            setUsername(jsonMessage.get("loginUsername").getAsString());
-                            setPassword(jsonMessage.get("loginPassword").getAsString());
-                        } else if (jsonMessage.get("status").getAsString().equals("SUCCESS") &&
-                                jsonMessage.get("message").getAsString().contains("Sucessfully Registered")) {
-
-                            setUsername(jsonMessage.get("registerUsername").getAsString());
-                            setPassword(jsonMessage.get("registerPassword").getAsString());
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                LOGGER.warn("Lost connection with server. Exit client.", e);
-                System.exit(1);
-            }
-        }
+    private static void printResponse(ServerResponse response, Throwable failure) {
+        if (failure != null)
+            System.out.println("Lost connection with server");
+        else if (response.json().has("messageObject"))
+            System.out.println("New message: " + response.json().get("messageObject").getAsString());
+        else
+            System.out.println("Server response: " + response);
     }
 
     @Override
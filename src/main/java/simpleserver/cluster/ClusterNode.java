@@ -0,0 +1,339 @@
+package simpleserver.cluster;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import simpleserver.dto.Message;
+import simpleserver.service.Cluster;
+import simpleserver.service.MessageService;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One server of a cluster. Every node keeps a persistent {@link PeerLink} to each other node, over which it
+ * publishes the logins and logouts of its users and forwards messages for users logged in elsewhere. The
+ * links of the other nodes arrive on the cluster port and fill the presence directory, which maps each
+ * remote user to the node they are logged in on. When a node's link drops, its users are removed from the
+ * directory until it reconnects and sends them again.
+ * <p>
+ * A link must start with a hello that proves the peer knows the cluster's shared secret, see
+ * {@link LinkAuthentication}; a link that starts with anything else is closed without applying it.
+ * <p>
+ * Messages are forwarded at most to one node and are not moved when a user later logs in on another node:
+ * unread messages stay in the mailbox of the node that received them. The sender is told the message was
+ * sent once it is queued for the link; if the other node then cannot deliver it, it bounces the message
+ * back and the sender gets a notice from {@value #NOTICE_SENDER} in their mailbox instead. Messages a
+ * reconnected link sends again are recognised by their id and dropped.
+ */
+public class ClusterNode implements Cluster {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterNode.class);
+    /** Sender of the notices about bounced messages. */
+    public static final String NOTICE_SENDER = "server";
+
+    private final Gson gson = new Gson();
+    private final ClusterSettings settings;
+    private final MessageService messageService;
+    private final Map<String, InboundLink> directory = new ConcurrentHashMap<>();
+    private final Set<String> localUsers = ConcurrentHashMap.newKeySet();
+    private final Map<String, PeerLink> links = new LinkedHashMap<>();
+    private final Map<String, ReceivedIds> receivedIds = new ConcurrentHashMap<>();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong undelivered = new AtomicLong();
+    private final AtomicLong bounced = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    public ClusterNode(ClusterSettings settings, MessageService messageService) {
+        this.settings = settings;
+        this.messageService = messageService;
+        settings.getPeers().forEach((node, address) ->
+                links.put(node, new PeerLink(settings.getNodeId(), node, address, settings, () -> localUsers)));
+    }
+
+    /**
+     * Starts listening for the links of the other nodes and connecting to them.
+     *
+     * @throws IllegalStateException if no shared secret is configured
+     */
+    public void start() throws IOException {
+        if (settings.getSecret().isBlank())
+            throw new IllegalStateException("cluster.secret must be set, links between nodes are authenticated with it");
+        var listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(settings.getBindAddress(), settings.getPort()));
+        startThread("cluster-listener", () -> accept(listener));
+        links.forEach((node, link) -> startThread("cluster-link-" + node, link));
+        LOGGER.info("Cluster node {} listening on {}:{}, peers: {}", settings.getNodeId(), settings.getBindAddress(),
+                settings.getPort(), settings.getPeers().keySet());
+    }
+
+    @Override
+    public Optional<String> nodeOf(String username) {
+        if (localUsers.contains(username))
+            return Optional.empty();
+        var link = directory.get(username);
+        return link == null ? Optional.empty() : Optional.of(link.node());
+    }
+
+    @Override
+    public void userOnline(String username) {
+        localUsers.add(username);
+        links.values().forEach(link -> link.publishPresence(username, true));
+    }
+
+    @Override
+    public void userOffline(String username) {
+        localUsers.remove(username);
+        links.values().forEach(link -> link.publishPresence(username, false));
+    }
+
+    @Override
+    public boolean forward(String node, Message message) {
+        var link = links.get(node);
+        if (link == null || !link.forward(message))
+            return false;
+        forwarded.incrementAndGet();
+        return true;
+    }
+
+    public long getRemoteUsers() {
+        return directory.size();
+    }
+
+    public long getForwarded() {
+        return forwarded.get();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    /** Forwarded messages this node could not deliver and bounced. */
+    public long getUndelivered() {
+        return undelivered.get();
+    }
+
+    /** Messages this node forwarded that came back undelivered. */
+    public long getBounced() {
+        return bounced.get();
+    }
+
+    /** Messages and bounces received again after a link reconnected, and dropped. */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long getForwardQueueDepth() {
+        return links.values().stream().mapToLong(PeerLink::getQueueDepth).sum();
+    }
+
+    private void accept(ServerSocketChannel listener) {
+        try (listener) {
+            while (listener.isOpen()) {
+                SocketChannel channel = listener.accept();
+                startThread("cluster-peer-" + channel.getRemoteAddress(), () -> readLink(channel));
+            }
+        } catch (IOException e) {
+            LOGGER.error("Cluster listener on port {} stopped: {}", settings.getPort(), e.toString());
+        }
+    }
+
+    /**
+     * Authenticates a peer's link and applies what it sends until the link closes.
+     */
+    private void readLink(SocketChannel channel) {
+        InboundLink link = null;
+        try (channel) {
+            link = authenticate(channel);
+            if (link == null)
+                return;
+            LOGGER.info("Node {} connected", link.node());
+
+            var reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+                switch (json.get("type").getAsString()) {
+                    case "presence" -> applyPresence(link, json);
+                    case "messages" -> deliver(link, json);
+                    case "bounces" -> applyBounces(link, json);
+                    default -> LOGGER.warn("Unknown cluster message from node {}: {}", link.node(), line);
+                }
+            }
+        } catch (IOException | RuntimeException e) { // including malformed lines
+            LOGGER.info("Link from node {} failed: {}", link == null ? "?" : link.node(), e.toString());
+        }
+
+        if (link != null) {
+            var disconnected = link;
+            directory.values().removeIf(owner -> owner == disconnected);
+            LOGGER.info("Node {} disconnected, its users are unreachable until it reconnects", link.node());
+        }
+    }
+
+    /**
+     * Sends the challenge and checks the hello that must answer it.
+     *
+     * @return the authenticated link, null if the peer did not prove it belongs to the cluster
+     */
+    private InboundLink authenticate(SocketChannel channel) throws IOException {
+        String challenge = LinkAuthentication.newChallenge();
+        var frame = new JsonObject();
+        frame.addProperty("type", "challenge");
+        frame.addProperty("challenge", challenge);
+        var buffer = StandardCharsets.UTF_8.encode(frame + "\n");
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+
+        var socket = channel.socket();
+        socket.setSoTimeout(LinkAuthentication.HANDSHAKE_TIMEOUT_MILLIS);
+        JsonObject hello = JsonParser.parseString(LinkAuthentication.readLine(socket.getInputStream())).getAsJsonObject();
+        socket.setSoTimeout(0);
+
+        String node = hello.has("node") ? hello.get("node").getAsString() : null;
+        String proof = hello.has("proof") ? hello.get("proof").getAsString() : null;
+        if (!hello.has("type") || !"hello".equals(hello.get("type").getAsString()) || node == null
+                || !settings.getPeers().containsKey(node)
+                || !LinkAuthentication.verify(settings.getSecret(), challenge, node, proof)) {
+            LOGGER.warn("Closing cluster link from {}: it did not start with a valid hello", channel.getRemoteAddress());
+            return null;
+        }
+        return new InboundLink(node);
+    }
+
+    private void applyPresence(InboundLink link, JsonObject presence) {
+        String node = link.node();
+        if (presence.get("snapshot").getAsBoolean())
+            directory.values().removeIf(owner -> owner.node().equals(node));
+
+        for (JsonElement element : presence.getAsJsonArray("changes")) {
+            var change = element.getAsJsonObject();
+            String username = change.get("user").getAsString();
+            if (change.get("online").getAsBoolean())
+                directory.put(username, link);
+            else
+                directory.computeIfPresent(username, (user, owner) -> owner.node().equals(node) ? null : owner);
+        }
+    }
+
+    private void deliver(InboundLink link, JsonObject forwardedMessages) {
+        for (JsonObject forwarded : firstReceipts(link, forwardedMessages)) {
+            var message = gson.fromJson(forwarded, Message.class);
+            var response = messageService.deliverForwarded(message);
+            received.incrementAndGet();
+            if ("SUCCESS".equals(response.get("status").getAsString()))
+                continue;
+
+            undelivered.incrementAndGet();
+            String reason = response.get("message").getAsString();
+            LOGGER.info("Forwarded message for {} not delivered, bouncing it to node {}: {}", message.receiverId(),
+                    link.node(), reason);
+            var origin = links.get(link.node());
+            if (origin == null || !origin.bounce(message, reason))
+                LOGGER.warn("Bounce queue to node {} is full, its sender {} is not told", link.node(), message.senderId());
+        }
+    }
+
+    /**
+     * Tells the sender of a message another node could not deliver, wherever they are logged in now. A sender
+     * that is not logged in anywhere, e.g. a backend sending bulk notifications, is only logged.
+     */
+    private void applyBounces(InboundLink link, JsonObject bounces) {
+        for (JsonObject bounce : firstReceipts(link, bounces)) {
+            var message = gson.fromJson(bounce, Message.class);
+            String reason = bounce.get("reason").getAsString();
+            bounced.incrementAndGet();
+            LOGGER.info("Node {} could not deliver the message from {} to {}: {}", link.node(), message.senderId(),
+                    message.receiverId(), reason);
+            if (localUsers.contains(message.senderId()) || directory.containsKey(message.senderId()))
+                messageService.sendMessage(new Message(message.senderId(), NOTICE_SENDER,
+                        "Message to " + message.receiverId() + " was not delivered: " + reason));
+        }
+    }
+
+    /**
+     * @return the frame's messages that were not received before, over this or an earlier link of the node
+     */
+    private List<JsonObject> firstReceipts(InboundLink link, JsonObject frame) {
+        long incarnation = frame.get("incarnation").getAsLong();
+        var ids = receivedIds.computeIfAbsent(link.node(), node -> new ReceivedIds(4 * settings.getMaxBatchSize()));
+        var firstReceipts = new ArrayList<JsonObject>();
+        for (JsonElement element : frame.getAsJsonArray("messages")) {
+            var message = element.getAsJsonObject();
+            if (ids.add(incarnation, message.get("id").getAsLong()))
+                firstReceipts.add(message);
+            else
+                duplicates.incrementAndGet();
+        }
+        return firstReceipts;
+    }
+
+    /**
+     * One authenticated link from a peer. Compared by identity: the directory entries a link added are
+     * dropped when that link closes, not when an older link of the same node does after it reconnected.
+     */
+    private static final class InboundLink {
+        private final String node;
+
+        InboundLink(String node) {
+            this.node = node;
+        }
+
+        String node() {
+            return node;
+        }
+    }
+
+    /**
+     * The ids last received from one node. A link only sends its last batch again, after reconnecting, so a
+     * window of a few batches catches every repeat. The ids start over with a new incarnation of the link,
+     * i.e. when the node restarted.
+     */
+    private static final class ReceivedIds {
+        private final int window;
+        private final LinkedHashSet<Long> recent = new LinkedHashSet<>();
+        private long incarnation;
+
+        ReceivedIds(int window) {
+            this.window = window;
+        }
+
+        /**
+         * @return false if the id was received before
+         */
+        synchronized boolean add(long incarnation, long id) {
+            if (incarnation != this.incarnation) {
+                this.incarnation = incarnation;
+                recent.clear();
+            }
+            if (!recent.add(id))
+                return false;
+            if (recent.size() > window)
+                recent.remove(recent.iterator().next());
+            return true;
+        }
+    }
+
+    private static void startThread(String name, Runnable task) {
+        var thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
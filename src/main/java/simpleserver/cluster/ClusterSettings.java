@@ -0,0 +1,73 @@
+package simpleserver.cluster;
+
+import lombok.Builder;
+import lombok.Getter;
+import simpleserver.util.ServerConfig;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Getter
+@Builder
+public class ClusterSettings {
+    /** Name of this node, cluster mode is off when empty. */
+    @Builder.Default
+    private final String nodeId = "";
+    /** Interface the cluster port listens on; other nodes must reach it, clients need not. */
+    @Builder.Default
+    private final String bindAddress = "127.0.0.1";
+    @Builder.Default
+    private final int port = 6000;
+    /** Shared by all nodes, proves that a link comes from one of them. Required in cluster mode. */
+    @Builder.Default
+    private final String secret = "";
+    /** The other nodes by name. Every node must list all the others. */
+    @Builder.Default
+    private final Map<String, InetSocketAddress> peers = Map.of();
+    @Builder.Default
+    private final int maxBatchSize = 128;
+    @Builder.Default
+    private final long maxBatchLatencyMillis = 2;
+    @Builder.Default
+    private final int queueCapacity = 10_000;
+    @Builder.Default
+    private final long reconnectDelayMillis = 1000;
+
+    public boolean isEnabled() {
+        return !nodeId.isBlank();
+    }
+
+    public static ClusterSettings fromConfig(ServerConfig config) {
+        return ClusterSettings.builder()
+                .nodeId(config.getString("cluster.nodeId", "").trim())
+                .bindAddress(config.getString("cluster.bindAddress", "127.0.0.1").trim())
+                .port(config.getInt("cluster.port", 6000))
+                .secret(config.getString("cluster.secret", ""))
+                .peers(parsePeers(config.getString("cluster.peers", "")))
+                .maxBatchSize(config.getInt("cluster.batch.maxSize", 128))
+                .maxBatchLatencyMillis(config.getLong("cluster.batch.maxLatencyMillis", 2))
+                .queueCapacity(config.getInt("cluster.queue.capacity", 10_000))
+                .reconnectDelayMillis(config.getLong("cluster.reconnectDelayMillis", 1000))
+                .build();
+    }
+
+    /**
+     * Parses {@code node@host:port} entries separated by commas.
+     */
+    static Map<String, InetSocketAddress> parsePeers(String peers) {
+        var parsed = new LinkedHashMap<String, InetSocketAddress>();
+        for (String peer : peers.split(",")) {
+            if (peer.isBlank())
+                continue;
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at <= 0 || colon < at)
+                throw new IllegalArgumentException("Peer must look like node@host:port, was: " + peer.trim());
+            parsed.put(peer.substring(0, at).trim(), InetSocketAddress.createUnresolved(
+                    peer.substring(at + 1, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim())));
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+}
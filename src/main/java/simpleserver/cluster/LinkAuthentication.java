@@ -0,0 +1,71 @@
+package simpleserver.cluster;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Challenge-response check that a link comes from a node of the cluster. The accepting node sends a random
+ * challenge; the connecting node answers in its hello with an HMAC-SHA256 of the challenge and its node
+ * name, keyed with the shared {@code cluster.secret}. The secret itself never goes over the wire and a
+ * recorded hello is of no use for another link.
+ * <p>
+ * Only the connecting side is authenticated and the links are not encrypted, so the cluster port belongs
+ * on a private network.
+ */
+final class LinkAuthentication {
+    static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_HANDSHAKE_LINE = 1024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private LinkAuthentication() {
+    }
+
+    static String newChallenge() {
+        var bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    static String proof(String secret, String challenge, String node) {
+        try {
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update(challenge.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) '\n');
+            mac.update(node.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(mac.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    static boolean verify(String secret, String challenge, String node, String proof) {
+        return proof != null && MessageDigest.isEqual(proof(secret, challenge, node).getBytes(StandardCharsets.UTF_8),
+                proof.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads one handshake line byte by byte, so nothing after it is consumed.
+     */
+    static String readLine(InputStream in) throws IOException {
+        var line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0)
+                throw new EOFException("Link closed during the handshake");
+            if (line.size() == MAX_HANDSHAKE_LINE)
+                throw new IOException("Handshake line longer than " + MAX_HANDSHAKE_LINE + " bytes");
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,267 @@
+package simpleserver.cluster;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import simpleserver.dto.Message;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Outgoing connection to one peer node. Forwarded messages and presence changes are queued and written by
+ * the link's own thread in batches: after the first item it waits up to the batch latency for more, then
+ * writes all messages as one line and all presence changes as another. After connecting, and whenever a
+ * presence change could not be queued, the link sends the full list of local users instead. Bounces, the
+ * messages the peer forwarded here that could not be delivered, go back to it the same way.
+ * <p>
+ * A batch that could not be written is sent again after reconnecting. Forwarded messages and bounces are
+ * therefore numbered, per incarnation of the link, so the peer can drop what it already received.
+ */
+class PeerLink implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeerLink.class);
+
+    private final Gson gson = new Gson();
+    private final String localNode;
+    private final String peerNode;
+    private final InetSocketAddress address;
+    private final ClusterSettings settings;
+    private final Supplier<Collection<String>> localUsers;
+    private final ArrayBlockingQueue<Object> outbox;
+    private final List<Object> batch = new ArrayList<>();
+    private final long incarnation = ThreadLocalRandom.current().nextLong();
+    private long nextId = 1;
+    private volatile boolean snapshotNeeded = true;
+    private SocketChannel channel;
+
+    PeerLink(String localNode, String peerNode, InetSocketAddress address, ClusterSettings settings,
+             Supplier<Collection<String>> localUsers) {
+        this.localNode = localNode;
+        this.peerNode = peerNode;
+        this.address = address;
+        this.settings = settings;
+        this.localUsers = localUsers;
+        this.outbox = new ArrayBlockingQueue<>(settings.getQueueCapacity());
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    boolean forward(Message message) {
+        return outbox.offer(message);
+    }
+
+    /**
+     * Tells the peer that a message it forwarded could not be delivered.
+     *
+     * @return false if the queue is full
+     */
+    boolean bounce(Message message, String reason) {
+        return outbox.offer(new Bounce(message, reason));
+    }
+
+    void publishPresence(String username, boolean online) {
+        if (!outbox.offer(new PresenceChange(username, online)))
+            snapshotNeeded = true;
+    }
+
+    int getQueueDepth() {
+        return outbox.size();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                if (channel == null)
+                    connect();
+                if (snapshotNeeded) {
+                    snapshotNeeded = false;
+                    write(snapshot());
+                }
+                if (batch.isEmpty()) {
+                    collectBatch();
+                    numberBatch();
+                }
+                if (!batch.isEmpty()) {
+                    writeBatch();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                LOGGER.info("Link to node {} failed: {}, reconnecting", peerNode, e.toString());
+                disconnect();
+                sleep(settings.getReconnectDelayMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                disconnect();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connects and answers the peer's challenge with a hello, see {@link LinkAuthentication}.
+     */
+    private void connect() throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(address.getHostString(), address.getPort()));
+        snapshotNeeded = true;
+        var socket = channel.socket();
+        socket.setSoTimeout(LinkAuthentication.HANDSHAKE_TIMEOUT_MILLIS);
+        String challenge;
+        try {
+            var frame = JsonParser.parseString(LinkAuthentication.readLine(socket.getInputStream())).getAsJsonObject();
+            challenge = frame.get("challenge").getAsString();
+        } catch (RuntimeException e) {
+            throw new IOException("Node " + peerNode + " did not send a valid challenge: " + e);
+        }
+        var hello = new JsonObject();
+        hello.addProperty("type", "hello");
+        hello.addProperty("node", localNode);
+        hello.addProperty("proof", LinkAuthentication.proof(settings.getSecret(), challenge, localNode));
+        write(hello);
+        LOGGER.info("Connected to node {} at {}:{}", peerNode, address.getHostString(), address.getPort());
+    }
+
+    private void collectBatch() throws InterruptedException {
+        Object first = outbox.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null)
+            return;
+        batch.add(first);
+        outbox.drainTo(batch, settings.getMaxBatchSize() - batch.size());
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getMaxBatchLatencyMillis());
+        while (batch.size() < settings.getMaxBatchSize()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                break;
+            Object next = outbox.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null)
+                break;
+            batch.add(next);
+            outbox.drainTo(batch, settings.getMaxBatchSize() - batch.size());
+        }
+    }
+
+    /**
+     * Numbers the messages and bounces of a new batch. Done once, so a batch sent again keeps its ids.
+     */
+    private void numberBatch() {
+        for (int i = 0; i < batch.size(); i++) {
+            Object item = batch.get(i);
+            if (item instanceof Message || item instanceof Bounce)
+                batch.set(i, new Numbered(nextId++, item));
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        var messages = new JsonArray();
+        var bounces = new JsonArray();
+        var changes = new JsonArray();
+        for (Object item : batch) {
+            if (item instanceof Numbered numbered && numbered.item() instanceof Message message)
+                messages.add(numbered.toJson(gson.toJsonTree(message).getAsJsonObject()));
+            else if (item instanceof Numbered numbered && numbered.item() instanceof Bounce bounce)
+                bounces.add(numbered.toJson(bounce.toJson(gson)));
+            else if (item instanceof PresenceChange change)
+                changes.add(change.toJson());
+        }
+
+        var lines = new StringBuilder();
+        if (!changes.isEmpty())
+            lines.append(presence(changes, false)).append('\n');
+        if (!messages.isEmpty())
+            lines.append(numbered("messages", messages)).append('\n');
+        if (!bounces.isEmpty())
+            lines.append(numbered("bounces", bounces)).append('\n');
+        writeLines(lines.toString());
+    }
+
+    private JsonObject numbered(String type, JsonArray messages) {
+        var frame = new JsonObject();
+        frame.addProperty("type", type);
+        frame.addProperty("incarnation", incarnation);
+        frame.add("messages", messages);
+        return frame;
+    }
+
+    private JsonObject snapshot() {
+        var changes = new JsonArray();
+        for (String username : localUsers.get())
+            changes.add(new PresenceChange(username, true).toJson());
+        return presence(changes, true);
+    }
+
+    private static JsonObject presence(JsonArray changes, boolean snapshot) {
+        var presence = new JsonObject();
+        presence.addProperty("type", "presence");
+        presence.addProperty("snapshot", snapshot);
+        presence.add("changes", changes);
+        return presence;
+    }
+
+    private void write(JsonObject line) throws IOException {
+        writeLines(line + "\n");
+    }
+
+    private void writeLines(String lines) throws IOException {
+        var buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private void disconnect() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Error while closing the link to node {}", peerNode, e);
+        }
+        channel = null;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    record Bounce(Message message, String reason) {
+        JsonObject toJson(Gson gson) {
+            var bounce = gson.toJsonTree(message).getAsJsonObject();
+            bounce.addProperty("reason", reason);
+            return bounce;
+        }
+    }
+
+    record Numbered(long id, Object item) {
+        JsonObject toJson(JsonObject content) {
+            content.addProperty("id", id);
+            return content;
+        }
+    }
+
+    record PresenceChange(String username, boolean online) {
+        JsonObject toJson() {
+            var change = new JsonObject();
+            change.addProperty("user", username);
+            change.addProperty("online", online);
+            return change;
+        }
+    }
+}
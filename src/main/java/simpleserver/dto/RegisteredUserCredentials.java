@@ -1,4 +1,18 @@
 package simpleserver.dto;
 
-public record RegisteredUserCredentials(String username, String password) {
+import simpleserver.client.UserAuthority;
+
+/**
+ * @param authority granted by the server, never taken from the client. Entries saved before authorities
+ *                  existed have none and are treated as {@link UserAuthority#USER}.
+ */
+public record RegisteredUserCredentials(String username, String password, UserAuthority authority) {
+
+    public RegisteredUserCredentials(String username, String password) {
+        this(username, password, UserAuthority.USER);
+    }
+
+    public boolean isAdmin() {
+        return authority == UserAuthority.ADMIN;
+    }
 }
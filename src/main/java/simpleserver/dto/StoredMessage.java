@@ -0,0 +1,8 @@
+package simpleserver.dto;
+
+/**
+ * A message waiting in a mailbox, with the offset of its record in the message log, so that opening it
+ * acknowledges exactly that record.
+ */
+public record StoredMessage(long offset, Message message) {
+}
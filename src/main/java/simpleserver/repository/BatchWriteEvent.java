@@ -0,0 +1,23 @@
+package simpleserver.repository;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("simpleserver.BatchWrite")
+@Label("Message Log Batch Write")
+@Category({"SimpleServer", "Persistence"})
+@Description("The message writer appended a batch of records to the message log")
+@StackTrace(false)
+class BatchWriteEvent extends Event {
+    @Label("Records")
+    long records;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,15 @@
+package simpleserver.repository;
+
+/**
+ * When the message writer forces appended records to the storage device.
+ */
+public enum DurabilityPolicy {
+    /** Never sync explicitly, leave it to the operating system. */
+    NONE,
+    /** Sync at most every {@code message.durability.intervalMillis}. */
+    INTERVAL,
+    /** Sync after every {@code message.durability.records} records. */
+    EVERY_N_RECORDS,
+    /** Sync every batch before the senders are acknowledged. */
+    BEFORE_ACK
+}
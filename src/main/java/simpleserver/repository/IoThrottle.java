@@ -0,0 +1,39 @@
+package simpleserver.repository;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits background disk I/O to a number of bytes per second by sleeping the calling thread once it gets
+ * ahead of its budget. A limit of zero or less disables throttling. An interrupt while sleeping ends the
+ * sleep and is left set on the thread for the caller to act on.
+ */
+class IoThrottle {
+    private final long bytesPerSecond;
+    private long windowStartNanos = System.nanoTime();
+    private long bytesInWindow;
+
+    IoThrottle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void acquire(long bytes) {
+        if (bytesPerSecond <= 0)
+            return;
+
+        bytesInWindow += bytes;
+        long elapsedNanos = System.nanoTime() - windowStartNanos;
+        long budgetNanos = TimeUnit.SECONDS.toNanos(1) * bytesInWindow / bytesPerSecond;
+        if (budgetNanos > elapsedNanos && !Thread.currentThread().isInterrupted()) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(budgetNanos - elapsedNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (elapsedNanos > TimeUnit.SECONDS.toNanos(1)) {
+            windowStartNanos = System.nanoTime();
+            bytesInWindow = 0;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package simpleserver.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Background maintenance of the {@link MessageLog}, run on a single low priority thread.
+ * <p>
+ * Retention deletes whole closed segments, oldest first, once they are older than
+ * {@code message.retention.maxAgeMillis} or while the log is larger than {@code message.retention.maxBytes}.
+ * It stops at the first segment holding records after the compaction horizon, since recovery still replays
+ * those.
+ * <p>
+ * Compaction, when enabled, rewrites closed segments without the messages their recipients have opened.
+ * A message is dropped once an ACK record for it exists; the ACK itself is dropped on a later pass, after its
+ * message is gone, so the log never holds an opened message without its ACK. Segments are only rewritten when
+ * at least {@code message.compaction.minDropRatio} of their records can go, and all compaction I/O is limited
+ * to {@code message.compaction.maxBytesPerSecond} so it does not compete with the writer. Records after the
+ * compaction horizon, the last offset covered by the mailbox snapshot, are never dropped because recovery
+ * still has to replay them.
+ */
+public class LogCleaner implements Runnable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(LogCleaner.class);
+    private static final String COMPACTING_SUFFIX = ".compacting";
+
+    private final MessageLog messageLog;
+    private final PersistenceSettings settings;
+    private volatile LongSupplier compactionHorizon = () -> Long.MAX_VALUE;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "message-log-cleaner");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    public LogCleaner(MessageLog messageLog, PersistenceSettings settings) {
+        this.messageLog = messageLog;
+        this.settings = settings;
+    }
+
+    public void setCompactionHorizon(LongSupplier compactionHorizon) {
+        this.compactionHorizon = compactionHorizon;
+    }
+
+    public void start() {
+        if (settings.getRetentionMaxAgeMillis() <= 0 && settings.getRetentionMaxBytes() <= 0 && !settings.isCompactionEnabled()) {
+            LOGGER.info("Message log retention and compaction are disabled");
+            return;
+        }
+        deleteStaleCompactionFiles();
+
+        long interval = settings.getCleanerIntervalMillis();
+        scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        try {
+            applyRetention();
+            if (settings.isCompactionEnabled())
+                compact();
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.warn("Message log cleanup failed: {}", e.toString());
+        } catch (RuntimeException e) { // would cancel the scheduled runs for good
+            LOGGER.error("Message log cleanup failed, retrying on the next run", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void applyRetention() throws IOException {
+        long maxAge = settings.getRetentionMaxAgeMillis();
+        long maxBytes = settings.getRetentionMaxBytes();
+        List<LogSegment> all = messageLog.segments();
+        long totalBytes = all.stream().mapToLong(LogSegment::getSize).sum();
+        long horizon = compactionHorizon.getAsLong();
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+
+        for (int i = 0; i < all.size() - 1; i++) { // the last segment is the active one
+            LogSegment segment = all.get(i);
+            boolean expired = maxAge > 0 && Files.getLastModifiedTime(segment.getPath()).toMillis() < now - maxAge;
+            boolean overSize = maxBytes > 0 && totalBytes > maxBytes;
+            if (!expired && !overSize)
+                break;
+            long lastOffset = all.get(i + 1).getBaseOffset() - 1;
+            if (lastOffset > horizon) {
+                LOGGER.debug("Retention stops at {}, the mailbox snapshot only covers offsets up to {}",
+                        segment.getPath().getFileName(), horizon);
+                break;
+            }
+
+            messageLog.deleteSegment(segment);
+            totalBytes -= segment.getSize();
+            deleted++;
+        }
+
+        if (deleted > 0)
+            LOGGER.info("Retention deleted {} message log segments, {} bytes remain", deleted, totalBytes);
+    }
+
+    void compact() throws IOException, InterruptedException {
+        List<LogSegment> closed = messageLog.closedSegments();
+        List<LogSegment> all = messageLog.segments();
+        if (closed.isEmpty())
+            return;
+
+        var throttle = new IoThrottle(settings.getCompactionMaxBytesPerSecond());
+        var liveness = scan(all, throttle, compactionHorizon.getAsLong());
+
+        int rewritten = 0;
+        for (LogSegment segment : closed) {
+            long[] counts = new long[2];
+            readThrottled(segment, throttle, record -> {
+                counts[0]++;
+                if (liveness.isDroppable(record))
+                    counts[1]++;
+            });
+
+            if (counts[1] == 0 || (double) counts[1] / counts[0] < settings.getCompactionMinDropRatio())
+                continue;
+
+            if (counts[1] == counts[0])
+                messageLog.deleteSegment(segment);
+            else
+                rewrite(segment, liveness, throttle);
+            rewritten++;
+            LOGGER.debug("Compacted {}: dropped {} of {} records", segment.getPath().getFileName(), counts[1], counts[0]);
+        }
+
+        if (rewritten > 0)
+            LOGGER.info("Compaction rewrote {} message log segments", rewritten);
+    }
+
+    private Liveness scan(List<LogSegment> segments, IoThrottle throttle, long horizon) throws IOException, InterruptedException {
+        var liveness = new Liveness(horizon);
+        for (LogSegment segment : segments) {
+            readThrottled(segment, throttle, record -> {
+                if (record.type() == RecordType.MESSAGE)
+                    liveness.markPresent(record.offset());
+                else if (record.type() == RecordType.ACK)
+                    liveness.markAcked(record.ackedOffset());
+            });
+        }
+        return liveness;
+    }
+
+    private void rewrite(LogSegment segment, Liveness liveness, IoThrottle throttle) throws IOException, InterruptedException {
+        Path compacted = segment.getPath().resolveSibling(segment.getPath().getFileName() + COMPACTING_SUFFIX);
+
+        try (FileChannel output = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            readThrottled(segment, throttle, record -> {
+                if (liveness.isDroppable(record))
+                    return;
+                try {
+                    int size = RecordCodec.encodedSize(record);
+                    if (buffer.remaining() < size)
+                        writeFully(output, buffer);
+                    if (buffer.remaining() < size) {
+                        ByteBuffer large = ByteBuffer.allocate(size);
+                        RecordCodec.encode(record, large);
+                        writeFully(output, large);
+                    } else {
+                        RecordCodec.encode(record, buffer);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            writeFully(output, buffer);
+            output.force(true);
+        }
+
+        messageLog.replaceSegment(segment, compacted);
+    }
+
+    private static void writeFully(FileChannel output, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            output.write(buffer);
+        buffer.clear();
+    }
+
+    private void readThrottled(LogSegment segment, IoThrottle throttle, Consumer<LogRecord> consumer)
+            throws IOException, InterruptedException {
+        segment.read(0, record -> {
+            throttle.acquire(RecordCodec.encodedSize(record));
+            consumer.accept(record);
+        });
+        if (Thread.interrupted())
+            throw new InterruptedException("Compaction interrupted");
+    }
+
+    private void deleteStaleCompactionFiles() {
+        try (Stream<Path> files = Files.list(messageLog.getDirectory())) {
+            for (Path file : files.filter(path -> path.getFileName().toString().endsWith(COMPACTING_SUFFIX)).toList())
+                Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to remove unfinished compaction files: {}", e.toString());
+        }
+    }
+
+    /**
+     * Which messages are still in the log and which have been acknowledged. The messages are numbered in log
+     * order, and their offsets kept sorted by that number, so the sets grow with the messages present rather
+     * than with the span of offsets, which compaction and retention leave full of gaps.
+     */
+    private static class Liveness {
+        private final long horizon;
+        private long[] messageOffsets = new long[1024];
+        private int messageCount;
+        private final BitSet acked = new BitSet();
+
+        Liveness(long horizon) {
+            this.horizon = horizon;
+        }
+
+        /**
+         * Must be called in log order, so the offsets stay sorted.
+         */
+        void markPresent(long offset) {
+            if (messageCount == messageOffsets.length)
+                messageOffsets = Arrays.copyOf(messageOffsets, messageCount * 2);
+            messageOffsets[messageCount++] = offset;
+        }
+
+        void markAcked(long offset) {
+            int index = indexOf(offset);
+            if (index >= 0)
+                acked.set(index);
+        }
+
+        boolean isDroppable(LogRecord record) {
+            if (record.offset() > horizon)
+                return false;
+            if (record.type() == RecordType.MESSAGE) {
+                int index = indexOf(record.offset());
+                return index >= 0 && acked.get(index);
+            }
+            return indexOf(record.ackedOffset()) < 0;
+        }
+
+        /**
+         * @return the message's number, negative if it is not in the log
+         */
+        private int indexOf(long offset) {
+            return Arrays.binarySearch(messageOffsets, 0, messageCount, offset);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package simpleserver.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * One user's records from the {@link MessageLog}, ready to be copied out. The bytes are the records exactly as
+ * stored, length-prefixed and checksummed (see {@link RecordCodec}), in offset order, so saved to a file named
+ * like a segment they can be read back with {@link MessageLogExporter}.
+ * <p>
+ * The records are never decoded: {@link #transferTo} hands the file ranges to
+ * {@link FileChannel#transferTo}, which for a socket lets the kernel copy them straight from the page cache.
+ */
+public class LogExport implements Closeable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(LogExport.class);
+
+    private final List<Part> parts;
+
+    LogExport(List<Part> parts) {
+        this.parts = parts;
+    }
+
+    public long getRecords() {
+        return parts.stream().mapToLong(part -> part.runs().getRecords()).sum();
+    }
+
+    public long getBytes() {
+        return parts.stream().mapToLong(part -> part.runs().getBytes()).sum();
+    }
+
+    /**
+     * Writes all records to the target. Through a channel that is not a plain socket or file, e.g. TLS, the
+     * JDK falls back to copying through a small buffer.
+     *
+     * @return the number of bytes written, always {@link #getBytes()}
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        for (Part part : parts) {
+            var runs = part.runs();
+            for (int run = 0; run < runs.count(); run++) {
+                long position = runs.position(run);
+                long remaining = runs.length(run);
+                while (remaining > 0) {
+                    long written = part.channel().transferTo(position, remaining, target);
+                    if (written == 0)
+                        throw new EOFException("Segment ended before the indexed records");
+                    position += written;
+                    remaining -= written;
+                    transferred += written;
+                }
+            }
+        }
+        return transferred;
+    }
+
+    @Override
+    public void close() {
+        for (Part part : parts) {
+            try {
+                part.channel().close();
+            } catch (IOException e) {
+                LOGGER.debug("Error while closing an exported segment: {}", e.toString());
+            }
+        }
+    }
+
+    /**
+     * The user's runs in one segment file, with the file they were indexed from.
+     */
+    record Part(FileChannel channel, SegmentIndex.Runs runs) {
+    }
+}
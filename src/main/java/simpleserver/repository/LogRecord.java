@@ -0,0 +1,21 @@
+package simpleserver.repository;
+
+import simpleserver.dto.Message;
+
+/**
+ * A single entry of the {@link MessageLog}. Offsets are assigned in the order records are queued
+ * for writing and never reused.
+ * <p>
+ * A {@link RecordType#MESSAGE} record holds a sent message. A {@link RecordType#ACK} record marks the
+ * message at {@code ackedOffset} as opened by its recipient; only the recipient is set in its message.
+ */
+public record LogRecord(long offset, long timestamp, RecordType type, Message message, long ackedOffset) {
+
+    public static LogRecord message(long offset, Message message) {
+        return new LogRecord(offset, System.currentTimeMillis(), RecordType.MESSAGE, message, -1);
+    }
+
+    public static LogRecord ack(long offset, String receiverId, long ackedOffset) {
+        return new LogRecord(offset, System.currentTimeMillis(), RecordType.ACK, new Message(receiverId, null, null), ackedOffset);
+    }
+}
@@ -0,0 +1,136 @@
+package simpleserver.repository;
+
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * One file of the {@link MessageLog}. The file name is the offset of its first record, so segments
+ * sort by name and a reader can skip whole files that end before the offset it is looking for.
+ */
+@Getter
+class LogSegment {
+    static final String SUFFIX = ".log";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final long baseOffset;
+    private volatile long size;
+    private SegmentIndex index;
+
+    LogSegment(Path path, long baseOffset, long size) {
+        this.path = path;
+        this.baseOffset = baseOffset;
+        this.size = size;
+    }
+
+    static Path pathFor(Path directory, long baseOffset) {
+        return directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+    }
+
+    static boolean isSegmentFile(Path path) {
+        return path.getFileName().toString().endsWith(SUFFIX);
+    }
+
+    static long parseBaseOffset(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Lists the segments of a log directory in offset order without modifying them.
+     */
+    static List<LogSegment> list(Path directory) throws IOException {
+        List<LogSegment> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(LogSegment::isSegmentFile).toList())
+                segments.add(new LogSegment(file, parseBaseOffset(file), Files.size(file)));
+        }
+        segments.sort(Comparator.comparingLong(LogSegment::getBaseOffset));
+        return segments;
+    }
+
+    void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Opens the file for exporting the user's records and looks up where they are, indexing the file on
+     * first use and whatever was appended since. Runs under the segment's lock, like {@link #replaced}, so
+     * the returned channel and runs always belong to the same file.
+     *
+     * @return null if the user has no records in this segment
+     */
+    synchronized LogExport.Part openForExport(String username) throws IOException {
+        long currentSize = size;
+        if (index != null && index.getIndexedBytes() == currentSize && !index.contains(username))
+            return null;
+
+        var channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (index == null)
+                index = new SegmentIndex();
+            index.extend(channel, currentSize);
+            var runs = index.runsOf(username);
+            if (runs.count() > 0)
+                return new LogExport.Part(channel, runs);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Called once the file has been swapped for a rewritten copy, under the segment's lock.
+     */
+    synchronized void replaced(long newSize) {
+        size = newSize;
+        index = null;
+    }
+
+    /**
+     * Reads records from the start of the file, passing every valid record with an offset of at least
+     * {@code fromOffset} to the consumer. Stops at the end of the file or at the first torn or corrupt
+     * record, whichever comes first.
+     *
+     * @return the number of bytes occupied by valid records
+     */
+    long read(long fromOffset, Consumer<LogRecord> consumer) throws IOException {
+        long validBytes = 0;
+
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), READ_BUFFER_SIZE))) {
+            while (true) {
+                int length = input.readInt();
+                int crc = input.readInt();
+                if (!RecordCodec.isValidBodyLength(length))
+                    break;
+
+                byte[] body = new byte[length];
+                input.readFully(body);
+                LogRecord record = RecordCodec.decode(ByteBuffer.wrap(body), crc);
+
+                validBytes += RecordCodec.HEADER_SIZE + length;
+                if (record.offset() >= fromOffset)
+                    consumer.accept(record);
+            }
+        } catch (EOFException | RecordCodec.CorruptRecordException e) {
+            // end of the valid part of the segment
+        }
+        return validBytes;
+    }
+}
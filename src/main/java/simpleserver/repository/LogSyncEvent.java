@@ -0,0 +1,18 @@
+package simpleserver.repository;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("simpleserver.LogSync")
+@Label("Message Log Sync")
+@Category({"SimpleServer", "Persistence"})
+@Description("The message log was forced to the storage device")
+@StackTrace(false)
+class LogSyncEvent extends Event {
+    @Label("Records")
+    long records;
+}
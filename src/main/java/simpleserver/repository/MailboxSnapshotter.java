@@ -0,0 +1,98 @@
+package simpleserver.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a snapshot of the unread mailboxes next to the {@link MessageLog}. The snapshotter follows the log on
+ * its own thread, applying new records to a private {@link MailboxState} and writing it out periodically, so
+ * it never has to lock the live mailboxes and the snapshot is always exactly the log up to its
+ * {@code lastOffset}. On startup the snapshot is loaded and only the records written after it are replayed.
+ */
+public class MailboxSnapshotter implements Runnable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(MailboxSnapshotter.class);
+
+    private final MessageLog messageLog;
+    private final Path snapshotPath;
+    private final long intervalMillis;
+    private MailboxState state;
+    private volatile long snapshotOffset = -1;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "mailbox-snapshotter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MailboxSnapshotter(MessageLog messageLog, Path snapshotPath, long intervalMillis) {
+        this.messageLog = messageLog;
+        this.snapshotPath = snapshotPath;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Loads the last snapshot and replays the log written after it. Must be called before the message writer
+     * starts.
+     */
+    public MailboxState recover() throws IOException {
+        long start = System.nanoTime();
+        state = loadSnapshot();
+        long snapshotOffset = state.getLastOffset();
+
+        messageLog.read(snapshotOffset + 1, state::apply);
+        if (state.isModified())
+            state.write(snapshotPath);
+        this.snapshotOffset = state.getLastOffset();
+
+        LOGGER.info("Recovered {} unread messages from snapshot at offset {} and log up to offset {} in {}ms",
+                state.getMessageCount(), snapshotOffset, state.getLastOffset(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return state;
+    }
+
+    /**
+     * The last offset covered by the snapshot on disk. Records after it are needed for the next recovery.
+     */
+    public long getSnapshotOffset() {
+        return snapshotOffset;
+    }
+
+    public void start() {
+        if (state == null)
+            throw new IllegalStateException("recover() must be called before start()");
+        scheduler.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        try {
+            messageLog.read(state.getLastOffset() + 1, state::apply);
+            if (state.isModified()) {
+                state.write(snapshotPath);
+                snapshotOffset = state.getLastOffset();
+                LOGGER.debug("Wrote mailbox snapshot at offset {}", state.getLastOffset());
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to write mailbox snapshot: {}", e.toString());
+        }
+    }
+
+    private MailboxState loadSnapshot() {
+        if (!Files.exists(snapshotPath)) {
+            LOGGER.info("No mailbox snapshot found, replaying the whole message log");
+            return new MailboxState();
+        }
+        try {
+            return MailboxState.read(snapshotPath);
+        } catch (IOException e) {
+            LOGGER.warn("Discarding unreadable mailbox snapshot, replaying the whole message log: {}", e.toString());
+            return new MailboxState();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package simpleserver.repository;
+
+import simpleserver.dto.Message;
+import simpleserver.dto.StoredMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Unread messages per recipient as derived from the {@link MessageLog}: every MESSAGE record adds to its
+ * recipient's mailbox and every ACK record removes the message it names. {@code lastOffset} is the offset
+ * of the last record applied, so the state can be brought up to date by applying the records after it.
+ * <p>
+ * Snapshot file layout: int version, long lastOffset, int mailbox count, then per mailbox the recipient and
+ * a count of (long offset, senderId, message) entries, followed by a CRC32C of everything before it. Strings
+ * are written like in {@link RecordCodec}.
+ */
+public class MailboxState {
+    private static final int VERSION = 1;
+
+    private final HashMap<String, LinkedHashMap<Long, Message>> mailboxes = new HashMap<>();
+    private long lastOffset = -1;
+    private boolean modified;
+
+    public long getLastOffset() {
+        return lastOffset;
+    }
+
+    boolean isModified() {
+        return modified;
+    }
+
+    void apply(LogRecord record) {
+        if (record.offset() <= lastOffset)
+            return;
+
+        String receiverId = record.message().receiverId();
+        if (record.type() == RecordType.MESSAGE) {
+            mailboxes.computeIfAbsent(receiverId, receiver -> new LinkedHashMap<>()).put(record.offset(), record.message());
+        } else if (record.type() == RecordType.ACK) {
+            var mailbox = mailboxes.get(receiverId);
+            if (mailbox != null) {
+                mailbox.remove(record.ackedOffset());
+                if (mailbox.isEmpty())
+                    mailboxes.remove(receiverId);
+            }
+        }
+        lastOffset = record.offset();
+        modified = true;
+    }
+
+    /**
+     * Unread messages per recipient with their offsets, oldest first.
+     */
+    public Map<String, List<StoredMessage>> unreadMessages() {
+        Map<String, List<StoredMessage>> unread = new HashMap<>();
+        mailboxes.forEach((receiver, mailbox) -> {
+            var messages = new ArrayList<StoredMessage>(mailbox.size());
+            mailbox.forEach((offset, message) -> messages.add(new StoredMessage(offset, message)));
+            unread.put(receiver, messages);
+        });
+        return unread;
+    }
+
+    public int getMessageCount() {
+        return mailboxes.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and moves it over {@code path}, so a crash leaves either the
+     * old or the new snapshot in place.
+     */
+    void write(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        var crc = new CRC32C();
+
+        try (var output = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)), crc))) {
+            output.writeInt(VERSION);
+            output.writeLong(lastOffset);
+            output.writeInt(mailboxes.size());
+            for (var mailbox : mailboxes.entrySet()) {
+                writeString(output, mailbox.getKey());
+                output.writeInt(mailbox.getValue().size());
+                for (var entry : mailbox.getValue().entrySet()) {
+                    output.writeLong(entry.getKey());
+                    writeString(output, entry.getValue().senderId());
+                    writeString(output, entry.getValue().message());
+                }
+            }
+            output.flush();
+            output.writeInt((int) crc.getValue());
+        }
+
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        modified = false;
+    }
+
+    /**
+     * @throws IOException if the file can't be read or fails its checksum
+     */
+    static MailboxState read(Path path) throws IOException {
+        var state = new MailboxState();
+        var crc = new CRC32C();
+
+        try (var input = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(path)), crc))) {
+            if (input.readInt() != VERSION)
+                throw new IOException("Unsupported snapshot version");
+            state.lastOffset = input.readLong();
+
+            int mailboxCount = input.readInt();
+            for (int i = 0; i < mailboxCount; i++) {
+                String receiverId = readString(input);
+                var mailbox = new LinkedHashMap<Long, Message>();
+                int messageCount = input.readInt();
+                for (int j = 0; j < messageCount; j++)
+                    mailbox.put(input.readLong(), new Message(receiverId, readString(input), readString(input)));
+                state.mailboxes.put(receiverId, mailbox);
+            }
+
+            int expectedCrc = (int) crc.getValue();
+            if (input.readInt() != expectedCrc)
+                throw new IOException("Snapshot checksum mismatch");
+        }
+        return state;
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0)
+            return null;
+        if (length > RecordCodec.MAX_BODY_SIZE)
+            throw new IOException("Corrupt snapshot, string of " + length + " bytes");
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,246 @@
+package simpleserver.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Append-only message log stored as a directory of segment files. Records are length-prefixed and
+ * checksummed (see {@link RecordCodec}); a new segment is started once the active one would grow past
+ * {@code segmentMaxBytes}. Only the last segment can contain a torn write, so opening the log only
+ * scans that segment and truncates it after the last valid record.
+ * <p>
+ * Appends must come from a single thread. Reads may run concurrently with appends.
+ */
+public class MessageLog implements Closeable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(MessageLog.class);
+
+    private final Path directory;
+    private final long segmentMaxBytes;
+    private final List<LogSegment> segments = new CopyOnWriteArrayList<>();
+    private LogSegment activeSegment;
+    private FileChannel activeChannel;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(64 * 1024);
+    private volatile long nextOffset;
+
+    private MessageLog(Path directory, long segmentMaxBytes) {
+        this.directory = directory;
+        this.segmentMaxBytes = segmentMaxBytes;
+    }
+
+    public static MessageLog open(Path directory, long segmentMaxBytes) throws IOException {
+        var log = new MessageLog(directory, segmentMaxBytes);
+        log.recover();
+        return log;
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+
+        segments.addAll(LogSegment.list(directory));
+        if (segments.isEmpty()) {
+            nextOffset = 0;
+            roll(0);
+            LOGGER.info("Created new message log in {}", directory);
+            return;
+        }
+
+        LogSegment last = segments.get(segments.size() - 1);
+        long[] lastOffset = {last.getBaseOffset() - 1};
+        long validBytes = last.read(0, record -> lastOffset[0] = record.offset());
+
+        activeSegment = last;
+        activeChannel = FileChannel.open(last.getPath(), StandardOpenOption.WRITE);
+        if (validBytes < last.getSize()) {
+            LOGGER.warn("Truncating {} from {} to {} bytes after a torn or corrupt record",
+                    last.getPath().getFileName(), last.getSize(), validBytes);
+            activeChannel.truncate(validBytes);
+            activeChannel.force(true);
+        }
+        last.setSize(validBytes);
+        nextOffset = lastOffset[0] + 1;
+
+        LOGGER.info("Recovered message log with {} segments, next offset {}", segments.size(), nextOffset);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * The offset that the next appended record is expected to carry.
+     */
+    public long nextOffset() {
+        return nextOffset;
+    }
+
+    List<LogSegment> segments() {
+        return new ArrayList<>(segments);
+    }
+
+    /**
+     * Segments that no longer receive appends, oldest first. These can be deleted or rewritten while the
+     * writer keeps appending to the active segment.
+     */
+    List<LogSegment> closedSegments() {
+        List<LogSegment> snapshot = segments();
+        return snapshot.subList(0, Math.max(0, snapshot.size() - 1));
+    }
+
+    void deleteSegment(LogSegment segment) throws IOException {
+        segments.remove(segment);
+        Files.deleteIfExists(segment.getPath());
+        LOGGER.debug("Deleted message log segment {}", segment.getPath().getFileName());
+    }
+
+    /**
+     * Atomically swaps a closed segment's file for a rewritten copy with the same base offset. The original
+     * modification time is kept so that time based retention still sees the age of the records.
+     */
+    void replaceSegment(LogSegment segment, Path rewrittenFile) throws IOException {
+        long size = Files.size(rewrittenFile);
+        FileTime lastModified = Files.getLastModifiedTime(segment.getPath());
+        synchronized (segment) { // not while an export opens the file and looks up its index
+            Files.move(rewrittenFile, segment.getPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            segment.replaced(size);
+        }
+        Files.setLastModifiedTime(segment.getPath(), lastModified);
+    }
+
+    /**
+     * Appends the records in the given order.
+     *
+     * @return the number of bytes written
+     * @throws RecordCodec.RecordTooLargeException if a record's body is larger than readers accept; it is not
+     *                                             written, nor the records after it
+     */
+    public long append(List<LogRecord> records) throws IOException {
+        writeBuffer.clear();
+        long pendingBytes = 0;
+        long writtenBytes = 0;
+
+        for (LogRecord record : records) {
+            int recordSize = RecordCodec.encodedSize(record);
+            if (recordSize - RecordCodec.HEADER_SIZE > RecordCodec.MAX_BODY_SIZE) {
+                writePending();
+                throw new RecordCodec.RecordTooLargeException(record.offset(), recordSize - RecordCodec.HEADER_SIZE);
+            }
+
+            if (activeSegment.getSize() + pendingBytes > 0
+                    && activeSegment.getSize() + pendingBytes + recordSize > segmentMaxBytes) {
+                writePending();
+                writtenBytes += pendingBytes;
+                pendingBytes = 0;
+                roll(record.offset());
+            }
+            if (writeBuffer.remaining() < recordSize)
+                growWriteBuffer(recordSize);
+
+            RecordCodec.encode(record, writeBuffer);
+            pendingBytes += recordSize;
+            nextOffset = record.offset() + 1;
+        }
+        writePending();
+        return writtenBytes + pendingBytes;
+    }
+
+    /**
+     * Forces everything appended so far to the storage device.
+     */
+    public void flush() throws IOException {
+        activeChannel.force(false);
+    }
+
+    /**
+     * Passes every record with an offset of at least {@code fromOffset} to the consumer, in offset order.
+     * Segments that end before {@code fromOffset} are skipped without being opened.
+     */
+    public void read(long fromOffset, Consumer<LogRecord> consumer) throws IOException {
+        List<LogSegment> snapshot = segments();
+        for (int i = 0; i < snapshot.size(); i++) {
+            boolean hasNext = i + 1 < snapshot.size();
+            if (hasNext && snapshot.get(i + 1).getBaseOffset() <= fromOffset)
+                continue;
+            try {
+                snapshot.get(i).read(fromOffset, consumer);
+            } catch (NoSuchFileException e) {
+                LOGGER.debug("Segment {} was removed by retention while reading", snapshot.get(i).getPath().getFileName());
+            }
+        }
+    }
+
+    /**
+     * Opens every segment holding records the user received or sent, for copying them out unchanged. The
+     * export covers what was appended before this call; the files stay open, and readable even if retention
+     * or compaction deletes or replaces them meanwhile, until the export is closed.
+     */
+    public LogExport export(String username) throws IOException {
+        List<LogExport.Part> parts = new ArrayList<>();
+        try {
+            for (LogSegment segment : segments()) {
+                try {
+                    var part = segment.openForExport(username);
+                    if (part != null)
+                        parts.add(part);
+                } catch (NoSuchFileException e) {
+                    LOGGER.debug("Segment {} was removed by retention before exporting", segment.getPath().getFileName());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            new LogExport(parts).close();
+            throw e;
+        }
+        return new LogExport(parts);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (activeChannel != null && activeChannel.isOpen()) {
+            activeChannel.force(true);
+            activeChannel.close();
+        }
+    }
+
+    private void writePending() throws IOException {
+        writeBuffer.flip();
+        long position = activeSegment.getSize();
+        while (writeBuffer.hasRemaining())
+            position += activeChannel.write(writeBuffer, position);
+        activeSegment.setSize(position);
+        writeBuffer.clear();
+    }
+
+    private void growWriteBuffer(int recordSize) {
+        var larger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + recordSize));
+        writeBuffer.flip();
+        larger.put(writeBuffer);
+        writeBuffer = larger;
+    }
+
+    private void roll(long baseOffset) throws IOException {
+        if (activeChannel != null) {
+            activeChannel.force(true);
+            activeChannel.close();
+        }
+
+        Path path = LogSegment.pathFor(directory, baseOffset);
+        activeChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        activeSegment = new LogSegment(path, baseOffset, 0);
+        segments.add(activeSegment);
+        LOGGER.debug("Rolled message log to new segment {}", path.getFileName());
+    }
+}
@@ -0,0 +1,70 @@
+package simpleserver.repository;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Command line tool that dumps the binary message log as a JSON array for human inspection.
+ * <p>
+ * Usage: {@code MessageLogExporter [logDirectory] [outputFile]}. Without an output file the JSON is
+ * written to standard output.
+ */
+public class MessageLogExporter {
+
+    public static void main(String[] args) throws IOException {
+        Path logDirectory = Paths.get(args.length > 0 ? args[0] : "messages");
+        if (!Files.isDirectory(logDirectory)) {
+            System.err.println("Message log directory not found: " + logDirectory);
+            System.exit(1);
+        }
+
+        try (Writer output = args.length > 1
+                ? Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)
+                : new OutputStreamWriter(System.out, StandardCharsets.UTF_8)) {
+            export(logDirectory, output);
+        }
+    }
+
+    public static void export(Path logDirectory, Writer output) throws IOException {
+        var json = new JsonWriter(output);
+        json.setIndent("  ");
+        json.beginArray();
+
+        try {
+            for (LogSegment segment : LogSegment.list(logDirectory))
+                segment.read(0, record -> writeRecord(json, record));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        json.endArray();
+        json.flush();
+    }
+
+    private static void writeRecord(JsonWriter json, LogRecord record) {
+        try {
+            json.beginObject();
+            json.name("offset").value(record.offset());
+            json.name("timestamp").value(record.timestamp());
+            json.name("type").value(record.type().toString());
+            json.name("receiverId").value(record.message().receiverId());
+            if (record.type() == RecordType.ACK) {
+                json.name("ackedOffset").value(record.ackedOffset());
+            } else {
+                json.name("senderId").value(record.message().senderId());
+                json.name("message").value(record.message().message());
+            }
+            json.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
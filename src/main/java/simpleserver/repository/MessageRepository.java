@@ -1,89 +1,410 @@
 package simpleserver.repository;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import lombok.Getter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import simpleserver.dto.Message;
 
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Persists sent messages to the {@link MessageLog} on a dedicated writer thread. The writer blocks until
+ * a message arrives, then collects everything else that is queued (up to {@code maxBatchSize}, waiting at
+ * most {@code maxBatchLatencyMillis} for more) and appends the whole batch with a single write.
+ * <p>
+ * When the log is synced is decided by the {@link DurabilityPolicy}. With {@link DurabilityPolicy#BEFORE_ACK}
+ * every batch is synced once before the futures of its records complete, so concurrent senders share
+ * a single fsync.
+ * <p>
+ * The write queue is bounded. When it is full the {@link OverloadPolicy} decides whether the sender waits,
+ * is rejected with {@link PersistenceBusyException}, or has its record parked in an overflow buffer that
+ * the writer moves back into the queue as space frees up.
+ */
 public class MessageRepository implements Runnable {
     private final static Logger LOGGER = LoggerFactory.getLogger(MessageRepository.class);
 
-    private final ArrayBlockingQueue<Message> messagesToSave;
-    private final String filePath;
+    private final ArrayBlockingQueue<PendingRecord> messagesToSave;
+    private final ArrayDeque<PendingRecord> spilledMessages = new ArrayDeque<>();
+    private final ReentrantLock enqueueLock = new ReentrantLock();
+    private final Condition spaceAvailable = enqueueLock.newCondition();
+    private final ReentrantLock writingLock = new ReentrantLock();
+    private final MessageLog messageLog;
+    private final PersistenceSettings settings;
+    private long nextOffset;
+    @Getter
+    private final WriteStatistics statistics = new WriteStatistics();
+    @Getter
+    private final QueueStatistics queueStatistics;
+    private volatile Thread writerThread;
 
-    public MessageRepository(String filePath) {
-        messagesToSave = new ArrayBlockingQueue<>(50);
-        this.filePath = filePath;
-        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdownFormatting));
+    private long unsyncedRecords;
+    private long lastSyncNanos = System.nanoTime();
+
+    public MessageRepository(MessageLog messageLog) {
+        this(messageLog, PersistenceSettings.builder().build());
+    }
+
+    public MessageRepository(MessageLog messageLog, PersistenceSettings settings) {
+        this.messagesToSave = new ArrayBlockingQueue<>(settings.getQueueCapacity());
+        this.messageLog = messageLog;
+        this.settings = settings;
+        this.nextOffset = messageLog.nextOffset();
+        this.queueStatistics = new QueueStatistics(this::queueDepth, settings.getQueueCapacity());
+    }
+
+    /**
+     * Writes what is still queued when the JVM exits. Left to the server, so repositories created and
+     * dropped again, e.g. by tests, do not leave hooks behind.
+     */
+    public void registerShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
     }
 
 
-    public void saveMessage(Message message) {
+    /**
+     * Queues a message for writing.
+     *
+     * @return the record's offset, and a future completed with it once the record has been written, and synced
+     * if the durability policy requires it before acknowledging
+     * @throws PersistenceBusyException if the queue is saturated and the overload policy gave up on the message
+     * @throws RecordCodec.RecordTooLargeException if the message does not fit in a record
+     */
+    public QueuedRecords saveMessage(Message message) {
         LOGGER.debug("Received message to save: {}", message);
-        messagesToSave.add(message);
+        return enqueueMessages(List.of(message));
     }
 
-    @Override
-    public void run() {
-        while (true) {
-            while (!messagesToSave.isEmpty()) {
-                LOGGER.debug("MessageRepository has a message to save");
+    /**
+     * Queues several messages, e.g. of a bulk request, to be written together: they get consecutive offsets,
+     * take a single place in the write queue and are appended to the log with one write.
+     *
+     * @return the offset of the first message, and a future completed with the offset of the last one once all
+     * of them have been written, and synced if the durability policy requires it before acknowledging
+     * @throws PersistenceBusyException if the queue is saturated and the overload policy gave up on the messages
+     * @throws RecordCodec.RecordTooLargeException if one of the messages does not fit in a record; none is saved
+     */
+    public QueuedRecords saveMessages(List<Message> messages) {
+        if (messages.isEmpty())
+            throw new IllegalArgumentException("No messages to save");
+        LOGGER.debug("Received {} messages to save", messages.size());
+        return enqueueMessages(messages);
+    }
 
-                try (FileWriter fw = new FileWriter(filePath, true)) {
-                    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private QueuedRecords enqueueMessages(List<Message> messages) {
+        for (Message message : messages) {
+            if (!RecordCodec.fits(message))
+                throw new RecordCodec.RecordTooLargeException("Message from " + message.senderId() + " to "
+                        + message.receiverId() + " is larger than a record may be");
+        }
+        long blockDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getBlockMillis());
+        boolean waited = false;
 
-                    String json = gson.toJson(messagesToSave.take());
-                    fw.write(json + ',');
+        enqueueLock.lock();
+        try {
+            while (true) {
+                var pending = new PendingRecord(messageRecords(messages, nextOffset), new CompletableFuture<>());
+                if (tryEnqueue(pending)) {
+                    long firstOffset = nextOffset;
+                    nextOffset += messages.size();
+                    queueStatistics.recordEnqueued(queueDepth());
+                    return new QueuedRecords(firstOffset, pending.persisted());
+                }
 
-                    fw.close();
-                    LOGGER.info("Saved message to file successfully!");
-                } catch (IOException | InterruptedException e) {
-                    LOGGER.warn("File not found, or thread interrupted!: {}", e.toString());
+                long remaining = blockDeadline - System.nanoTime();
+                if (settings.getOverloadPolicy() != OverloadPolicy.BLOCK || remaining <= 0)
+                    break;
+                if (!waited) {
+                    queueStatistics.recordBlocked();
+                    waited = true;
                 }
+                spaceAvailable.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            enqueueLock.unlock();
+        }
+
+        queueStatistics.recordRejected();
+        LOGGER.info("Persistence queue saturated, rejecting message: {}", queueStatistics);
+        throw new PersistenceBusyException("Message queue is full");
+    }
+
+    private static List<LogRecord> messageRecords(List<Message> messages, long firstOffset) {
+        if (messages.size() == 1)
+            return List.of(LogRecord.message(firstOffset, messages.get(0)));
+        var records = new ArrayList<LogRecord>(messages.size());
+        for (int i = 0; i < messages.size(); i++)
+            records.add(LogRecord.message(firstOffset + i, messages.get(i)));
+        return records;
+    }
+
+    /**
+     * Records that the recipient opened the message saved at {@code messageOffset}, so that the message can be
+     * dropped by compaction. Acknowledgements are best effort: when the queue is saturated the acknowledgement
+     * is dropped and the message is simply kept on disk.
+     */
+    public void acknowledgeMessage(String receiverId, long messageOffset) {
+        enqueueLock.lock();
+        try {
+            var pending = new PendingRecord(List.of(LogRecord.ack(nextOffset, receiverId, messageOffset)), new CompletableFuture<>());
+            if (tryEnqueue(pending)) {
+                nextOffset++;
+                queueStatistics.recordEnqueued(queueDepth());
+            } else {
+                LOGGER.info("Persistence queue saturated, not recording acknowledgement for {}", receiverId);
             }
+        } finally {
+            enqueueLock.unlock();
         }
     }
 
+    private boolean tryEnqueue(PendingRecord pending) {
+        if (spilledMessages.isEmpty() && messagesToSave.offer(pending))
+            return true;
+
+        if (settings.getOverloadPolicy() == OverloadPolicy.SPILL && spilledMessages.size() < settings.getSpillCapacity()) {
+            spilledMessages.add(pending);
+            queueStatistics.recordSpilled();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves spilled records back into the write queue, oldest first, and wakes senders waiting for space.
+     * Called by the writer before it waits for the next batch, so the queue is never empty while records
+     * are still spilled, and whenever it has taken records off the queue, so senders blocked on a full queue
+     * do not wait for the whole batch to be collected and written.
+     */
+    private void releaseSpace() {
+        enqueueLock.lock();
+        try {
+            while (!spilledMessages.isEmpty() && messagesToSave.offer(spilledMessages.peek()))
+                spilledMessages.poll();
+            spaceAvailable.signalAll();
+        } finally {
+            enqueueLock.unlock();
+        }
+    }
+
+    private int queueDepth() {
+        return messagesToSave.size() + spilledMessages.size();
+    }
+
+    /**
+     * Whether senders have to wait for {@link #saveMessage(Message)} to complete before they are acknowledged.
+     */
+    public boolean acknowledgesAfterSync() {
+        return settings.getDurabilityPolicy() == DurabilityPolicy.BEFORE_ACK;
+    }
+
+    public long getAckTimeoutMillis() {
+        return settings.getAckTimeoutMillis();
+    }
+
+    /**
+     * Opens the records the user received or sent that have been written to the log so far, see
+     * {@link MessageLog#export}. Messages still waiting in the write queue are not included.
+     */
+    public LogExport exportMessages(String username) throws IOException {
+        return messageLog.export(username);
+    }
+
+    @Override
+    public void run() {
+        writerThread = Thread.currentThread();
+        List<PendingRecord> batch = new ArrayList<>(settings.getMaxBatchSize());
+        List<LogRecord> records = new ArrayList<>(settings.getMaxBatchSize());
 
-    public static void startupFormatting(String filePath) {
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-            long fileLength = file.length();
-            if (fileLength > 0) {
-                file.seek(fileLength - 1);
-                int lastChar = file.readByte();
-                if (lastChar == ']') {
-                    file.setLength(fileLength - 1);
-                    if (file.length() > 1)
-                        file.write(',');
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean collected = collectBatch(batch);
+                writingLock.lock();
+                try {
+                    if (Thread.currentThread().isInterrupted())
+                        break; // interrupted while collecting, the batch is written below
+                    if (collected)
+                        writeBatch(batch, records);
+                    else
+                        trySync();
+                } finally {
+                    writingLock.unlock();
                 }
             }
-            LOGGER.debug("Startup formatting successful");
+        } catch (InterruptedException e) {
+            LOGGER.debug("Message writer interrupted, flushing remaining messages");
+        }
+
+        Thread.interrupted(); // an interrupted thread would close the log's channel on the first write
+        while (true) { // the batch may already hold records if the interrupt came while it was being collected
+            releaseSpace();
+            messagesToSave.drainTo(batch);
+            if (batch.isEmpty())
+                break;
+            writeBatch(batch, records);
+        }
+        try {
+            messageLog.close();
         } catch (IOException e) {
-            LOGGER.warn("Unable to delete ']' from file {}", e.toString());
+            LOGGER.warn("Unable to close the message log: {}", e.toString());
         }
+        LOGGER.info("Message writer stopped: {}; queue: {}", statistics, queueStatistics);
     }
 
-    public void shutdownFormatting() {
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-            long fileLength = file.length();
-            if (fileLength > 0) {
-                file.seek(fileLength - 1);
+    /**
+     * Waits for the next batch. Under {@link DurabilityPolicy#INTERVAL} the wait is cut short when
+     * unsynced records are due to be synced.
+     *
+     * @return false if the wait timed out and nothing was collected
+     */
+    private boolean collectBatch(List<PendingRecord> batch) throws InterruptedException {
+        releaseSpace();
 
-                int lastChar = file.readByte();
-                if (lastChar == ',') {
-                    file.setLength(fileLength - 1);
-                    file.write(']');
-                }
+        PendingRecord first;
+        if (settings.getDurabilityPolicy() == DurabilityPolicy.INTERVAL && unsyncedRecords > 0) {
+            long untilSync = lastSyncNanos + TimeUnit.MILLISECONDS.toNanos(settings.getSyncIntervalMillis()) - System.nanoTime();
+            first = messagesToSave.poll(Math.max(0, untilSync), TimeUnit.NANOSECONDS);
+            if (first == null)
+                return false;
+        } else {
+            first = messagesToSave.take();
+        }
+
+        int maxBatchSize = settings.getMaxBatchSize();
+        batch.add(first);
+        messagesToSave.drainTo(batch, maxBatchSize - batch.size());
+        releaseSpace();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getMaxBatchLatencyMillis());
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                break;
+
+            PendingRecord next = messagesToSave.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null)
+                break;
+            batch.add(next);
+            messagesToSave.drainTo(batch, maxBatchSize - batch.size());
+            releaseSpace();
+        }
+        return true;
+    }
+
+    private void writeBatch(List<PendingRecord> batch, List<LogRecord> records) {
+        if (batch.isEmpty())
+            return;
+
+        try {
+            for (PendingRecord pending : batch)
+                records.addAll(pending.records());
+
+            var event = new BatchWriteEvent();
+            event.begin();
+            long start = System.nanoTime();
+            long bytes = messageLog.append(records);
+            long writeNanos = System.nanoTime() - start;
+            if (event.shouldCommit()) {
+                event.records = records.size();
+                event.bytes = bytes;
+                event.commit();
+            }
+            unsyncedRecords += records.size();
+            if (syncDue()) {
+                if (acknowledgesAfterSync())
+                    sync();
+                else
+                    trySync();
             }
-            LOGGER.debug("Shutdown formatting successful");
+
+            statistics.recordBatch(records.size(), bytes, writeNanos);
+            LOGGER.debug("Saved batch of {} messages in {}us", records.size(), TimeUnit.NANOSECONDS.toMicros(writeNanos));
+            for (PendingRecord pending : batch)
+                pending.persisted().complete(pending.lastOffset());
+        } catch (IOException | RecordCodec.RecordTooLargeException e) {
+            LOGGER.warn("Unable to write {} messages to the message log: {}", records.size(), e.toString());
+            for (PendingRecord pending : batch)
+                pending.persisted().completeExceptionally(e);
+        } finally {
+            batch.clear();
+            records.clear();
+        }
+    }
+
+    private boolean syncDue() {
+        return switch (settings.getDurabilityPolicy()) {
+            case NONE -> false;
+            case INTERVAL -> System.nanoTime() - lastSyncNanos >= TimeUnit.MILLISECONDS.toNanos(settings.getSyncIntervalMillis());
+            case EVERY_N_RECORDS -> unsyncedRecords >= settings.getSyncEveryRecords();
+            case BEFORE_ACK -> true;
+        };
+    }
+
+    private void sync() throws IOException {
+        if (unsyncedRecords == 0)
+            return;
+
+        var event = new LogSyncEvent();
+        event.begin();
+        long start = System.nanoTime();
+        messageLog.flush();
+        statistics.recordSync(System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.records = unsyncedRecords;
+            event.commit();
+        }
+        unsyncedRecords = 0;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    /**
+     * Sync for the policies that don't acknowledge after syncing: a failure is only logged and the records
+     * are synced again with the next attempt.
+     */
+    private void trySync() {
+        try {
+            sync();
         } catch (IOException e) {
-            LOGGER.warn("Unable to append ']' to file {}", e.toString());
+            LOGGER.warn("Unable to sync the message log: {}", e.toString());
+        }
+    }
+
+    /**
+     * Stops the writer once it has written what is queued, and waits for it. The writer is only interrupted
+     * between writes, since an interrupt during a write closes the log's channel and fails the batch.
+     */
+    void shutdown() {
+        Thread writer = writerThread;
+        if (writer != null) {
+            writingLock.lock();
+            try {
+                writer.interrupt();
+            } finally {
+                writingLock.unlock();
+            }
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Records queued together, usually one; several for {@link #saveMessages}.
+     */
+    private record PendingRecord(List<LogRecord> records, CompletableFuture<Long> persisted) {
+        long lastOffset() {
+            return records.get(records.size() - 1).offset();
         }
     }
 }
@@ -0,0 +1,13 @@
+package simpleserver.repository;
+
+/**
+ * What {@link MessageRepository#saveMessage} does when the write queue is full.
+ */
+public enum OverloadPolicy {
+    /** Wait up to {@code message.queue.blockMillis} for space, then reject. */
+    BLOCK,
+    /** Reject immediately, the sender gets a retryable busy status. */
+    REJECT,
+    /** Park the message in an overflow buffer of {@code message.queue.spillCapacity}, reject once that is full too. */
+    SPILL
+}
@@ -0,0 +1,13 @@
+package simpleserver.repository;
+
+/**
+ * Thrown when a message cannot be queued for writing because the persistence queue is saturated.
+ * The message was not stored and the sender may retry.
+ */
+public class PersistenceBusyException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public PersistenceBusyException(String message) {
+        super(message);
+    }
+}
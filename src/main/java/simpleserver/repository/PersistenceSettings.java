@@ -0,0 +1,63 @@
+package simpleserver.repository;
+
+import lombok.Builder;
+import lombok.Getter;
+import simpleserver.util.ServerConfig;
+
+@Getter
+@Builder
+public class PersistenceSettings {
+    @Builder.Default
+    private final int queueCapacity = 50;
+    @Builder.Default
+    private final OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+    @Builder.Default
+    private final long blockMillis = 50;
+    @Builder.Default
+    private final int spillCapacity = 10_000;
+    @Builder.Default
+    private final int maxBatchSize = 128;
+    @Builder.Default
+    private final long maxBatchLatencyMillis = 2;
+    @Builder.Default
+    private final DurabilityPolicy durabilityPolicy = DurabilityPolicy.NONE;
+    @Builder.Default
+    private final long syncIntervalMillis = 1000;
+    @Builder.Default
+    private final int syncEveryRecords = 100;
+    @Builder.Default
+    private final long ackTimeoutMillis = 5000;
+    @Builder.Default
+    private final long retentionMaxAgeMillis = 0;
+    @Builder.Default
+    private final long retentionMaxBytes = 0;
+    @Builder.Default
+    private final long cleanerIntervalMillis = 60_000;
+    @Builder.Default
+    private final boolean compactionEnabled = false;
+    @Builder.Default
+    private final long compactionMaxBytesPerSecond = 4 * 1024 * 1024;
+    @Builder.Default
+    private final double compactionMinDropRatio = 0.5;
+
+    public static PersistenceSettings fromConfig(ServerConfig config) {
+        return PersistenceSettings.builder()
+                .queueCapacity(config.getInt("message.queue.capacity", 50))
+                .overloadPolicy(config.getEnum("message.queue.overloadPolicy", OverloadPolicy.class, OverloadPolicy.BLOCK))
+                .blockMillis(config.getLong("message.queue.blockMillis", 50))
+                .spillCapacity(config.getInt("message.queue.spillCapacity", 10_000))
+                .maxBatchSize(config.getInt("message.batch.maxSize", 128))
+                .maxBatchLatencyMillis(config.getLong("message.batch.maxLatencyMillis", 2))
+                .durabilityPolicy(config.getEnum("message.durability.policy", DurabilityPolicy.class, DurabilityPolicy.NONE))
+                .syncIntervalMillis(config.getLong("message.durability.intervalMillis", 1000))
+                .syncEveryRecords(config.getInt("message.durability.records", 100))
+                .ackTimeoutMillis(config.getLong("message.durability.ackTimeoutMillis", 5000))
+                .retentionMaxAgeMillis(config.getLong("message.retention.maxAgeMillis", 0))
+                .retentionMaxBytes(config.getLong("message.retention.maxBytes", 0))
+                .cleanerIntervalMillis(config.getLong("message.retention.checkIntervalMillis", 60_000))
+                .compactionEnabled(config.getBoolean("message.compaction.enabled", false))
+                .compactionMaxBytesPerSecond(config.getLong("message.compaction.maxBytesPerSecond", 4 * 1024 * 1024))
+                .compactionMinDropRatio(config.getDouble("message.compaction.minDropRatio", 0.5))
+                .build();
+    }
+}
@@ -0,0 +1,76 @@
+package simpleserver.repository;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Depth and overload counters of the persistence queue.
+ */
+public class QueueStatistics {
+    private final IntSupplier depth;
+    private final int capacity;
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong highWatermark = new AtomicLong();
+
+    QueueStatistics(IntSupplier depth, int capacity) {
+        this.depth = depth;
+        this.capacity = capacity;
+    }
+
+    void recordEnqueued(int depthAfter) {
+        enqueued.incrementAndGet();
+        highWatermark.accumulateAndGet(depthAfter, Math::max);
+    }
+
+    void recordBlocked() {
+        blocked.incrementAndGet();
+    }
+
+    void recordSpilled() {
+        spilled.incrementAndGet();
+    }
+
+    void recordRejected() {
+        rejected.incrementAndGet();
+    }
+
+    /**
+     * Records waiting to be written, including any in the overflow buffer.
+     */
+    public int getDepth() {
+        return depth.getAsInt();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getHighWatermark() {
+        return highWatermark.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth=%d capacity=%d highWatermark=%d enqueued=%d blocked=%d spilled=%d rejected=%d",
+                getDepth(), getCapacity(), getHighWatermark(), getEnqueued(), getBlocked(), getSpilled(), getRejected());
+    }
+}
@@ -0,0 +1,13 @@
+package simpleserver.repository;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Records queued by {@link MessageRepository#saveMessage} or {@link MessageRepository#saveMessages}. Their
+ * offsets are assigned when they are queued, consecutively from {@code firstOffset}.
+ *
+ * @param persisted completed with the offset of the last record once all of them have been written, and
+ *                  synced if the durability policy requires it before acknowledging
+ */
+public record QueuedRecords(long firstOffset, CompletableFuture<Long> persisted) {
+}
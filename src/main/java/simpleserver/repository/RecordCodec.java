@@ -0,0 +1,158 @@
+package simpleserver.repository;
+
+import simpleserver.dto.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary layout of a {@link LogRecord} on disk:
+ * <pre>
+ * int    body length
+ * int    CRC32C of the body
+ * body:  long offset, long timestamp, byte type, then by type
+ *        MESSAGE: receiverId, senderId, message
+ *        ACK:     receiverId, long ackedOffset
+ * </pre>
+ * Strings are an int length (-1 for null) followed by UTF-8 bytes.
+ */
+public final class RecordCodec {
+    public static final int HEADER_SIZE = 8;
+    public static final int MIN_BODY_SIZE = 8 + 8 + 1 + 4;
+    public static final int MAX_BODY_SIZE = 1024 * 1024;
+
+    private RecordCodec() {
+    }
+
+    /**
+     * Whether a message record of the message stays within {@link #MAX_BODY_SIZE}, the largest body a reader
+     * accepts. Only short messages are checked without encoding: UTF-8 takes at most three bytes per char.
+     */
+    public static boolean fits(Message message) {
+        long maxBodySize = 8 + 8 + 1 + 3 * 4
+                + 3L * (length(message.receiverId()) + length(message.senderId()) + length(message.message()));
+        if (maxBodySize <= MAX_BODY_SIZE)
+            return true;
+        return encodedSize(LogRecord.message(0, message)) - HEADER_SIZE <= MAX_BODY_SIZE;
+    }
+
+    public static int encodedSize(LogRecord record) {
+        int size = HEADER_SIZE + 8 + 8 + 1 + stringSize(record.message().receiverId());
+        if (record.type() == RecordType.ACK)
+            return size + 8;
+        return size + stringSize(record.message().senderId()) + stringSize(record.message().message());
+    }
+
+    /**
+     * Writes the record at the buffer's position. The buffer must have at least
+     * {@link #encodedSize(LogRecord)} bytes remaining.
+     *
+     * @throws RecordTooLargeException if the body is larger than {@link #MAX_BODY_SIZE}; the buffer's
+     *                                 position is left where it was
+     */
+    public static void encode(LogRecord record, ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+
+        buffer.putLong(record.offset());
+        buffer.putLong(record.timestamp());
+        buffer.put(record.type().code());
+        putString(buffer, record.message().receiverId());
+        if (record.type() == RecordType.ACK) {
+            buffer.putLong(record.ackedOffset());
+        } else {
+            putString(buffer, record.message().senderId());
+            putString(buffer, record.message().message());
+        }
+
+        int bodyLength = buffer.position() - start - HEADER_SIZE;
+        if (bodyLength > MAX_BODY_SIZE) {
+            buffer.position(start);
+            throw new RecordTooLargeException(record.offset(), bodyLength);
+        }
+        var crc = new CRC32C();
+        crc.update(buffer.duplicate().position(start + HEADER_SIZE).limit(start + HEADER_SIZE + bodyLength));
+        buffer.putInt(start, bodyLength);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    /**
+     * Validates and decodes a record body.
+     *
+     * @throws CorruptRecordException if the checksum does not match or the body is malformed
+     */
+    public static LogRecord decode(ByteBuffer body, int expectedCrc) throws CorruptRecordException {
+        var crc = new CRC32C();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != expectedCrc)
+            throw new CorruptRecordException("Checksum mismatch");
+
+        try {
+            long offset = body.getLong();
+            long timestamp = body.getLong();
+            RecordType type = RecordType.fromCode(body.get());
+            String receiverId = getString(body);
+            if (type == RecordType.ACK)
+                return new LogRecord(offset, timestamp, type, new Message(receiverId, null, null), body.getLong());
+            return new LogRecord(offset, timestamp, type, new Message(receiverId, getString(body), getString(body)), -1);
+        } catch (RuntimeException e) {
+            throw new CorruptRecordException("Malformed record body: " + e);
+        }
+    }
+
+    public static boolean isValidBodyLength(int length) {
+        return length >= MIN_BODY_SIZE && length <= MAX_BODY_SIZE;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static int stringSize(String value) {
+        return 4 + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static class CorruptRecordException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public CorruptRecordException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown instead of writing a record that readers would take for corruption, ending recovery, replay and
+     * compaction of its segment at that point.
+     */
+    public static class RecordTooLargeException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        public RecordTooLargeException(String message) {
+            super(message);
+        }
+
+        public RecordTooLargeException(long offset, long bodyLength) {
+            this("Record " + offset + " has a body of " + bodyLength + " bytes, at most " + MAX_BODY_SIZE + " are allowed");
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package simpleserver.repository;
+
+public enum RecordType {
+    MESSAGE((byte) 1),
+    ACK((byte) 2);
+
+    private final byte code;
+
+    RecordType(byte code) {
+        this.code = code;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    public static RecordType fromCode(byte code) {
+        for (RecordType type : values()) {
+            if (type.code == code)
+                return type;
+        }
+        throw new IllegalArgumentException("Unknown record type: " + code);
+    }
+}
@@ -0,0 +1,174 @@
+package simpleserver.repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Where each user's records lie in one segment file, for exports. A record belongs to its receiver and, for
+ * messages, also to its sender. Consecutive records of the same user are merged into one run, so a user's
+ * share of a segment is a list of (position, length) pairs that can be copied without looking at the
+ * records again.
+ * <p>
+ * Built by scanning only the record headers and user ids, without checksums or message bodies, and extended
+ * as the active segment grows. Only valid for the file it was built from: a rewritten segment needs a new
+ * index. Not thread safe, {@link LogSegment} guards it.
+ */
+class SegmentIndex {
+    private static final int PREFIX_SIZE = 512;
+
+    private final Map<String, Runs> runsByUser = new HashMap<>();
+    private ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+    private long indexedBytes;
+
+    long getIndexedBytes() {
+        return indexedBytes;
+    }
+
+    boolean contains(String username) {
+        return runsByUser.containsKey(username);
+    }
+
+    /**
+     * @return a copy of the user's runs, empty if the user has no records in the indexed part
+     */
+    Runs runsOf(String username) {
+        var runs = runsByUser.get(username);
+        return runs == null ? new Runs() : runs.copy();
+    }
+
+    /**
+     * Indexes the records between the end of the indexed part and {@code size}, which must end on a record
+     * boundary, as the segment's size does.
+     */
+    void extend(FileChannel channel, long size) throws IOException {
+        while (indexedBytes < size) {
+            int bodyLength = readPrefix(channel, indexedBytes, size);
+            if (!RecordCodec.isValidBodyLength(bodyLength))
+                break; // corrupt, recovery or compaction will deal with it
+
+            int recordSize = RecordCodec.HEADER_SIZE + bodyLength;
+            prefix.position(RecordCodec.HEADER_SIZE + 8 + 8);
+            RecordType type = RecordType.fromCode(prefix.get());
+            String receiverId = userId(channel, indexedBytes);
+            add(receiverId, indexedBytes, recordSize);
+            if (type == RecordType.MESSAGE) {
+                String senderId = userId(channel, indexedBytes);
+                if (senderId != null && !senderId.equals(receiverId))
+                    add(senderId, indexedBytes, recordSize);
+            }
+            indexedBytes += recordSize;
+        }
+    }
+
+    /**
+     * Reads the start of the record at the position into the prefix buffer.
+     *
+     * @return the record's body length
+     */
+    private int readPrefix(FileChannel channel, long position, long size) throws IOException {
+        prefix.clear();
+        prefix.limit((int) Math.min(prefix.capacity(), size - position));
+        while (prefix.hasRemaining()) {
+            if (channel.read(prefix, position + prefix.position()) < 0)
+                break;
+        }
+        prefix.flip();
+        return prefix.remaining() < RecordCodec.HEADER_SIZE ? -1 : prefix.getInt(0);
+    }
+
+    /**
+     * Decodes the id at the prefix buffer's position.
+     */
+    private String userId(FileChannel channel, long recordPosition) throws IOException {
+        ensureRemaining(channel, recordPosition, 4);
+        int length = prefix.getInt();
+        if (length < 0)
+            return null;
+        ensureRemaining(channel, recordPosition, length);
+        var id = new String(prefix.array(), prefix.position(), length, StandardCharsets.UTF_8);
+        prefix.position(prefix.position() + length);
+        return id;
+    }
+
+    /**
+     * Reads the record again with a larger buffer if fewer than {@code count} bytes of it are left in the
+     * prefix buffer, which only happens with very long user ids.
+     */
+    private void ensureRemaining(FileChannel channel, long recordPosition, int count) throws IOException {
+        if (prefix.remaining() >= count)
+            return;
+        int position = prefix.position();
+        prefix = ByteBuffer.allocate(position + count);
+        while (prefix.hasRemaining()) {
+            if (channel.read(prefix, recordPosition + prefix.position()) < 0)
+                throw new IOException("Segment ends inside a record");
+        }
+        prefix.position(position);
+    }
+
+    private void add(String username, long position, int length) {
+        runsByUser.computeIfAbsent(username, user -> new Runs()).add(position, length);
+    }
+
+    /**
+     * Ranges of a segment file in file order, as parallel primitive arrays.
+     */
+    static final class Runs {
+        private long[] positions = new long[4];
+        private long[] lengths = new long[4];
+        private int count;
+        private long records;
+        private long bytes;
+
+        int count() {
+            return count;
+        }
+
+        long position(int run) {
+            return positions[run];
+        }
+
+        long length(int run) {
+            return lengths[run];
+        }
+
+        long getRecords() {
+            return records;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        void add(long position, long length) {
+            records++;
+            bytes += length;
+            if (count > 0 && positions[count - 1] + lengths[count - 1] == position) {
+                lengths[count - 1] += length;
+                return;
+            }
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            positions[count] = position;
+            lengths[count] = length;
+            count++;
+        }
+
+        Runs copy() {
+            var copy = new Runs();
+            copy.positions = Arrays.copyOf(positions, Math.max(count, 1));
+            copy.lengths = Arrays.copyOf(lengths, Math.max(count, 1));
+            copy.count = count;
+            copy.records = records;
+            copy.bytes = bytes;
+            return copy;
+        }
+    }
+}
@@ -18,16 +18,40 @@ import java.util.ArrayList;
 public class UserRepository {
     private final static Logger LOGGER = LoggerFactory.getLogger(UserRepository.class);
 
-    private final ArrayList<RegisteredUserCredentials> registeredUsers;
+    private volatile ArrayList<RegisteredUserCredentials> registeredUsers = new ArrayList<>();
+    private volatile boolean loaded;
     private final String filePath;
 
     public UserRepository(String filePath) {
-        registeredUsers = loadUsersFromFile(filePath);
+        this(filePath, true);
+    }
+
+    /**
+     * @param load whether to read the file right away; otherwise the repository stays empty until {@link #load()},
+     *             e.g. to read it while the server already accepts connections
+     */
+    public UserRepository(String filePath, boolean load) {
         this.filePath = filePath;
+        if (load)
+            load();
+    }
 
+    /**
+     * Saves the registered users to the file when the JVM exits. Only the server registers it: a repository a
+     * test is done with would otherwise still write to its file, long gone, at exit.
+     */
+    public void registerShutdownHook() {
         Runtime.getRuntime().addShutdownHook(new Thread(this::saveRegisteredUsers));
     }
 
+    /**
+     * Reads the registered users from the file, replacing those in memory.
+     */
+    public void load() {
+        registeredUsers = loadUsersFromFile(filePath);
+        loaded = true;
+    }
+
     public ArrayList<RegisteredUserCredentials> getAllUsers() {
         return registeredUsers;
     }
@@ -37,6 +61,10 @@ public class UserRepository {
     }
 
     private void saveRegisteredUsers() {
+        if (!loaded) {
+            System.out.println("Users were never loaded, not overwriting the users file");
+            return;
+        }
         try {
             FileWriter fw = new FileWriter(filePath);
 
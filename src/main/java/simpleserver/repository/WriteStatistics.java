@@ -0,0 +1,87 @@
+package simpleserver.repository;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how the message writer batches its work. Updated by the writer thread only,
+ * readable from any thread.
+ */
+public class WriteStatistics {
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong totalWriteNanos = new AtomicLong();
+    private final AtomicLong slowestWriteNanos = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong totalSyncNanos = new AtomicLong();
+    private final AtomicLong slowestSyncNanos = new AtomicLong();
+
+    void recordBatch(int batchSize, long batchBytes, long writeNanos) {
+        batches.incrementAndGet();
+        messages.addAndGet(batchSize);
+        bytes.addAndGet(batchBytes);
+        totalWriteNanos.addAndGet(writeNanos);
+        largestBatch.accumulateAndGet(batchSize, Math::max);
+        slowestWriteNanos.accumulateAndGet(writeNanos, Math::max);
+    }
+
+    void recordSync(long syncNanos) {
+        syncs.incrementAndGet();
+        totalSyncNanos.addAndGet(syncNanos);
+        slowestSyncNanos.accumulateAndGet(syncNanos, Math::max);
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    public double getAverageBatchSize() {
+        long batchCount = batches.get();
+        return batchCount == 0 ? 0 : (double) messages.get() / batchCount;
+    }
+
+    public long getAverageWriteMicros() {
+        long batchCount = batches.get();
+        return batchCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWriteNanos.get() / batchCount);
+    }
+
+    public long getSlowestWriteMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(slowestWriteNanos.get());
+    }
+
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    public long getAverageSyncMicros() {
+        long syncCount = syncs.get();
+        return syncCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalSyncNanos.get() / syncCount);
+    }
+
+    public long getSlowestSyncMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(slowestSyncNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("batches=%d messages=%d bytes=%d avgBatch=%.1f maxBatch=%d avgWrite=%dus maxWrite=%dus "
+                        + "syncs=%d avgSync=%dus maxSync=%dus",
+                getBatches(), getMessages(), getBytes(), getAverageBatchSize(), getLargestBatch(),
+                getAverageWriteMicros(), getSlowestWriteMicros(),
+                getSyncs(), getAverageSyncMicros(), getSlowestSyncMicros());
+    }
+}
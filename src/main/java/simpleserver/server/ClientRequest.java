@@ -1,17 +1,30 @@
 package simpleserver.server;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import simpleserver.client.SimpleClient;
 
 @FunctionalInterface
 public interface ClientRequest {
-    void respond(SimpleClient client, JsonObject response);
+    /**
+     * @param requestId the {@code id} of the request being answered, echoed back so that clients can match
+     *                  responses to requests; null for messages the client did not ask for
+     */
+    void respond(SimpleClient client, JsonObject response, JsonElement requestId);
 
 
+    default void respond(SimpleClient client, JsonObject response) {
+        respond(client, response, null);
+    }
+
     default void respond(SimpleClient client, String requestType) {
+        respond(client, requestType, null);
+    }
+
+    default void respond(SimpleClient client, String requestType, JsonElement requestId) {
         var response = new JsonObject();
         response.addProperty("serverRequest", requestType);
-        respond(client, response);
+        respond(client, response, requestId);
     }
 
 }
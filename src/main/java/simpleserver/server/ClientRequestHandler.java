@@ -1,80 +1,108 @@
 package simpleserver.server;
 
 import com.google.gson.*;
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import simpleserver.dto.Message;
+import simpleserver.repository.LogExport;
 import simpleserver.client.SimpleClient;
 import simpleserver.client.UserAuthority;
 import simpleserver.service.LoginResult;
 import simpleserver.service.MessageService;
+import simpleserver.service.SessionKey;
 import simpleserver.service.UserService;
 import simpleserver.util.JsonResponse;
+import simpleserver.util.RequestLogger;
 import simpleserver.util.StatusEnum;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.Channels;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Reads and answers the requests of one connection. A connection can multiplex many sessions: requests tagged
+ * with a {@code "session"} id are handled as the user logged in on that session, and their responses carry the
+ * same tag. Untagged requests use the connection's own session.
+ */
 @Getter
 public class ClientRequestHandler implements Runnable {
     private final static Logger LOGGER = LoggerFactory.getLogger(ClientRequestHandler.class);
-    private final BufferedReader reader;
+    private final static RequestLogger REQUEST_LOG = RequestLogger.getLogger(ClientRequestHandler.class);
+    static final int MAX_SESSIONS = 10_000;
+    static final int MAX_BULK_MESSAGES = 1_000;
+    @Getter(AccessLevel.NONE)
+    private final LineReader reader;
+    private final ByteChannel transport;
     private SimpleClient client;
     private final Gson gson = new Gson();
     private final ClientResponder responder;
     private final MessageService messageService;
     private final UserService userService;
+    private final ServerMetrics metrics;
+    private RequestLanes.Turn turn = RequestLanes.UNLIMITED.newTurn();
+    private StartupStages startupStages = StartupStages.READY;
+    private long handledRequests;
+    private JsonElement requestId;
+    private final Map<String, SimpleClient> sessions = new HashMap<>();
 
-    public ClientRequestHandler(ClientResponder clientResponder, SocketChannel clientSocket, UserService userService, MessageService messageService) {
+    public ClientRequestHandler(ClientResponder clientResponder, SocketChannel clientSocket, UserService userService,
+                                MessageService messageService, ServerMetrics metrics) {
+        this(clientResponder, clientSocket, clientSocket, userService, messageService, metrics);
+    }
+
+    /**
+     * @param transport the channel requests are read from and responses written to, e.g. TLS over the socket
+     */
+    public ClientRequestHandler(ClientResponder clientResponder, SocketChannel clientSocket, ByteChannel transport,
+                                UserService userService, MessageService messageService, ServerMetrics metrics) {
         this.messageService = messageService;
+        this.metrics = metrics;
         this.userService = userService;
         this.responder = clientResponder;
-        reader = new BufferedReader(Channels.newReader(clientSocket, StandardCharsets.UTF_8));
+        this.transport = transport;
+        if (transport != clientSocket)
+            clientResponder.setTransport(clientSocket, transport);
+        reader = new LineReader(Channels.newReader(transport, StandardCharsets.UTF_8));
         client = SimpleClient.builder()
                 .socketChannel(clientSocket)
                 .isLoggedIn(false)
                 .build();
     }
 
+    /**
+     * Limits how many connections handle message and open requests at once and shares the lane out in turns,
+     * see {@link RequestLanes}.
+     */
+    public void setLanes(RequestLanes lanes) {
+        this.turn = lanes.newTurn();
+    }
+
+    /**
+     * Holds back the requests whose data is still being loaded, see {@link StartupStages}.
+     */
+    public void setStartupStages(StartupStages startupStages) {
+        this.startupStages = startupStages;
+    }
+
     @Override
     public void run() {
         LOGGER.debug("New ClientHandler started");
+        var connection = new ConnectionClosedEvent();
+        connection.begin();
         String message;
         try {
             while ((message = reader.readLine()) != null) {
-
-                var jsonMessage = gson.fromJson(message, JsonObject.class);
-                LOGGER.info("Received message: {}", message);
-
-                if (!client.isLoggedIn() || StringUtils.isAnyBlank(client.getUsername(), client.getPassword()))
-                    updateClientInfoFromRequest(jsonMessage);
-
-                try {
-                    String requestType = jsonMessage.get("request").getAsString();
-
-                    switch (requestType) {
-                        case "login":
-                            processClientLoginRequest(jsonMessage);
-                            break;
-                        case "register":
-                            processClientRegistrationFromRequest(jsonMessage);
-                            break;
-                        case "message", "open":
-                            processMessageRequest(jsonMessage);
-                            break;
-                        default:
-                            responder.respond(client, requestType);
-                            break;
-                    }
-                } catch (JsonSyntaxException | IllegalStateException e) {
-                    LOGGER.info("Couldn't create a Message object from users' data: {}", e.toString());
-                    responder.respond(client, JsonResponse.serverResponse(StatusEnum.ERROR, "The server could not parse this message"));
-                }
+                handleRequest(message);
+                if (!reader.hasLine()) // no complete request pipelined behind it, let the next connection in
+                    turn.end();
             }
         } catch (JsonIOException e) {
             responder.respond(client, JsonResponse.serverResponse(StatusEnum.ERROR, "Server could not parse JSON message. Disconnecting"));
@@ -89,15 +117,189 @@ public class ClientRequestHandler implements Runnable {
             responder.respond(client, JsonResponse.serverResponse(StatusEnum.ERROR, "Ending connection"));
             userService.disconnectClient(this.client.getSocketChannel());
 
+            if (connection.shouldCommit()) {
+                connection.remoteAddress = SimpleServer.remoteAddress(client.getSocketChannel());
+                connection.username = client.getUsername();
+                connection.requests = handledRequests;
+            }
+            turn.end();
+            responder.removeTransport(client.getSocketChannel());
             try {
-                client.getSocketChannel().close();
+                transport.close();
             } catch (IOException e) {
                 LOGGER.warn("Exception while closing a client channel: {}", e.toString());
             }
+            connection.commit();
+
+        }
+    }
+
+    /**
+     * Parses one request line, dispatches it and writes the response. The time from parsing to the written
+     * response is recorded in the {@link ServerMetrics} of the request type.
+     */
+    void handleRequest(String message) {
+        var event = new RequestEvent();
+        event.begin();
+        long start = System.nanoTime();
+        var jsonMessage = gson.fromJson(message, JsonObject.class);
+        long parsed = System.nanoTime();
+        REQUEST_LOG.info("Received message: {0}", jsonMessage != null && jsonMessage.has("resumeToken")
+                ? ClientResponder.withoutSecrets(jsonMessage) : message);
 
+        requestId = jsonMessage != null ? jsonMessage.get("id") : null;
+        String requestType = requestTypeOf(jsonMessage);
+        var requestMetrics = metrics.forRequest(requestType);
+        requestMetrics.started();
+        handledRequests++;
+        boolean succeeded = false;
+        var connectionClient = client;
+        String sessionId = jsonMessage != null && jsonMessage.has("session") ? sessionIdOf(jsonMessage.get("session")) : null;
+        try {
+            if (sessionId == null)
+                succeeded = dispatch(jsonMessage);
+            else if (enterSession(sessionId))
+                succeeded = dispatchInSession(sessionId, jsonMessage);
+        } finally {
+            if (sessionId != null)
+                client = connectionClient;
+            requestMetrics.finished(System.nanoTime() - start, succeeded);
+            if (event.shouldCommit()) {
+                event.requestType = requestType;
+                event.requestBytes = message.length();
+                event.parseDuration = parsed - start;
+                event.succeeded = succeeded;
+                event.commit();
+            }
         }
     }
 
+    /**
+     * Makes the tagged session the current client, creating it on first use.
+     *
+     * @return false if the tag is invalid or the connection has too many sessions
+     */
+    private boolean enterSession(String sessionId) {
+        if (sessionId.isEmpty()) {
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Invalid session id"));
+            return false;
+        }
+
+        var session = sessions.get(sessionId);
+        if (session == null) {
+            session = SimpleClient.builder()
+                    .socketChannel(client.getSocketChannel())
+                    .sessionId(sessionId)
+                    .isLoggedIn(false)
+                    .build();
+            if (sessions.size() >= MAX_SESSIONS) {
+                client = session;
+                respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Too many sessions on this connection"));
+                return false;
+            }
+        }
+        client = session;
+        return true;
+    }
+
+    private boolean dispatchInSession(String sessionId, JsonObject jsonMessage) {
+        boolean succeeded = dispatch(jsonMessage);
+        if (userService.getConnectedClients().containsKey(SessionKey.of(client)))
+            sessions.put(sessionId, client);
+        else
+            sessions.remove(sessionId);
+        return succeeded;
+    }
+
+    private static String sessionIdOf(JsonElement session) {
+        return session.isJsonPrimitive() ? session.getAsString().trim() : "";
+    }
+
+    private void respond(JsonObject response) {
+        responder.respond(client, response, requestId);
+    }
+
+    private void respond(String serverRequest) {
+        responder.respond(client, serverRequest, requestId);
+    }
+
+    private static String requestTypeOf(JsonObject jsonMessage) {
+        if (jsonMessage == null || !jsonMessage.has("request") || !jsonMessage.get("request").isJsonPrimitive())
+            return ServerMetrics.OTHER;
+        return jsonMessage.get("request").getAsString();
+    }
+
+    /**
+     * A request that cannot be handled, because it is malformed or a field is missing or of the wrong type, is
+     * answered with an error to its own session; it must not end the connection and with it the other sessions.
+     *
+     * @return false if the request could not be parsed or handled
+     */
+    private boolean dispatch(JsonObject jsonMessage) {
+        try {
+            if (!client.isLoggedIn() || StringUtils.isAnyBlank(client.getUsername(), client.getPassword()))
+                updateClientInfoFromRequest(jsonMessage);
+
+            String requestType = jsonMessage.get("request").getAsString();
+            if (!startupStages.canHandle(requestType)) {
+                respond(JsonResponse.serverResponse(StatusEnum.WARMING, "Server is warming up, try again shortly"));
+                return true;
+            }
+
+            switch (requestType) {
+                case "login":
+                    processClientLoginRequest(jsonMessage);
+                    break;
+                case "logout":
+                    processLogoutRequest();
+                    break;
+                case "resume":
+                    processResumeRequest(jsonMessage);
+                    break;
+                case "register":
+                    processClientRegistrationFromRequest(jsonMessage);
+                    break;
+                case "message", "open":
+                    if (admitted(turn.enter(() -> userService.isAdmin(SessionKey.of(client)))))
+                        processMessageRequest(jsonMessage);
+                    break;
+                case "messages":
+                    if (admitted(turn.enterHeavy()))
+                        processBulkMessageRequest(jsonMessage);
+                    break;
+                case "export":
+                    if (admitted(turn.enterHeavy()))
+                        processExportRequest(jsonMessage);
+                    break;
+                case "stats":
+                    if (userService.isAdmin(SessionKey.of(client)))
+                        respond(requestType);
+                    else
+                        respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Only administrators can request statistics"));
+                    break;
+                default:
+                    respond(requestType);
+                    break;
+            }
+            return true;
+        } catch (JsonSyntaxException | IllegalStateException | IllegalArgumentException | NullPointerException
+                 | UnsupportedOperationException e) { // getAsString() on a missing field or JsonNull
+            LOGGER.info("Couldn't create a Message object from users' data: {}", e.toString());
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "The server could not parse this message"));
+            return false;
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to handle a request, answering it with an error", e);
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "The server could not handle this request"));
+            return false;
+        }
+    }
+
+    private boolean admitted(RequestLanes.Admission admission) {
+        if (admission == RequestLanes.Admission.REJECTED)
+            respond(JsonResponse.serverResponse(StatusEnum.BUSY, "Server is busy, try again later"));
+        return admission != RequestLanes.Admission.REJECTED;
+    }
+
     private void processMessageRequest(JsonObject jsonMessage){
         if (jsonMessage.get("request").getAsString().equals("message")) {
 
@@ -113,7 +315,7 @@ public class ClientRequestHandler implements Runnable {
                 LOGGER.debug("message verification - Client username != sender ID");
 
 
-            } else if (!userService.userIsConnected(message.receiverId())) {
+            } else if (!userService.userIsReachable(message.receiverId())) {
                 jsonResponse = JsonResponse.serverResponse(StatusEnum.ERROR, "Recipient is not logged in or registered");
                 LOGGER.debug("message verification - Receiver ID is not connected");
 
@@ -122,8 +324,8 @@ public class ClientRequestHandler implements Runnable {
                 LOGGER.debug("message verification - successfully sent message");
             }
 
-            responder.respond(client, jsonResponse);
-            LOGGER.info("Successfully handled sending a message: {}", jsonResponse.toString());
+            respond(jsonResponse);
+            REQUEST_LOG.info("Successfully handled sending a message: {0}", jsonResponse);
         } else if (jsonMessage.get("request").getAsString().equals("open")) {
             var openMessageResponse = new JsonObject();
             if (userService.verifyUser(client))
@@ -131,8 +333,115 @@ public class ClientRequestHandler implements Runnable {
              else
                 openMessageResponse = JsonResponse.serverResponse(StatusEnum.ERROR, "Unverified user, cannot open message");
 
-            responder.respond(client, openMessageResponse);
-            LOGGER.info("Successfully handled opening a message: {}", openMessageResponse);
+            respond(openMessageResponse);
+            REQUEST_LOG.info("Successfully handled opening a message: {0}", openMessageResponse);
+        }
+    }
+
+    /**
+     * Sends an array of messages, e.g. notifications from a backend, in one request. Only administrators may
+     * send them, on behalf of any sender. The response counts the messages sent and lists only the others,
+     * each with its index in the request and the error it got.
+     */
+    private void processBulkMessageRequest(JsonObject jsonMessage) {
+        if (!userService.isAdmin(SessionKey.of(client))) {
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Only administrators can send bulk messages"));
+            return;
+        }
+        if (!jsonMessage.has("messages") || !jsonMessage.get("messages").isJsonArray()) {
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Bulk request needs a messages array, check API docs"));
+            return;
+        }
+        var items = jsonMessage.getAsJsonArray("messages");
+        if (items.size() > MAX_BULK_MESSAGES) {
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "At most " + MAX_BULK_MESSAGES + " messages per request"));
+            return;
+        }
+
+        var results = new JsonObject[items.size()];
+        var valid = new ArrayList<Message>(items.size());
+        var validIndexes = new ArrayList<Integer>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            Message message = items.get(i).isJsonObject() ? gson.fromJson(items.get(i), Message.class) : null;
+            if (message == null || StringUtils.isAnyBlank(message.senderId(), message.receiverId()) || message.message() == null) {
+                results[i] = JsonResponse.serverResponse(StatusEnum.ERROR, "Message not formatted properly");
+            } else if (!userService.userIsReachable(message.receiverId())) {
+                results[i] = JsonResponse.serverResponse(StatusEnum.ERROR, "Recipient is not logged in or registered");
+            } else {
+                valid.add(message);
+                validIndexes.add(i);
+            }
+        }
+        var sent = valid.isEmpty() ? new JsonObject[0] : messageService.sendMessages(valid);
+        for (int j = 0; j < sent.length; j++)
+            results[validIndexes.get(j)] = sent[j];
+
+        int sentCount = 0;
+        var rejected = new JsonArray();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].get("status").getAsString().equals(StatusEnum.SUCCESS.name())) {
+                sentCount++;
+                continue;
+            }
+            var rejection = new JsonObject();
+            rejection.addProperty("index", i);
+            rejection.add("status", results[i].get("status"));
+            rejection.add("message", results[i].get("message"));
+            rejected.add(rejection);
+        }
+        var response = JsonResponse.serverResponse(sentCount > 0 || items.isEmpty() ? StatusEnum.SUCCESS : StatusEnum.ERROR,
+                "Sent " + sentCount + " of " + items.size() + " messages");
+        response.addProperty("sent", sentCount);
+        response.add("rejected", rejected);
+        respond(response);
+        REQUEST_LOG.info("Successfully handled a bulk of messages: {0}", response);
+    }
+
+    /**
+     * Streams a user's stored messages to an administrator. The response line carries the number of bytes
+     * that follow it on the connection, the raw log records of the user, copied from the log files without
+     * decoding them.
+     */
+    private void processExportRequest(JsonObject jsonMessage) {
+        if (!userService.isAdmin(SessionKey.of(client))) {
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Only administrators can export messages"));
+            return;
+        }
+        if (!jsonMessage.has("exportUser") || !jsonMessage.get("exportUser").isJsonPrimitive()) {
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Export request needs an exportUser, check API docs"));
+            return;
+        }
+        String username = jsonMessage.get("exportUser").getAsString();
+
+        LogExport export;
+        try {
+            export = messageService.exportMessages(username);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to open the message log for exporting {}: {}", username, e.toString());
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Unable to read the message log"));
+            return;
+        }
+        if (export == null) {
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Messages are not stored on this server"));
+            return;
+        }
+
+        try (export) {
+            var response = JsonResponse.serverResponse(StatusEnum.SUCCESS, "Export follows");
+            response.addProperty("exportUser", username);
+            response.addProperty("records", export.getRecords());
+            response.addProperty("bytes", export.getBytes());
+            respond(response);
+            export.transferTo(transport);
+            REQUEST_LOG.info("Successfully handled an export: {0}", response);
+        } catch (IOException e) {
+            // the client can no longer tell where the export ends, so the connection has to go
+            LOGGER.info("Export of {} aborted: {}", username, e.toString());
+            try {
+                transport.close();
+            } catch (IOException closeFailure) {
+                LOGGER.debug("Exception while closing a client channel: {}", closeFailure.toString());
+            }
         }
     }
 
@@ -143,21 +452,22 @@ public class ClientRequestHandler implements Runnable {
                 var clientPassword = jsonMessage.get("registerPassword").getAsString();
                 this.client.setUsername(clientUsername);
                 this.client.setPassword(clientPassword);
-                var loginResult = userService.loginUser(client.getSocketChannel(), clientUsername, clientPassword);
+                var loginResult = userService.loginUser(SessionKey.of(client), clientUsername, clientPassword);
                 if (loginResult == LoginResult.LOGIN_SUCCESS) {
                     var response = JsonResponse.serverResponse(StatusEnum.SUCCESS, "Sucessfully Registered and logged as new user");
                     response.addProperty("registerUsername", clientUsername);
                     response.addProperty("registerPassword", clientPassword);
-                    responder.respond(this.client, response);
+                    response.addProperty("resumeToken", userService.issueResumeToken(SessionKey.of(client)));
+                    respond(response);
                 } else {
-                    responder.respond(this.client, JsonResponse.serverResponse(StatusEnum.ERROR, "user registered but unable to login"));
+                    respond(JsonResponse.serverResponse(StatusEnum.ERROR, "user registered but unable to login"));
                     LOGGER.warn("New client successfully registered but unable to login");
                 }
             } else {
-                responder.respond(this.client, JsonResponse.serverResponse(StatusEnum.ERROR, "User already registered with this username"));
+                respond(JsonResponse.serverResponse(StatusEnum.ERROR, "User already registered with this username"));
             }
         } else {
-            responder.respond(this.client, JsonResponse.serverResponse(StatusEnum.ERROR, "Error during registration, check API docs"));
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Error during registration, check API docs"));
         }
     }
 
@@ -169,10 +479,10 @@ public class ClientRequestHandler implements Runnable {
                 .authority(UserAuthority.valueOf(jsonClient.get("authority").getAsString()))
                 .isLoggedIn(jsonClient.get("isLoggedIn").getAsBoolean())
                 .socketChannel(this.client.getSocketChannel())
+                .sessionId(this.client.getSessionId())
                 .build();
 
-        userService.updateClient(client);
-
+        // only describes the client: the session is not logged in as this user, see UserService#loginUser
         LOGGER.debug("Registered new client with username: {}", client.getUsername());
         client.setLoggedIn(true);
     }
@@ -181,20 +491,59 @@ public class ClientRequestHandler implements Runnable {
         if (jsonMessage.has("loginUsername") && jsonMessage.has("loginPassword")) {
             this.client.setUsername(jsonMessage.get("loginUsername").getAsString());
 
-            var loginResponse =userService.loginUser(client.getSocketChannel(), jsonMessage.get("loginUsername").getAsString(), jsonMessage.get("loginPassword").getAsString());
+            var loginResponse =userService.loginUser(SessionKey.of(client), jsonMessage.get("loginUsername").getAsString(), jsonMessage.get("loginPassword").getAsString());
             if (loginResponse == LoginResult.LOGIN_SUCCESS) {
                 var response = JsonResponse.serverResponse(StatusEnum.SUCCESS, "Successfully Logged In");
                 response.addProperty("loginUsername", jsonMessage.get("loginUsername").getAsString());
                 response.addProperty("loginPassword", jsonMessage.get("loginPassword").getAsString());
-                responder.respond(this.client, response);
+                response.addProperty("resumeToken", userService.issueResumeToken(SessionKey.of(client)));
+                respond(response);
             } else {
-                responder.respond(this.client, JsonResponse.serverResponse(StatusEnum.ERROR, loginResponse.toString()));
+                respond(JsonResponse.serverResponse(StatusEnum.ERROR, loginResponse.toString()));
             }
         } else {
-            responder.respond(this.client, JsonResponse.serverResponse(StatusEnum.ERROR, "Message not formatted properly. check API docs"));
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Message not formatted properly. check API docs"));
         }
     }
 
+    /**
+     * Takes over the session of a dropped connection without a full login. The unread messages waited in the
+     * mailbox, the response tells how many there are.
+     */
+    private void processResumeRequest(JsonObject jsonMessage) {
+        var tokenElement = jsonMessage.get("resumeToken");
+        String token = tokenElement != null && tokenElement.isJsonPrimitive() ? tokenElement.getAsString() : null;
+        var session = SessionKey.of(client);
+        var resumed = userService.resumeSession(session, token);
+        if (resumed.isEmpty()) {
+            respond(JsonResponse.serverResponse(StatusEnum.ERROR, "Resume token is invalid or expired"));
+            return;
+        }
+
+        String username = resumed.get();
+        this.client.setUsername(username);
+        this.client.setLoggedIn(true);
+        var response = JsonResponse.serverResponse(StatusEnum.SUCCESS, "Session resumed");
+        response.addProperty("resumeUsername", username);
+        response.addProperty("resumeToken", userService.issueResumeToken(session));
+        response.addProperty("unread", messageService.getUnreadMessageCount(username));
+        respond(response);
+    }
+
+    private void processLogoutRequest() {
+        var session = SessionKey.of(client);
+        userService.disconnectSession(session);
+        if (session.sessionId() == null)
+            userService.addConnection(session.channel());
+
+        respond(JsonResponse.serverResponse(StatusEnum.SUCCESS, "Logged out"));
+        this.client = SimpleClient.builder()
+                .socketChannel(session.channel())
+                .sessionId(session.sessionId())
+                .isLoggedIn(false)
+                .build();
+    }
+
     public void setClient(SimpleClient client) {
         this.client = client;
     }
@@ -1,39 +1,98 @@
 package simpleserver.server;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import simpleserver.client.SimpleClient;
+import simpleserver.util.RequestLogger;
 
 import java.io.PrintWriter;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ClientResponder implements ClientRequest {
-    private final static Logger LOGGER = LoggerFactory.getLogger(ClientResponder.class);
+    private final static RequestLogger REQUEST_LOG = RequestLogger.getLogger(ClientResponder.class);
+    private static final String RESUME_TOKEN = "resumeToken";
     private final Gson gson = new Gson();
     private final ServerRequests requests;
+    private final Map<SocketChannel, ByteChannel> transports = new ConcurrentHashMap<>();
 
     public ClientResponder (ServerRequests requests) {
         this.requests = requests;
     }
 
 
+    /**
+     * Sends the responses of the connection through the given channel, e.g. TLS wrapping the socket, instead
+     * of writing to the socket directly.
+     */
+    public void setTransport(SocketChannel connection, ByteChannel transport) {
+        transports.put(connection, transport);
+    }
+
+    public void removeTransport(SocketChannel connection) {
+        transports.remove(connection);
+    }
+
     @Override
-    public void respond(SimpleClient client, JsonObject response) {
-        LOGGER.info("Sending message to user: {}", response);
+    public void respond(SimpleClient client, JsonObject response, JsonElement requestId) {
+        REQUEST_LOG.info("Sending message to user: {0}", withoutSecrets(response));
 
         if (response.has("serverRequest")) {
             var request = response.get("serverRequest").getAsString();
 
-            this.respond(client, requests.getResponse(request));
+            this.respond(client, requests.getResponse(request), requestId);
             return;
         }
+        if (requestId != null || client.getSessionId() != null)
+            response = tagged(response, requestId, client.getSessionId());
 
-        var writer = new PrintWriter(Channels.newOutputStream(client.getSocketChannel()));
+        var event = new ResponseEvent();
+        event.begin();
+        var writer = new PrintWriter(Channels.newOutputStream(transportOf(client.getSocketChannel())));
         String jsonResponse = gson.toJson(response);
         writer.println(jsonResponse);
         writer.flush();
-        LOGGER.debug("sent response to client: " + response);
+        if (event.shouldCommit()) {
+            event.responseBytes = jsonResponse.length() + 1;
+            event.commit();
+        }
+        REQUEST_LOG.debug("sent response to client: {0}", withoutSecrets(response));
+    }
+
+    /**
+     * The request or response to log: a copy with the resume token masked if it carries one, since anyone
+     * reading the log could take over the session with it.
+     */
+    static JsonObject withoutSecrets(JsonObject json) {
+        if (json == null || !json.has(RESUME_TOKEN))
+            return json;
+        var masked = json.deepCopy();
+        masked.addProperty(RESUME_TOKEN, "***");
+        return masked;
+    }
+
+    private ByteChannel transportOf(SocketChannel connection) {
+        if (transports.isEmpty())
+            return connection;
+        return transports.getOrDefault(connection, connection);
+    }
+
+    /**
+     * Copies the response with the request id and session in front. Responses can be shared, e.g. the canned
+     * {@link ServerRequests} answers, so the original is left untouched.
+     */
+    private static JsonObject tagged(JsonObject response, JsonElement requestId, String sessionId) {
+        var tagged = new JsonObject();
+        if (requestId != null)
+            tagged.add("id", requestId);
+        if (sessionId != null)
+            tagged.addProperty("session", sessionId);
+        for (var property : response.entrySet())
+            tagged.add(property.getKey(), property.getValue());
+        return tagged;
     }
 }
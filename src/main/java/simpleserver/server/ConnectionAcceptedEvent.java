@@ -0,0 +1,18 @@
+package simpleserver.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("simpleserver.ConnectionAccepted")
+@Label("Connection Accepted")
+@Category({"SimpleServer", "Connections"})
+@Description("A client connection was accepted by the server")
+@StackTrace(false)
+class ConnectionAcceptedEvent extends Event {
+    @Label("Remote Address")
+    String remoteAddress;
+}
@@ -0,0 +1,24 @@
+package simpleserver.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("simpleserver.ConnectionClosed")
+@Label("Connection Closed")
+@Category({"SimpleServer", "Connections"})
+@Description("A client connection ended; the duration is the lifetime of the connection")
+@StackTrace(false)
+class ConnectionClosedEvent extends Event {
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("Username")
+    String username;
+
+    @Label("Requests")
+    long requests;
+}
@@ -0,0 +1,88 @@
+package simpleserver.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads request lines like {@link BufferedReader#readLine()}, ended by {@code \n}, {@code \r} or {@code \r\n},
+ * and tells whether the next line has arrived completely. {@link BufferedReader#ready()} cannot: it is also
+ * true for half a line, the rest of which {@code readLine} then blocks for.
+ * <p>
+ * Not thread safe, used by the connection's handler thread only.
+ */
+final class LineReader {
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    private boolean skipLineFeed;
+
+    LineReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * @return the next line without its terminator, null at the end of the stream
+     */
+    String readLine() throws IOException {
+        StringBuilder line = null;
+        while (true) {
+            if (position == limit && !fill())
+                return line == null ? null : line.toString();
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (buffer[position] == '\n') {
+                    position++;
+                    continue;
+                }
+            }
+
+            int start = position;
+            int end = start;
+            while (end < limit && buffer[end] != '\n' && buffer[end] != '\r')
+                end++;
+            if (end < limit) {
+                skipLineFeed = buffer[end] == '\r';
+                position = end + 1;
+                if (line == null)
+                    return new String(buffer, start, end - start);
+                return line.append(buffer, start, end - start).toString();
+            }
+            if (line == null)
+                line = new StringBuilder(2 * (end - start));
+            line.append(buffer, start, end - start);
+            position = limit;
+        }
+    }
+
+    /**
+     * Whether a complete line is buffered, so {@link #readLine()} returns it without waiting for the client.
+     */
+    boolean hasLine() {
+        int from = skipLineFeed && position < limit && buffer[position] == '\n' ? position + 1 : position;
+        for (int i = from; i < limit; i++) {
+            if (buffer[i] == '\n' || buffer[i] == '\r')
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads more into the empty buffer, blocking until something arrives.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        position = 0;
+        limit = 0;
+        int read;
+        do {
+            read = in.read(buffer, 0, buffer.length);
+        } while (read == 0);
+        if (read < 0)
+            return false;
+        limit = read;
+        return true;
+    }
+}
@@ -0,0 +1,32 @@
+package simpleserver.server;
+
+import lombok.Builder;
+import lombok.Getter;
+import simpleserver.util.ServerConfig;
+
+@Getter
+@Builder
+public class ListenerSettings {
+    @Builder.Default
+    private final int port = 5000;
+    /** Connections the kernel queues before they are accepted. */
+    @Builder.Default
+    private final int backlog = 1024;
+    @Builder.Default
+    private final int acceptors = 1;
+    /**
+     * Gives every acceptor its own listening socket with {@code SO_REUSEPORT}, so the kernel spreads new
+     * connections over them. Ignored where the option is not supported.
+     */
+    @Builder.Default
+    private final boolean reusePort = false;
+
+    public static ListenerSettings fromConfig(ServerConfig config) {
+        return ListenerSettings.builder()
+                .port(config.getInt("server.port", 5000))
+                .backlog(config.getInt("server.backlog", 1024))
+                .acceptors(Math.max(1, config.getInt("server.acceptors", 1)))
+                .reusePort(config.getBoolean("server.reusePort", false))
+                .build();
+    }
+}
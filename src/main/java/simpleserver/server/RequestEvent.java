@@ -0,0 +1,31 @@
+package simpleserver.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name("simpleserver.Request")
+@Label("Request")
+@Category({"SimpleServer", "Requests"})
+@Description("One request line, from parsing through dispatch to the written response")
+@StackTrace(false)
+class RequestEvent extends Event {
+    @Label("Request Type")
+    String requestType;
+
+    @Label("Request Size")
+    @DataAmount
+    long requestBytes;
+
+    @Label("Parse Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long parseDuration;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
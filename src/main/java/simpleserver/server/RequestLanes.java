@@ -0,0 +1,156 @@
+package simpleserver.server;
+
+import simpleserver.util.ServerConfig;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Splits request handling into two lanes. {@code message} and {@code open} requests of ordinary users take
+ * the messaging lane, which admits only so many connections at a time; anything else, and the light requests
+ * of administrators, take the control lane, which never waits. Since every connection has its own handler
+ * thread, a flood of messages then occupies at most the messaging lane's share of the CPU and the mailboxes,
+ * and {@code ping}, {@code stats}, logins and admin commands are handled as soon as they arrive.
+ * <p>
+ * The messaging lane is shared out in turns. A connection that enters keeps its place for up to
+ * {@code quantum} requests sent back to back, then goes to the back of the line, behind the connections
+ * already waiting, which are admitted in arrival order. A connection that has no further complete request
+ * buffered gives its place up right away, before its handler waits for more input. Heavy requests, bulk
+ * messages and exports, always start a turn of their own and use all of it, administrators included, so
+ * they wait for the connections ahead of them and let everyone else have a turn afterwards. One chatty
+ * client therefore delays the others by at most one turn per round.
+ * <p>
+ * A request that cannot enter the messaging lane within the wait limit is answered BUSY, like a full
+ * message store, instead of piling up more waiting threads.
+ */
+public class RequestLanes {
+    /**
+     * No messaging limit, every request runs straight away.
+     */
+    public static final RequestLanes UNLIMITED = new RequestLanes(0, 0, 1);
+
+    private final Semaphore messaging;
+    private final long maxWaitMillis;
+    private final int quantum;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param maxConcurrentMessaging connections admitted to the messaging lane at once, 0 for no limit
+     * @param quantum                requests a connection may send back to back in one turn
+     */
+    public RequestLanes(int maxConcurrentMessaging, long maxWaitMillis, int quantum) {
+        this.messaging = maxConcurrentMessaging > 0 ? new Semaphore(maxConcurrentMessaging, true) : null;
+        this.maxWaitMillis = maxWaitMillis;
+        this.quantum = Math.max(1, quantum);
+    }
+
+    /**
+     * {@code lanes.messaging.maxConcurrent} defaults to twice the number of cores, leaving room for the
+     * control lane while messages wait for the disk now and then; a negative value disables the lanes.
+     */
+    public static RequestLanes fromConfig(ServerConfig config) {
+        int maxConcurrent = config.getInt("lanes.messaging.maxConcurrent", 0);
+        if (maxConcurrent == 0)
+            maxConcurrent = 2 * Runtime.getRuntime().availableProcessors();
+        if (maxConcurrent < 0)
+            return UNLIMITED;
+        return new RequestLanes(maxConcurrent, config.getLong("lanes.messaging.maxWaitMillis", 100),
+                config.getInt("lanes.messaging.quantum", 16));
+    }
+
+    /**
+     * The turns of one connection, used by its handler thread only.
+     */
+    public Turn newTurn() {
+        return new Turn();
+    }
+
+    public int getWaiting() {
+        return messaging == null ? 0 : messaging.getQueueLength();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public enum Admission {
+        ADMITTED,
+        /** Took the control lane although it is a messaging request. */
+        BYPASSED,
+        REJECTED
+    }
+
+    public final class Turn {
+        private boolean holding;
+        private int used;
+
+        private Turn() {
+        }
+
+        /**
+         * Admits a message or open request. Whether the session is privileged, e.g. an administrator's, is
+         * only checked when the lane is full, so the common case costs a single atomic operation.
+         */
+        public Admission enter(BooleanSupplier privileged) {
+            if (messaging == null)
+                return Admission.ADMITTED;
+            if (holding && used < quantum) {
+                used++;
+                return Admission.ADMITTED;
+            }
+            end();
+            if (acquire(0)) {
+                used = 1;
+                return Admission.ADMITTED;
+            }
+            if (privileged.getAsBoolean())
+                return Admission.BYPASSED;
+            return acquire(maxWaitMillis) ? admitted(1) : rejected();
+        }
+
+        /**
+         * Admits a heavy request in a turn of its own; the next request starts a new turn.
+         */
+        public Admission enterHeavy() {
+            if (messaging == null)
+                return Admission.ADMITTED;
+            end();
+            return acquire(maxWaitMillis) ? admitted(quantum) : rejected();
+        }
+
+        /**
+         * Gives the connection's place in the messaging lane to the next connection in line.
+         */
+        public void end() {
+            if (!holding)
+                return;
+            holding = false;
+            used = 0;
+            messaging.release();
+        }
+
+        private Admission admitted(int cost) {
+            used = cost;
+            return Admission.ADMITTED;
+        }
+
+        private Admission rejected() {
+            rejected.increment();
+            return Admission.REJECTED;
+        }
+
+        /**
+         * Timed, unlike {@link Semaphore#tryAcquire()}, so connections waiting already go first.
+         */
+        private boolean acquire(long waitMillis) {
+            try {
+                holding = messaging.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return holding;
+        }
+    }
+}
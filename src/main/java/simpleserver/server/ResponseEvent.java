@@ -0,0 +1,20 @@
+package simpleserver.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("simpleserver.Response")
+@Label("Response")
+@Category({"SimpleServer", "Requests"})
+@Description("Serializing a response and writing it to the client channel")
+@StackTrace(false)
+class ResponseEvent extends Event {
+    @Label("Response Size")
+    @DataAmount
+    long responseBytes;
+}
@@ -0,0 +1,150 @@
+package simpleserver.server;
+
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import simpleserver.util.LatencyHistogram;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Request counters and latency histograms per request type, plus gauges that are sampled when the
+ * statistics are read. Recording only touches atomics, so every handler thread records directly.
+ * Request types outside the known set are counted together as {@value #OTHER}, so clients cannot grow
+ * the set of histograms.
+ */
+public class ServerMetrics {
+    private final static Logger LOGGER = LoggerFactory.getLogger(ServerMetrics.class);
+    static final String OTHER = "other";
+    private static final List<String> REQUEST_TYPES = List.of(
+            "login", "logout", "resume", "register", "message", "messages", "open", "ping", "uptime", "info", "help", "stats", "export", OTHER);
+
+    private final Map<String, RequestMetrics> requests;
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "server-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ServerMetrics() {
+        var byType = new LinkedHashMap<String, RequestMetrics>();
+        for (String type : REQUEST_TYPES)
+            byType.put(type, new RequestMetrics());
+        this.requests = Collections.unmodifiableMap(byType);
+    }
+
+    public RequestMetrics forRequest(String requestType) {
+        return requests.getOrDefault(requestType, requests.get(OTHER));
+    }
+
+    /**
+     * Adds a gauge to the statistics. Gauges must all be registered by one thread before the statistics are
+     * first read, that is before the server starts handling clients or logging statistics.
+     */
+    public void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Logs a statistics line every {@code intervalMillis}. Does nothing if the interval is not positive.
+     */
+    public void startLogging(long intervalMillis) {
+        if (intervalMillis <= 0)
+            return;
+        scheduler.scheduleAtFixedRate(() -> LOGGER.info("Server statistics: {}", this), intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public JsonObject toJson() {
+        var gaugeValues = new JsonObject();
+        gauges.forEach((name, gauge) -> gaugeValues.addProperty(name, gauge.getAsLong()));
+
+        var requestValues = new JsonObject();
+        requests.forEach((type, metrics) -> {
+            if (metrics.isUsed())
+                requestValues.add(type, metrics.toJson());
+        });
+
+        var statistics = new JsonObject();
+        statistics.add("gauges", gaugeValues);
+        statistics.add("requests", requestValues);
+        return statistics;
+    }
+
+    @Override
+    public String toString() {
+        var line = new StringBuilder();
+        gauges.forEach((name, gauge) -> line.append(name).append('=').append(gauge.getAsLong()).append(' '));
+        requests.forEach((type, metrics) -> {
+            if (metrics.isUsed())
+                line.append("| ").append(type).append(": ").append(metrics).append(' ');
+        });
+        return line.toString().trim();
+    }
+
+    public static class RequestMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong failures = new AtomicLong();
+
+        public void started() {
+            inFlight.incrementAndGet();
+        }
+
+        public void finished(long latencyNanos, boolean succeeded) {
+            inFlight.decrementAndGet();
+            latency.record(latencyNanos);
+            if (!succeeded)
+                failures.incrementAndGet();
+        }
+
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        boolean isUsed() {
+            return latency.getCount() > 0 || inFlight.get() > 0;
+        }
+
+        JsonObject toJson() {
+            var json = new JsonObject();
+            json.addProperty("count", getCount());
+            json.addProperty("inFlight", getInFlight());
+            json.addProperty("failures", getFailures());
+            json.addProperty("meanMicros", TimeUnit.NANOSECONDS.toMicros(latency.getMeanNanos()));
+            json.addProperty("p50Micros", latency.getValueAtPercentile(50, TimeUnit.MICROSECONDS));
+            json.addProperty("p90Micros", latency.getValueAtPercentile(90, TimeUnit.MICROSECONDS));
+            json.addProperty("p99Micros", latency.getValueAtPercentile(99, TimeUnit.MICROSECONDS));
+            json.addProperty("p999Micros", latency.getValueAtPercentile(99.9, TimeUnit.MICROSECONDS));
+            json.addProperty("maxMicros", TimeUnit.NANOSECONDS.toMicros(latency.getMaxNanos()));
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("inFlight=%d failures=%d %s", getInFlight(), getFailures(), latency);
+        }
+    }
+}
@@ -20,9 +20,12 @@ public class ServerRequests {
     private final static Logger LOGGER = LoggerFactory.getLogger(ClientResponder.class);
     private final HashMap<String, JsonObject> serverRequests;
     private final LocalDateTime startupTime;
+    private final ServerMetrics metrics;
+    private StartupStages startupStages = StartupStages.READY;
 
-    public ServerRequests (LocalDateTime startupTime) {
+    public ServerRequests (LocalDateTime startupTime, ServerMetrics metrics) {
         this.startupTime = startupTime;
+        this.metrics = metrics;
 
         this.serverRequests = new HashMap<>();
 
@@ -34,8 +37,40 @@ public class ServerRequests {
     }
 
 
+    public void setStartupStages(StartupStages startupStages) {
+        this.startupStages = startupStages;
+    }
+
     public JsonObject getResponse(String request) {
-        return serverRequests.getOrDefault(request, unknownCommand());
+        if (request.equals("stats"))
+            return stats();
+        var response = serverRequests.getOrDefault(request, unknownCommand());
+        if (!startupStages.isReady() && (request.equals("ping") || request.equals("info")))
+            return warming(response);
+        return response;
+    }
+
+    /**
+     * A copy of the canned response with the WARMING status and the state of each startup stage, so health
+     * checks can tell a starting server from a ready one.
+     */
+    private JsonObject warming(JsonObject response) {
+        var warming = response.deepCopy();
+        warming.addProperty("status", StatusEnum.WARMING.toString());
+        warming.add("stages", startupStages.toJson());
+        return warming;
+    }
+
+    /**
+     * Live statistics, built on every call. Only administrators may ask for them, which is checked by
+     * {@link ClientRequestHandler} before the request gets here.
+     */
+    private JsonObject stats() {
+        var response = JsonResponse.serverResponse(StatusEnum.SUCCESS, "server statistics");
+        var statistics = metrics.toJson();
+        response.add("gauges", statistics.get("gauges"));
+        response.add("requests", statistics.get("requests"));
+        return response;
     }
 
     private static JsonObject pingBack() {
@@ -61,8 +96,13 @@ public class ServerRequests {
                 "ping",
                 "uptime",
                 "message (username) (message of any length)",
+                "messages (admin only, array of messages)",
                 "open",
                 "login (username) (password)",
+                "logout",
+                "resume (token)",
+                "stats (admin only)",
+                "export (username) (admin only, raw log records)",
                 "stop"));
 
         response.add("commands", new Gson().toJsonTree(commands));
@@ -2,76 +2,367 @@ package simpleserver.server;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import simpleserver.cluster.ClusterNode;
+import simpleserver.cluster.ClusterSettings;
+import simpleserver.repository.LogCleaner;
+import simpleserver.repository.MailboxSnapshotter;
+import simpleserver.repository.MailboxState;
+import simpleserver.repository.MessageLog;
 import simpleserver.repository.MessageRepository;
+import simpleserver.repository.PersistenceSettings;
+import simpleserver.repository.QueueStatistics;
 import simpleserver.repository.UserRepository;
+import simpleserver.service.MailboxShards;
 import simpleserver.service.MessageService;
+import simpleserver.service.UserIds;
 import simpleserver.service.UserService;
+import simpleserver.tls.TlsContext;
+import simpleserver.tls.TlsSettings;
 import simpleserver.util.LoggingUtil;
+import simpleserver.util.ServerConfig;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 public class SimpleServer {
     private final static Logger LOGGER = LoggerFactory.getLogger(SimpleServer.class);
     private final UserService userService;
     private final MessageService messageService;
     private final ClientResponder clientResponder;
+    private final ServerMetrics metrics;
+    private TlsContext tls;
+    private RequestLanes lanes = RequestLanes.UNLIMITED;
+    private StartupStages startupStages = StartupStages.READY;
 
 
-    public SimpleServer(UserService userService, MessageService messageService, ClientResponder clientResponder) {
+    public SimpleServer(UserService userService, MessageService messageService, ClientResponder clientResponder,
+                        ServerMetrics metrics) {
         this.clientResponder = clientResponder;
+        this.metrics = metrics;
         this.messageService = messageService;
         this.userService = userService;
 
     }
 
+    /**
+     * Serves clients over TLS. Must be called before {@link #start}.
+     */
+    public void setTls(TlsContext tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * Shares the lanes between all client handlers. Must be called before {@link #start}.
+     */
+    public void setLanes(RequestLanes lanes) {
+        this.lanes = lanes;
+    }
+
+    /**
+     * Lets the server accept connections before its data is loaded. Must be called before {@link #start}.
+     */
+    public void setStartupStages(StartupStages startupStages) {
+        this.startupStages = startupStages;
+    }
+
     public static void main(String[] args){
         LoggingUtil.initLogManager();
+        var config = ServerConfig.load();
 
-        String messageFilePath = "successfulMessages.json";
-        String registeredUsersFilePath = "registeredUsers.json";
+        String registeredUsersFilePath = config.getString("users.file", "registeredUsers.json");
 
-        var userRepository = new UserRepository(registeredUsersFilePath);
-        var messageRepository = new MessageRepository(messageFilePath);
+        var userRepository = new UserRepository(registeredUsersFilePath, false);
+        userRepository.registerShutdownHook();
+        var persistenceSettings = PersistenceSettings.fromConfig(config);
 
-        var serverRequests = new ServerRequests(LocalDateTime.now());
+        var metrics = new ServerMetrics();
+        var serverRequests = new ServerRequests(LocalDateTime.now(), metrics);
 
 
-        MessageRepository.startupFormatting(messageFilePath);
-        new Thread(messageRepository).start();
+        var userIds = new UserIds();
+        var messageService = new MessageService(null, userIds);
+        int mailboxShards = config.getInt("mailbox.shards", 0);
+        if (mailboxShards > 0) {
+            messageService.setShards(new MailboxShards(mailboxShards));
+            LOGGER.info("Mailboxes partitioned onto {} shards", mailboxShards);
+        }
 
 
-        var messageService = new MessageService(messageRepository);
-        var userService = new UserService(messageService, userRepository);
+        var userService = new UserService(messageService, userRepository, userIds);
+        userService.setResumeGraceMillis(config.getLong("session.resumeGraceMillis", 30_000));
         var clientResponder = new ClientResponder(serverRequests);
 
-        new SimpleServer(userService, messageService, clientResponder).start();
+        // all gauges are registered here, before the stages start: registering is not thread safe
+        var messageRepository = new AtomicReference<MessageRepository>();
+        var lanes = RequestLanes.fromConfig(config);
+        registerGauges(metrics, userService, messageService, lanes);
+        registerPersistenceGauges(metrics, messageRepository::get);
+        var clusterSettings = ClusterSettings.fromConfig(config);
+        var cluster = createCluster(clusterSettings, userService, messageService, metrics);
+
+        var users = startStage("users", userRepository::load);
+        var messages = startStage("messages", () -> {
+            messageRepository.set(recoverMessages(config, persistenceSettings, messageService));
+            if (cluster != null)
+                startCluster(cluster, clusterSettings);
+        });
+        var startupStages = new StartupStages(users, messages);
+        serverRequests.setStartupStages(startupStages);
+        startupStages.whenReady().thenRun(() -> LOGGER.info("Server is warm, all requests are handled"));
+        metrics.startLogging(config.getLong("metrics.logIntervalMillis", 60_000));
+
+        var server = new SimpleServer(userService, messageService, clientResponder, metrics);
+        server.setTls(startTls(TlsSettings.fromConfig(config)));
+        server.setLanes(lanes);
+        server.setStartupStages(startupStages);
+        server.start(ListenerSettings.fromConfig(config));
     }
 
 
-    public void start() {
-        ExecutorService readThread = Executors.newCachedThreadPool();
+    /**
+     * Runs a startup stage on its own thread while the server starts accepting connections. A stage that
+     * fails terminates the server, like the failures the stages handle themselves.
+     */
+    private static CompletableFuture<Void> startStage(String name, Runnable stage) {
+        var done = new CompletableFuture<Void>();
+        new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                stage.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Startup stage {} failed: {}. Terminating server", name, e.toString());
+                System.exit(1);
+            }
+            LOGGER.info("Startup stage {} done in {}ms", name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            done.complete(null);
+        }, "startup-" + name).start();
+        return done;
+    }
 
-        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
-            serverChannel.bind(new InetSocketAddress(5000));
 
-            LOGGER.info("Server is up and running");
-            while (serverChannel.isOpen()) {
-                SocketChannel clientSocket = serverChannel.accept();
-                userService.getConnectedClients().put(clientSocket, null);
+    /**
+     * Opens and recovers the message log, rebuilds the mailboxes from it and starts the writer and the log
+     * maintenance. Messaging is held back until this is done.
+     */
+    private static MessageRepository recoverMessages(ServerConfig config, PersistenceSettings persistenceSettings,
+                                                     MessageService messageService) {
+        var messageLog = openMessageLog(config);
+        var messageRepository = new MessageRepository(messageLog, persistenceSettings);
+        messageRepository.registerShutdownHook();
+        var snapshotter = new MailboxSnapshotter(messageLog,
+                messageLog.getDirectory().resolve(config.getString("message.snapshot.file", "mailboxes.snapshot")),
+                config.getLong("message.snapshot.intervalMillis", 30_000));
+        restoreMailboxes(snapshotter, messageService);
+        messageService.setMessageRepository(messageRepository);
 
-                readThread.submit(new ClientRequestHandler(clientResponder, clientSocket, userService, messageService));
-                LOGGER.info("Server received a new client");
-            }
+        new Thread(messageRepository, "message-writer").start();
+        var logCleaner = new LogCleaner(messageLog, persistenceSettings);
+        logCleaner.setCompactionHorizon(snapshotter::getSnapshotOffset);
+        logCleaner.start();
+        snapshotter.start();
+        return messageRepository;
+    }
+
+
+    private static MessageLog openMessageLog(ServerConfig config) {
+        Path logDirectory = Paths.get(config.getString("message.log.dir", "messages"));
+        try {
+            return MessageLog.open(logDirectory, config.getLong("message.log.segmentBytes", 16 * 1024 * 1024));
+        } catch (IOException e) {
+            LOGGER.error("Unable to open message log in {}: {}. Terminating server", logDirectory, e.toString());
+            System.exit(1);
+            return null;
+        }
+    }
+
+
+    private static void restoreMailboxes(MailboxSnapshotter snapshotter, MessageService messageService) {
+        try {
+            MailboxState mailboxes = snapshotter.recover();
+            messageService.restoreMailboxes(mailboxes.unreadMessages());
+        } catch (IOException e) {
+            LOGGER.error("Unable to restore mailboxes from the message log: {}. Terminating server", e.toString());
+            System.exit(1);
+        }
+    }
+
+
+    /**
+     * Wires a cluster node into the services; it starts listening and connecting to its peers once the
+     * mailboxes are ready for forwarded messages.
+     *
+     * @return null if cluster mode is off
+     */
+    private static ClusterNode createCluster(ClusterSettings settings, UserService userService,
+                                             MessageService messageService, ServerMetrics metrics) {
+        if (!settings.isEnabled())
+            return null;
+
+        var node = new ClusterNode(settings, messageService);
+        userService.setCluster(node);
+        messageService.setCluster(node);
+        metrics.registerGauge("cluster.remoteUsers", node::getRemoteUsers);
+        metrics.registerGauge("cluster.forwardQueue", node::getForwardQueueDepth);
+        metrics.registerGauge("cluster.forwarded", node::getForwarded);
+        metrics.registerGauge("cluster.received", node::getReceived);
+        metrics.registerGauge("cluster.undelivered", node::getUndelivered);
+        metrics.registerGauge("cluster.bounced", node::getBounced);
+        metrics.registerGauge("cluster.duplicates", node::getDuplicates);
+        return node;
+    }
+
+
+    private static void startCluster(ClusterNode node, ClusterSettings settings) {
+        try {
+            node.start();
+        } catch (IOException | IllegalStateException e) {
+            LOGGER.error("Unable to start cluster node on port {}: {}. Terminating server", settings.getPort(), e.toString());
+            System.exit(1);
+        }
+    }
+
+
+    private static TlsContext startTls(TlsSettings settings) {
+        if (!settings.isEnabled())
+            return null;
+        try {
+            var tls = TlsContext.forServer(settings);
+            LOGGER.info("TLS enabled ({})", String.join(", ", settings.getProtocols()));
+            return tls;
         } catch (IOException e) {
-            LOGGER.error("Server unable to start at port: 5000. Terminating server");
+            LOGGER.error("Unable to set up TLS with key store {}: {}. Terminating server", settings.getKeyStore(), e.toString());
+            System.exit(1);
+            return null;
+        }
+    }
+
+
+    private static void registerGauges(ServerMetrics metrics, UserService userService, MessageService messageService,
+                                       RequestLanes lanes) {
+        metrics.registerGauge("connections", () -> userService.getConnectedClients().size());
+        metrics.registerGauge("mailbox.unread", messageService::getUnreadMessageCount);
+        metrics.registerGauge("mailbox.largest", messageService::getLargestMailboxSize);
+        metrics.registerGauge("log.dropped", LoggingUtil::droppedLogRecords);
+        metrics.registerGauge("lanes.messaging.waiting", lanes::getWaiting);
+        metrics.registerGauge("lanes.messaging.rejected", lanes::getRejected);
+    }
+
+
+    /**
+     * The repository only exists once the messages stage recovered the log; until then the gauges read 0.
+     */
+    private static void registerPersistenceGauges(ServerMetrics metrics, Supplier<MessageRepository> messageRepository) {
+        metrics.registerGauge("persistence.queueDepth", queueGauge(messageRepository, QueueStatistics::getDepth));
+        metrics.registerGauge("persistence.queueHighWatermark", queueGauge(messageRepository, QueueStatistics::getHighWatermark));
+        metrics.registerGauge("persistence.rejected", queueGauge(messageRepository, QueueStatistics::getRejected));
+    }
+
+
+    private static LongSupplier queueGauge(Supplier<MessageRepository> messageRepository, ToLongFunction<QueueStatistics> gauge) {
+        return () -> {
+            var repository = messageRepository.get();
+            return repository == null ? 0 : gauge.applyAsLong(repository.getQueueStatistics());
+        };
+    }
+
+
+    static String remoteAddress(SocketChannel channel) {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+
+    /**
+     * Accepts clients until the process ends. Every acceptor loop only accepts the connection and hands it to
+     * the handler pool; with several acceptors they either share one listening socket or, with
+     * {@code reusePort}, each get their own.
+     */
+    public void start(ListenerSettings settings) {
+        ExecutorService readThread = Executors.newCachedThreadPool();
+
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        try {
+            listeners.addAll(openListeners(settings));
+        } catch (IOException e) {
+            LOGGER.error("Server unable to start at port: {}: {}. Terminating server", settings.getPort(), e.toString());
             System.exit(0);
         }
+
+        LOGGER.info("Server is up and running on port {} with {} acceptors and {} listening sockets",
+                settings.getPort(), settings.getAcceptors(), listeners.size());
+        for (int i = 1; i < settings.getAcceptors(); i++) {
+            var listener = listeners.get(i % listeners.size());
+            new Thread(() -> acceptClients(listener, readThread), "acceptor-" + i).start();
+        }
+        acceptClients(listeners.get(0), readThread);
+    }
+
+    private static List<ServerSocketChannel> openListeners(ListenerSettings settings) throws IOException {
+        var first = ServerSocketChannel.open();
+        boolean reusePort = settings.isReusePort() && settings.getAcceptors() > 1;
+        if (reusePort && !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            LOGGER.warn("SO_REUSEPORT is not supported here, acceptors share one listening socket");
+            reusePort = false;
+        }
+
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        listeners.add(first);
+        for (int i = 1; reusePort && i < settings.getAcceptors(); i++)
+            listeners.add(ServerSocketChannel.open());
+        for (var listener : listeners) {
+            if (reusePort)
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            listener.bind(new InetSocketAddress(settings.getPort()), settings.getBacklog());
+        }
+        return listeners;
+    }
+
+    private void acceptClients(ServerSocketChannel serverChannel, ExecutorService readThread) {
+        while (serverChannel.isOpen()) {
+            SocketChannel clientSocket;
+            try {
+                clientSocket = serverChannel.accept();
+            } catch (IOException e) {
+                // e.g. out of file descriptors during a reconnect storm; the connection stays in the backlog
+                LOGGER.warn("Unable to accept a client: {}", e.toString());
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+            var accepted = new ConnectionAcceptedEvent();
+            if (accepted.shouldCommit()) {
+                accepted.remoteAddress = remoteAddress(clientSocket);
+                accepted.commit();
+            }
+            userService.addConnection(clientSocket);
+
+            ByteChannel transport = tls == null ? clientSocket : tls.serverChannel(clientSocket);
+            var handler = new ClientRequestHandler(clientResponder, clientSocket, transport, userService, messageService, metrics);
+            handler.setLanes(lanes);
+            handler.setStartupStages(startupStages);
+            readThread.submit(handler);
+            LOGGER.debug("Server received a new client");
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+package simpleserver.server;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Startup stages that finish while the server already accepts connections. Until a stage is done, the
+ * requests that depend on it are answered WARMING: logins, registrations and everything else that needs the
+ * registered users wait for the user stage, and messaging waits for the message stage as well, which
+ * recovers the message log and rebuilds the mailboxes. {@code ping}, {@code info} and the other server
+ * commands are always answered, with WARMING and the state of each stage while any is still running.
+ * <p>
+ * A stage that fails ends the server, so a stage future only ever completes normally.
+ */
+public class StartupStages {
+    public static final StartupStages READY = new StartupStages(CompletableFuture.completedFuture(null),
+            CompletableFuture.completedFuture(null));
+
+    private final CompletableFuture<?> users;
+    private final CompletableFuture<?> messages;
+
+    public StartupStages(CompletableFuture<?> users, CompletableFuture<?> messages) {
+        this.users = users;
+        this.messages = messages;
+    }
+
+    public boolean isReady() {
+        return users.isDone() && messages.isDone();
+    }
+
+    /**
+     * Whether the stages a request type depends on are done.
+     */
+    public boolean canHandle(String requestType) {
+        return switch (requestType) {
+            case "login", "logout", "resume", "register", "stats" -> users.isDone();
+            case "message", "open", "messages", "export" -> users.isDone() && messages.isDone();
+            default -> true;
+        };
+    }
+
+    /**
+     * Completes once every stage is done.
+     */
+    public CompletableFuture<Void> whenReady() {
+        return CompletableFuture.allOf(users, messages);
+    }
+
+    public JsonObject toJson() {
+        var json = new JsonObject();
+        json.addProperty("users", users.isDone() ? "ready" : "warming");
+        json.addProperty("messages", messages.isDone() ? "ready" : "warming");
+        return json;
+    }
+}
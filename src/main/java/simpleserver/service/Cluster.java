@@ -0,0 +1,49 @@
+package simpleserver.service;
+
+import simpleserver.dto.Message;
+
+import java.util.Optional;
+
+/**
+ * The other server nodes, as seen by the services: which node a user is logged in on, and forwarding of
+ * messages to it. The services report their local logins and logouts so that the other nodes learn them.
+ */
+public interface Cluster {
+    /** A server running on its own, every user is local. */
+    Cluster STANDALONE = new Cluster() {
+        @Override
+        public Optional<String> nodeOf(String username) {
+            return Optional.empty();
+        }
+
+        @Override
+        public void userOnline(String username) {
+        }
+
+        @Override
+        public void userOffline(String username) {
+        }
+
+        @Override
+        public boolean forward(String node, Message message) {
+            return false;
+        }
+    };
+
+    /**
+     * The other node the user is logged in on, empty if the user is local or not logged in anywhere.
+     */
+    Optional<String> nodeOf(String username);
+
+    void userOnline(String username);
+
+    void userOffline(String username);
+
+    /**
+     * Queues the message for the node. Forwarding is asynchronous: a message the node cannot deliver is
+     * bounced, and its sender notified, later.
+     *
+     * @return false if the node's queue is full
+     */
+    boolean forward(String node, Message message);
+}
@@ -0,0 +1,26 @@
+package simpleserver.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("simpleserver.MailboxDequeue")
+@Label("Mailbox Dequeue")
+@Category({"SimpleServer", "Mailboxes"})
+@Description("A recipient opened the oldest message in their mailbox")
+@StackTrace(false)
+class MailboxDequeueEvent extends Event {
+    @Label("Recipient")
+    String receiverId;
+
+    @Label("Message Size")
+    @DataAmount
+    long messageBytes;
+
+    @Label("Mailbox Depth")
+    long mailboxDepth;
+}
@@ -0,0 +1,26 @@
+package simpleserver.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("simpleserver.MailboxEnqueue")
+@Label("Mailbox Enqueue")
+@Category({"SimpleServer", "Mailboxes"})
+@Description("A message was handed to the repository and added to its recipient's mailbox, including any wait for durability")
+@StackTrace(false)
+class MailboxEnqueueEvent extends Event {
+    @Label("Recipient")
+    String receiverId;
+
+    @Label("Message Size")
+    @DataAmount
+    long messageBytes;
+
+    @Label("Mailbox Depth")
+    long mailboxDepth;
+}
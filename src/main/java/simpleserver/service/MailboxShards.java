@@ -0,0 +1,159 @@
+package simpleserver.service;
+
+import simpleserver.dto.StoredMessage;
+import simpleserver.util.IntObjectMap;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Mailboxes partitioned by recipient onto a fixed number of shards. Each shard's mailboxes are plain
+ * collections, keyed by the recipient's {@link UserIds interned id} and owned by the shard's worker thread;
+ * every other thread reaches them only by posting a task to the shard's lock-free queue and waiting for its
+ * result. All operations on one recipient's mailbox therefore run one after another on the same thread, in
+ * the order they were posted, without locking.
+ * <p>
+ * Tasks that look at every shard, such as the statistics, go through a second queue that the worker empties
+ * first, so they do not wait behind a flood of sends and opens.
+ * <p>
+ * Since ids are handed out in order, recipients are spread evenly by their id modulo the number of shards.
+ * <p>
+ * A worker parks when its queues are empty and is unparked by the first task posted afterwards.
+ */
+public class MailboxShards implements Closeable {
+    private final Shard[] shards;
+
+    public MailboxShards(int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("At least one shard is required, got " + count);
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++)
+            shards[i] = new Shard("mailbox-shard-" + i);
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+    /**
+     * Runs the task on the shard that owns the user's mailbox and waits for its result. The task gets the
+     * shard's mailboxes by recipient id and must not keep them, or anything in them, after it returns.
+     *
+     * @throws CompletionException if the task threw
+     */
+    public <T> T call(int userId, Function<IntObjectMap<LinkedList<StoredMessage>>, T> task) {
+        return submit(shards[indexOf(userId)], task, false).join();
+    }
+
+    /**
+     * Runs the task on every shard, ahead of the tasks already waiting there, and waits for all results, in
+     * shard order.
+     */
+    public <T> List<T> callAll(Function<IntObjectMap<LinkedList<StoredMessage>>, T> task) {
+        var futures = new ArrayList<CompletableFuture<T>>(shards.length);
+        for (Shard shard : shards)
+            futures.add(submit(shard, task, true));
+        var results = new ArrayList<T>(shards.length);
+        for (CompletableFuture<T> future : futures)
+            results.add(future.join());
+        return results;
+    }
+
+    /**
+     * Runs the task on the shard with the given index without waiting for it, so several shards can work
+     * at once.
+     */
+    <T> CompletableFuture<T> submit(int shard, Function<IntObjectMap<LinkedList<StoredMessage>>, T> task) {
+        return submit(shards[shard], task, false);
+    }
+
+    int indexOf(int userId) {
+        return userId % shards.length;
+    }
+
+    private static <T> CompletableFuture<T> submit(Shard shard, Function<IntObjectMap<LinkedList<StoredMessage>>, T> task,
+                                                   boolean urgent) {
+        var result = new CompletableFuture<T>();
+        shard.post(urgent, () -> {
+            try {
+                result.complete(task.apply(shard.mailboxes));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stops the workers once they have run the tasks already posted.
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards)
+            shard.close();
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static final class Shard implements Runnable {
+        private final IntObjectMap<LinkedList<StoredMessage>> mailboxes = new IntObjectMap<>();
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Runnable> urgentTasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean sleeping = new AtomicBoolean();
+        private final Thread thread;
+        private volatile boolean closed;
+
+        Shard(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void post(boolean urgent, Runnable task) {
+            if (closed)
+                throw new IllegalStateException(thread.getName() + " is closed");
+            (urgent ? urgentTasks : tasks).offer(task);
+            if (sleeping.get() && sleeping.compareAndSet(true, false))
+                LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = urgentTasks.poll();
+                if (task == null)
+                    task = tasks.poll();
+                if (task != null) {
+                    task.run();
+                    continue;
+                }
+                if (closed)
+                    return;
+                sleeping.set(true);
+                if (tasks.isEmpty() && urgentTasks.isEmpty() && !closed) // a task posted before the flag was set would not unpark us
+                    LockSupport.park(this);
+                sleeping.set(false);
+            }
+        }
+
+        void close() {
+            closed = true;
+            LockSupport.unpark(thread);
+        }
+    }
+}
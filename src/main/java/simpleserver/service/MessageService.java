@@ -6,48 +6,405 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import simpleserver.client.SimpleClient;
 import simpleserver.dto.Message;
+import simpleserver.dto.StoredMessage;
+import simpleserver.repository.LogExport;
 import simpleserver.repository.MessageRepository;
+import simpleserver.repository.PersistenceBusyException;
+import simpleserver.repository.QueuedRecords;
+import simpleserver.repository.RecordCodec;
+import simpleserver.util.IntObjectMap;
 import simpleserver.util.JsonResponse;
 import simpleserver.util.StatusEnum;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.NoSuchElementException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
 
 
 public class MessageService {
     private static final Logger LOGGER = LoggerFactory.getLogger(MessageService.class);
+    private static final int MAILBOX_CAPACITY = 5;
     private final Gson gson = new Gson();
-    private final HashMap<SimpleClient, LinkedList<Message>> unreadMessages;
-    private final MessageRepository messageRepository;
+    private final IntObjectMap<LinkedList<StoredMessage>> unreadMessages = new IntObjectMap<>();
+    private final StampedLock unreadMessagesLock = new StampedLock();
+    private final UserIds userIds;
+    private MessageRepository messageRepository;
+    private Cluster cluster = Cluster.STANDALONE;
+    private MailboxShards shards;
 
     public MessageService(MessageRepository messageRepository) {
-        this.unreadMessages = new HashMap<>();
+        this(messageRepository, new UserIds());
+    }
+
+    /**
+     * @param userIds shared with the {@link UserService}, so a user has the same id everywhere. Mailboxes are
+     *                keyed by id; names only get one here once they are known to belong to a user, i.e. of a
+     *                logged in client, of a checked recipient or from recovered messages.
+     */
+    public MessageService(MessageRepository messageRepository, UserIds userIds) {
+        this.userIds = userIds;
         this.messageRepository = messageRepository;
     }
 
     public void addClient(SimpleClient client) {
-        unreadMessages.put(client, new LinkedList<>() {});
+        int userId = userIds.idOf(client.getUsername());
+        if (shards != null)
+            shards.call(userId, mailboxes -> mailboxes.computeIfAbsent(userId, id -> new LinkedList<>()));
+        else
+            sharedMailbox(userId, true);
         LOGGER.info("New client added to mailbox: {}", client.getUsername());
     }
 
 
+    /**
+     * Refills the mailboxes with the unread messages recovered from disk after a restart.
+     */
+    public void restoreMailboxes(Map<String, List<StoredMessage>> unreadByReceiver) {
+        unreadByReceiver.forEach((receiver, messages) -> {
+            int userId = userIds.idOf(receiver);
+            if (shards != null)
+                shards.call(userId, mailboxes -> mailboxes.put(userId, new LinkedList<>(messages)));
+            else
+                putSharedMailbox(userId, new LinkedList<>(messages));
+        });
+        LOGGER.info("Restored mailboxes of {} clients", unreadByReceiver.size());
+    }
+
+
+    /**
+     * Attaches the message store once it has been recovered, for a service created without one so the server
+     * could accept connections during startup. Must be called before any message is sent or opened.
+     */
+    public void setMessageRepository(MessageRepository messageRepository) {
+        this.messageRepository = messageRepository;
+    }
+
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Moves the mailboxes onto the given shards, each owned by one thread, instead of the shared map.
+     * Must be called before any client is added or mailbox restored.
+     */
+    public void setShards(MailboxShards shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Puts the message in the recipient's mailbox, or forwards it to the node the recipient is logged in on.
+     * Forwarded messages are acknowledged once queued in memory for the node, whatever the durability policy:
+     * even under {@code BEFORE_ACK} a forwarded message is lost if this node stops before the link writes it,
+     * or the other node before storing it. If the other node refuses it, e.g. because the mailbox is full, the
+     * sender gets a notice in their mailbox instead of the response.
+     */
     public JsonObject sendMessage(Message message) {
-        var clientComparison = SimpleClient.builder()
-                .username(message.receiverId())
-                .build();
-        LOGGER.debug("New Message received: {}", message);
+        var node = cluster.nodeOf(message.receiverId());
+        if (node.isEmpty())
+            return deliver(message);
+
+        if (!cluster.forward(node.get(), message)) {
+            LOGGER.info("Forward queue to node {} is full, asking sender to retry", node.get());
+            return JsonResponse.serverResponse(StatusEnum.BUSY, "Server is busy, try again later");
+        }
+        return JsonResponse.serverResponse(StatusEnum.SUCCESS, "Message sent successfully");
+    }
 
+    /**
+     * Delivers a message another node forwarded here. Never forwarded again, even if the presence directory
+     * already says the recipient moved on.
+     */
+    public JsonObject deliverForwarded(Message message) {
+        if (shards == null)
+            sharedMailbox(userIds.idOf(message.receiverId()), true);
+        return deliver(message);
+    }
+
+    private JsonObject deliver(Message message) {
+        var event = new MailboxEnqueueEvent();
+        event.begin();
+        LOGGER.debug("New Message received: {}", message);
 
-        if (unreadMessages.get(clientComparison).size() < 5) {
-            unreadMessages.get(clientComparison).add(message);
-            messageRepository.saveMessage(message);
-            LOGGER.debug("message processed successfully, sending message to repo: {}", message);
-            return JsonResponse.serverResponse(StatusEnum.SUCCESS, "Message sent successfully");
+        int userId = userIds.idOf(message.receiverId());
+        Enqueued enqueued;
+        if (shards != null) {
+            enqueued = shards.call(userId, mailboxes ->
+                    enqueue(mailboxes.computeIfAbsent(userId, id -> new LinkedList<>()), message));
         } else {
+            var mailbox = sharedMailbox(userId, false);
+            synchronized (mailbox) {
+                enqueued = enqueue(mailbox, message);
+            }
+        }
+
+        if (enqueued == Enqueued.MAILBOX_FULL) {
             LOGGER.info("Client mailbox is full, returning message.");
             return JsonResponse.serverResponse(StatusEnum.ERROR, "Client Mailbox is full");
         }
+        if (enqueued == Enqueued.TOO_LARGE) {
+            LOGGER.info("Message to {} is too large to store, returning message.", message.receiverId());
+            return JsonResponse.serverResponse(StatusEnum.ERROR, "Message is too large");
+        }
+        if (enqueued == Enqueued.STORE_BUSY) {
+            LOGGER.info("Message store is busy, asking sender to retry");
+            return JsonResponse.serverResponse(StatusEnum.BUSY, "Server is busy, try again later");
+        }
+        LOGGER.debug("message processed successfully, sending message to repo: {}", message);
+
+        boolean stored = !messageRepository.acknowledgesAfterSync() || awaitPersisted(enqueued.persisted());
+        if (event.shouldCommit()) {
+            event.receiverId = message.receiverId();
+            event.messageBytes = message.message() == null ? 0 : message.message().length();
+            event.mailboxDepth = enqueued.mailboxDepth();
+            event.commit();
+        }
+        if (!stored)
+            return JsonResponse.serverResponse(StatusEnum.ERROR, "Message delivered but could not be stored durably");
+        return JsonResponse.serverResponse(StatusEnum.SUCCESS, "Message sent successfully");
+    }
+
+    /**
+     * Stores the message and adds it to the mailbox with its offset, on the thread that owns the mailbox when
+     * sharded and holding the mailbox otherwise, so the log and the mailbox see one recipient's messages in
+     * the same order. Waiting for the write to become durable is left to the caller.
+     */
+    private Enqueued enqueue(LinkedList<StoredMessage> mailbox, Message message) {
+        if (mailbox.size() >= MAILBOX_CAPACITY)
+            return Enqueued.MAILBOX_FULL;
+        QueuedRecords queued;
+        try {
+            queued = messageRepository.saveMessage(message);
+        } catch (PersistenceBusyException e) {
+            return Enqueued.STORE_BUSY;
+        } catch (RecordCodec.RecordTooLargeException e) {
+            return Enqueued.TOO_LARGE;
+        }
+        mailbox.add(new StoredMessage(queued.firstOffset(), message));
+        return new Enqueued(queued.persisted(), mailbox.size());
+    }
+
+    /**
+     * Sends many messages at once, e.g. notifications from a backend. Messages for local recipients are
+     * checked against their mailboxes, stored with a single append and added to the mailboxes in one pass;
+     * with shards that is one pass and one append per shard, all shards working at once. Messages for users
+     * on other nodes are forwarded.
+     *
+     * @return the response for each message, in order, as {@link #sendMessage} would have returned it
+     */
+    public JsonObject[] sendMessages(List<Message> messages) {
+        var results = new JsonObject[messages.size()];
+        var local = new ArrayList<Integer>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            var node = cluster.nodeOf(messages.get(i).receiverId());
+            if (node.isEmpty())
+                local.add(i);
+            else if (cluster.forward(node.get(), messages.get(i)))
+                results[i] = JsonResponse.serverResponse(StatusEnum.SUCCESS, "Message sent successfully");
+            else
+                results[i] = JsonResponse.serverResponse(StatusEnum.BUSY, "Server is busy, try again later");
+        }
+
+        List<Stored> stored = new ArrayList<>();
+        if (shards == null) {
+            stored.add(enqueueAll(messages, local, results, true, receiver -> sharedMailbox(userIds.idOf(receiver), true)));
+        } else {
+            var byShard = new HashMap<Integer, List<Integer>>();
+            for (int i : local)
+                byShard.computeIfAbsent(shards.indexOf(userIds.idOf(messages.get(i).receiverId())), shard -> new ArrayList<>()).add(i);
+            var futures = new ArrayList<CompletableFuture<Stored>>(byShard.size());
+            byShard.forEach((shard, indexes) -> futures.add(shards.submit(shard, mailboxes -> enqueueAll(messages,
+                    indexes, results, false, receiver -> mailboxes.computeIfAbsent(userIds.idOf(receiver), id -> new LinkedList<>())))));
+            for (CompletableFuture<Stored> future : futures)
+                stored.add(future.join());
+        }
+
+        if (messageRepository.acknowledgesAfterSync()) {
+            for (Stored batch : stored) {
+                if (batch.persisted() != null && !awaitPersisted(batch.persisted())) {
+                    for (int i : batch.indexes())
+                        results[i] = JsonResponse.serverResponse(StatusEnum.ERROR, "Message delivered but could not be stored durably");
+                }
+            }
+        }
+        LOGGER.debug("Bulk of {} messages processed", messages.size());
+        return results;
+    }
+
+    /**
+     * Bulk counterpart of {@link #enqueue}: stores the messages that fit into their mailboxes with one append,
+     * then adds them to the mailboxes, and fills in the response of each given message. Shared mailboxes are
+     * only held while a message is added, so a single message sent meanwhile may be added first; the offsets
+     * keep each mailbox in log order regardless.
+     */
+    private Stored enqueueAll(List<Message> messages, List<Integer> indexes, JsonObject[] results, boolean shared,
+                              Function<String, LinkedList<StoredMessage>> mailboxOf) {
+        var accepted = new ArrayList<Integer>(indexes.size());
+        var acceptedPerReceiver = new HashMap<String, Integer>();
+        for (int i : indexes) {
+            var receiver = messages.get(i).receiverId();
+            if (!RecordCodec.fits(messages.get(i))) {
+                results[i] = JsonResponse.serverResponse(StatusEnum.ERROR, "Message is too large");
+                continue;
+            }
+            int alreadyAccepted = acceptedPerReceiver.getOrDefault(receiver, 0);
+            if (mailboxOf.apply(receiver).size() + alreadyAccepted >= MAILBOX_CAPACITY) {
+                results[i] = JsonResponse.serverResponse(StatusEnum.ERROR, "Client Mailbox is full");
+                continue;
+            }
+            acceptedPerReceiver.put(receiver, alreadyAccepted + 1);
+            accepted.add(i);
+        }
+        if (accepted.isEmpty())
+            return new Stored(accepted, null);
+
+        var batch = new ArrayList<Message>(accepted.size());
+        for (int i : accepted)
+            batch.add(messages.get(i));
+        QueuedRecords queued;
+        try {
+            queued = messageRepository.saveMessages(batch);
+        } catch (PersistenceBusyException e) {
+            LOGGER.info("Message store is busy, asking sender to retry {} messages", accepted.size());
+            for (int i : accepted)
+                results[i] = JsonResponse.serverResponse(StatusEnum.BUSY, "Server is busy, try again later");
+            return new Stored(accepted, null);
+        }
+        long offset = queued.firstOffset();
+        for (int i : accepted) {
+            var mailbox = mailboxOf.apply(messages.get(i).receiverId());
+            var message = new StoredMessage(offset++, messages.get(i));
+            if (shared) {
+                synchronized (mailbox) {
+                    insertInOrder(mailbox, message);
+                }
+            } else {
+                insertInOrder(mailbox, message);
+            }
+            results[i] = JsonResponse.serverResponse(StatusEnum.SUCCESS, "Message sent successfully");
+        }
+        return new Stored(accepted, queued.persisted());
+    }
+
+    /**
+     * Adds the message behind the ones saved before it. Usually that is the end of the mailbox.
+     */
+    private static void insertInOrder(LinkedList<StoredMessage> mailbox, StoredMessage message) {
+        var position = mailbox.listIterator(mailbox.size());
+        while (position.hasPrevious()) {
+            if (position.previous().offset() < message.offset()) {
+                position.next();
+                break;
+            }
+        }
+        position.add(message);
+    }
+
+    private boolean awaitPersisted(CompletableFuture<Long> persisted) {
+        try {
+            persisted.get(messageRepository.getAckTimeoutMillis(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.warn("Message was not persisted before acknowledging: {}", e.toString());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Opens the user's stored messages for a raw export.
+     *
+     * @return null if messages are not persisted
+     */
+    public LogExport exportMessages(String username) throws IOException {
+        return messageRepository == null ? null : messageRepository.exportMessages(username);
+    }
+
+    /**
+     * Unread messages across all mailboxes. Read without locking the mailboxes, so only approximate while
+     * messages are being sent or opened.
+     */
+    public long getUnreadMessageCount() {
+        if (shards != null)
+            return shards.callAll(MessageService::unreadCount).stream().mapToLong(Long::longValue).sum();
+        return readSharedMailboxes(MessageService::unreadCount);
+    }
+
+    public int getUnreadMessageCount(String username) {
+        int userId = userIds.find(username);
+        if (userId == UserIds.UNKNOWN)
+            return 0;
+        if (shards != null)
+            return shards.call(userId, mailboxes -> mailboxes.containsKey(userId) ? mailboxes.get(userId).size() : 0);
+        var mailbox = sharedMailbox(userId, false);
+        return mailbox == null ? 0 : mailbox.size();
+    }
+
+    public long getLargestMailboxSize() {
+        if (shards != null)
+            return shards.callAll(MessageService::largestMailboxSize).stream().mapToLong(Long::longValue).max().orElse(0);
+        return readSharedMailboxes(MessageService::largestMailboxSize);
+    }
+
+    /**
+     * The user's mailbox in the shared map, looked up without locking unless a mailbox was added meanwhile.
+     *
+     * @param create whether to add an empty mailbox if the user has none
+     * @return null if the user has no mailbox and none was created
+     */
+    private LinkedList<StoredMessage> sharedMailbox(int userId, boolean create) {
+        long stamp = unreadMessagesLock.tryOptimisticRead();
+        if (stamp != 0) {
+            var mailbox = unreadMessages.get(userId);
+            if (unreadMessagesLock.validate(stamp) && (mailbox != null || !create))
+                return mailbox;
+        }
+        stamp = create ? unreadMessagesLock.writeLock() : unreadMessagesLock.readLock();
+        try {
+            return create ? unreadMessages.computeIfAbsent(userId, id -> new LinkedList<>()) : unreadMessages.get(userId);
+        } finally {
+            unreadMessagesLock.unlock(stamp);
+        }
+    }
+
+    private void putSharedMailbox(int userId, LinkedList<StoredMessage> mailbox) {
+        long stamp = unreadMessagesLock.writeLock();
+        try {
+            unreadMessages.put(userId, mailbox);
+        } finally {
+            unreadMessagesLock.unlockWrite(stamp);
+        }
+    }
+
+    private long readSharedMailboxes(Function<IntObjectMap<LinkedList<StoredMessage>>, Long> read) {
+        long stamp = unreadMessagesLock.readLock();
+        try {
+            return read.apply(unreadMessages);
+        } finally {
+            unreadMessagesLock.unlockRead(stamp);
+        }
+    }
+
+    private static long unreadCount(IntObjectMap<LinkedList<StoredMessage>> mailboxes) {
+        long[] count = {0};
+        mailboxes.forEachValue(mailbox -> count[0] += mailbox.size());
+        return count[0];
+    }
+
+    private static long largestMailboxSize(IntObjectMap<LinkedList<StoredMessage>> mailboxes) {
+        long[] largest = {0};
+        mailboxes.forEachValue(mailbox -> largest[0] = Math.max(largest[0], mailbox.size()));
+        return largest[0];
     }
 
     //TODO: client management - have a global list of connected clients?
@@ -56,17 +413,67 @@ public class MessageService {
 //    }
 
     public JsonObject openMessage(SimpleClient client) {
-        var response = new JsonObject();
-
-        try  {
-            var message = unreadMessages.get(client).pop();
-            response = JsonResponse.serverResponse(StatusEnum.SUCCESS, "New message");
-            response.addProperty("messageObject", gson.toJson(message));
-            LOGGER.debug("Client successfully opened a new message");
-        } catch (NoSuchElementException e) { // when message is empty
-            response = JsonResponse.serverResponse(StatusEnum.SUCCESS, "No new messages");
+        var event = new MailboxDequeueEvent();
+        event.begin();
+        int userId = userIds.find(client.getUsername());
+        Opened opened;
+        if (userId == UserIds.UNKNOWN)
+            opened = null;
+        else if (shards != null)
+            opened = shards.call(userId, mailboxes -> dequeue(mailboxes.get(userId), client));
+        else
+            opened = dequeueShared(sharedMailbox(userId, false), client);
+
+        if (opened == null) {
             LOGGER.debug("Client tried to open message but it's empty");
+            return JsonResponse.serverResponse(StatusEnum.SUCCESS, "No new messages");
         }
+        var message = opened.message();
+        if (event.shouldCommit()) {
+            event.receiverId = client.getUsername();
+            event.messageBytes = message.message() == null ? 0 : message.message().length();
+            event.mailboxDepth = opened.mailboxDepth();
+            event.commit();
+        }
+        var response = JsonResponse.serverResponse(StatusEnum.SUCCESS, "New message");
+        response.addProperty("messageObject", gson.toJson(message));
+        LOGGER.debug("Client successfully opened a new message");
         return response;
     }
+
+    private Opened dequeueShared(LinkedList<StoredMessage> mailbox, SimpleClient client) {
+        if (mailbox == null)
+            return null;
+        synchronized (mailbox) {
+            return dequeue(mailbox, client);
+        }
+    }
+
+    /**
+     * Takes the oldest message and acknowledges the record it was saved in.
+     *
+     * @return null if the mailbox is empty, or missing because the client is not logged in
+     */
+    private Opened dequeue(LinkedList<StoredMessage> mailbox, SimpleClient client) {
+        if (mailbox == null || mailbox.isEmpty())
+            return null;
+        var stored = mailbox.pop();
+        messageRepository.acknowledgeMessage(client.getUsername(), stored.offset());
+        return new Opened(stored.message(), mailbox.size());
+    }
+
+    private record Enqueued(CompletableFuture<Long> persisted, int mailboxDepth) {
+        static final Enqueued MAILBOX_FULL = new Enqueued(null, -1);
+        static final Enqueued STORE_BUSY = new Enqueued(null, -2);
+        static final Enqueued TOO_LARGE = new Enqueued(null, -3);
+    }
+
+    /**
+     * Messages of a bulk, by index, stored with one append; {@code persisted} is null if none were.
+     */
+    private record Stored(List<Integer> indexes, CompletableFuture<Long> persisted) {
+    }
+
+    private record Opened(Message message, int mailboxDepth) {
+    }
 }
@@ -0,0 +1,20 @@
+package simpleserver.service;
+
+import simpleserver.client.SimpleClient;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * Identifies a logged in session: the connection and the session id the client tagged its requests with.
+ * Requests without a tag belong to the connection's own session, whose id is null.
+ */
+public record SessionKey(SocketChannel channel, String sessionId) {
+
+    public static SessionKey of(SocketChannel channel) {
+        return new SessionKey(channel, null);
+    }
+
+    public static SessionKey of(SimpleClient client) {
+        return new SessionKey(client.getSocketChannel(), client.getSessionId());
+    }
+}
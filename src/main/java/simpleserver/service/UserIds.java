@@ -0,0 +1,42 @@
+package simpleserver.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns usernames to small ints, handed out in order from 0 the first time a name is seen: when the
+ * registered users are loaded, at registration, or for a recipient only known from recovered messages. An
+ * id is never reassigned while the server runs, so ids can key primitive maps instead of the names, which
+ * are then hashed once per request rather than at every map they pass through.
+ * <p>
+ * Ids are never freed, so names that come straight from a client, such as the user to look up or log in, are
+ * only looked up with {@link #find}; otherwise any made-up name would grow the table for good.
+ * <p>
+ * Ids are not persisted; the log and the user file keep the names.
+ */
+public class UserIds {
+    public static final int UNKNOWN = -1;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * The user's id, assigning the next one if the name is new.
+     */
+    public int idOf(String username) {
+        Integer id = ids.get(username);
+        return id != null ? id : ids.computeIfAbsent(username, name -> next.getAndIncrement());
+    }
+
+    /**
+     * The user's id, {@link #UNKNOWN} if none was assigned yet.
+     */
+    public int find(String username) {
+        Integer id = ids.get(username);
+        return id == null ? UNKNOWN : id;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
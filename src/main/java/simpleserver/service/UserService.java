@@ -7,28 +7,93 @@ import org.slf4j.LoggerFactory;
 import simpleserver.client.SimpleClient;
 import simpleserver.dto.RegisteredUserCredentials;
 import simpleserver.repository.UserRepository;
+import simpleserver.util.IntObjectMap;
 
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
 
 
+/**
+ * Logged in sessions and registered users. Every login hands out a resume token; when a connection drops, its
+ * users stay logged in for the resume grace window, during which a new connection can take the session over
+ * with the token instead of logging in again. Messages sent to them meanwhile wait in their mailboxes.
+ * <p>
+ * What the requests ask about a user, its credentials and whether it has a session, is kept per
+ * {@link UserIds interned id} in a primitive map, so a login, an admin check or a presence check before each
+ * message is one lookup instead of a scan of the registered users or of all sessions. Readers do not lock:
+ * they read optimistically and only retry under the read lock if a registration or login changed the map
+ * meanwhile.
+ */
 @Getter
 public class UserService {
     private final static Logger LOGGER = LoggerFactory.getLogger(UserService.class);
-    private final HashMap<SocketChannel, String> connectedClients;
+    private static final long DEFAULT_RESUME_GRACE_MILLIS = 30_000;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<SessionKey, String> connectedClients;
+    private final Set<SessionKey> authenticatedSessions = ConcurrentHashMap.newKeySet();
+    private final Map<SessionKey, String> sessionTokens = new ConcurrentHashMap<>();
+    private final Map<String, String> resumeTokens = new ConcurrentHashMap<>();
+    private final Map<String, DetachedSession> detachedSessions = new ConcurrentHashMap<>();
     private final MessageService messageService;
     private final UserRepository userRepository;
+    private final UserIds userIds;
+    private final IntObjectMap<UserState> users = new IntObjectMap<>();
+    private final StampedLock usersLock = new StampedLock();
+    private volatile List<RegisteredUserCredentials> indexedUsers;
+    private volatile int indexedCount;
+    private Cluster cluster = Cluster.STANDALONE;
+    private long resumeGraceNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_RESUME_GRACE_MILLIS);
 
 
     public UserService(MessageService messageService, UserRepository userRepository) {
+        this(messageService, userRepository, new UserIds());
+    }
+
+    /**
+     * @param userIds shared with the {@link MessageService}, so a user has the same id everywhere
+     */
+    public UserService(MessageService messageService, UserRepository userRepository, UserIds userIds) {
         this.userRepository = userRepository;
         this.messageService = messageService;
-        this.connectedClients = new HashMap<>();
+        this.userIds = userIds;
+        this.connectedClients = new Sessions();
         //Runtime.getRuntime().addShutdownHook(new Thread(this::saveRegisteredUsers));
     }
 
+    /**
+     * How long the users of a dropped connection stay logged in and can resume. 0 logs them out at once.
+     */
+    public void setResumeGraceMillis(long resumeGraceMillis) {
+        this.resumeGraceNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, resumeGraceMillis));
+    }
+
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Whether the user can receive messages: logged in here or on another node of the cluster.
+     */
+    public boolean userIsReachable(String username) {
+        return userIsConnected(username) || cluster.nodeOf(username).isPresent();
+    }
+
     public boolean userIsConnected(String username) {
-        return connectedClients.containsValue(username) && StringUtils.isNotBlank(username);
+        if (StringUtils.isBlank(username))
+            return false;
+        return hasSessions(username) || isDetached(username);
     }
 
     public boolean verifyUser(SimpleClient client) {
@@ -36,20 +101,53 @@ public class UserService {
                 StringUtils.isNotBlank(client.getPassword());
     }
 
+    /**
+     * Whether the user logged in on this connection is an administrator. Only sessions set up by
+     * {@link #loginUser} or {@link #resumeSession} count, and the authority comes from the stored credentials,
+     * never from what the client claims in its requests.
+     */
+    public boolean isAdmin(SocketChannel channel) {
+        return isAdmin(SessionKey.of(channel));
+    }
+
+    public boolean isAdmin(SessionKey session) {
+        if (!authenticatedSessions.contains(session))
+            return false;
+        String username = connectedClients.get(session);
+        if (StringUtils.isBlank(username))
+            return false;
+
+        var credentials = credentialsOf(username);
+        return credentials != null && credentials.isAdmin();
+    }
+
     public LoginResult loginUser(SocketChannel socketChannel, String username, String password) {
-        if (userRepository.getAllUsers().stream()
-                .anyMatch(user -> user.username().equals(username) && user.password().equals(password))) {
+        return loginUser(SessionKey.of(socketChannel), username, password);
+    }
+
+    /**
+     * Logs a user in on one session of a connection. A connection can carry sessions of many users, but a user
+     * can only be logged in once.
+     */
+    public LoginResult loginUser(SessionKey session, String username, String password) {
+        var credentials = credentialsOf(username);
+        if (credentials != null && credentials.password().equals(password)) {
 
-            if (connectedClients.containsValue(username))
+            if (hasSessions(username) || cluster.nodeOf(username).isPresent())
                 return LoginResult.USER_ALREADY_LOGGED_IN;
+            boolean wasDetached = dropDetached(username);
 
             var connectedUser = SimpleClient.builder()
                     .username(username)
-                    .socketChannel(socketChannel)
+                    .socketChannel(session.channel())
+                    .sessionId(session.sessionId())
                     .build();
 
-            connectedClients.put(socketChannel, username);
+            connectedClients.put(session, username);
+            authenticatedSessions.add(session);
             messageService.addClient(connectedUser);
+            if (!wasDetached)
+                cluster.userOnline(username);
 
             return LoginResult.LOGIN_SUCCESS;
         }
@@ -60,26 +158,291 @@ public class UserService {
     public boolean registerNewUser(String username, String password) {
         var clientCredential = new RegisteredUserCredentials(username, password);
 
-        if (userRepository.getAllUsers().stream()
-                .anyMatch(credentials -> credentials.username().equals(username))) {
-            LOGGER.info("Client with {} is already registered", username);
-            return false;
-        }
-
+        long stamp = usersLock.writeLock();
+        try {
+            indexRegisteredUsers(userRepository.getAllUsers());
+            int id = userIds.find(username);
+            var state = id == UserIds.UNKNOWN ? null : users.get(id);
+            if (state != null && state.credentials != null) {
+                LOGGER.info("Client with {} is already registered", username);
+                return false;
+            }
 
-        userRepository.addUser(clientCredential);
+            userRepository.addUser(clientCredential);
+            indexRegisteredUsers(userRepository.getAllUsers());
+        } finally {
+            usersLock.unlockWrite(stamp);
+        }
         LOGGER.info("Added new user to list of registered users");
         return true;
     }
 
+    /**
+     * Registers a new connection whose own session is not logged in yet.
+     */
+    public void addConnection(SocketChannel channel) {
+        connectedClients.put(SessionKey.of(channel), "");
+    }
+
+    /**
+     * Detaches every session of a closed connection. Users that hold a resume token stay logged in for the
+     * grace window, the others are logged out.
+     */
     public void disconnectClient(SocketChannel channel) {
-        connectedClients.remove(channel);
+        dropExpiredSessions();
+        long deadline = System.nanoTime() + resumeGraceNanos;
+        for (var session : connectedClients.keySet()) {
+            if (session.channel() != channel)
+                continue;
+            String username = connectedClients.remove(session);
+            authenticatedSessions.remove(session);
+            String token = sessionTokens.remove(session);
+            if (token != null && StringUtils.isNotBlank(username) && resumeGraceNanos > 0) {
+                detachedSessions.put(username, new DetachedSession(token, deadline));
+                continue;
+            }
+            if (token != null)
+                resumeTokens.remove(token);
+            if (StringUtils.isNotBlank(username))
+                cluster.userOffline(username);
+        }
+    }
+
+    /**
+     * Logs out one session; its resume token is no longer valid.
+     */
+    public void disconnectSession(SessionKey session) {
+        String username = connectedClients.remove(session);
+        authenticatedSessions.remove(session);
+        if (StringUtils.isNotBlank(username))
+            cluster.userOffline(username);
+        String token = sessionTokens.remove(session);
+        if (token != null)
+            resumeTokens.remove(token);
+    }
+
+    /**
+     * Issues a new resume token for the user logged in on the session, replacing the session's previous token.
+     */
+    public String issueResumeToken(SessionKey session) {
+        String username = connectedClients.get(session);
+        if (StringUtils.isBlank(username))
+            throw new IllegalStateException("No user is logged in on this session");
+        var bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+
+        resumeTokens.put(token, username);
+        String previous = sessionTokens.put(session, token);
+        if (previous != null)
+            resumeTokens.remove(previous);
+        return token;
+    }
+
+    /**
+     * Logs the session in as the user the token was issued to, if that user's connection dropped less than the
+     * grace window ago or is still open (the server may not have noticed the drop yet). The token can be used
+     * only once.
+     *
+     * @return the resumed username, empty if the token is unknown or expired
+     */
+    public Optional<String> resumeSession(SessionKey session, String token) {
+        dropExpiredSessions();
+        String username = token == null ? null : resumeTokens.remove(token);
+        if (username == null)
+            return Optional.empty();
+
+        if (detachedSessions.remove(username) == null) {
+            for (var entry : sessionTokens.entrySet()) {
+                if (token.equals(entry.getValue())) {
+                    connectedClients.remove(entry.getKey());
+                    authenticatedSessions.remove(entry.getKey());
+                    sessionTokens.remove(entry.getKey());
+                }
+            }
+        }
+        connectedClients.put(session, username);
+        authenticatedSessions.add(session);
+        return Optional.of(username);
+    }
+
+    private boolean isDetached(String username) {
+        var detached = detachedSessions.get(username);
+        return detached != null && detached.deadlineNanos() - System.nanoTime() > 0;
+    }
+
+    private boolean dropDetached(String username) {
+        var detached = detachedSessions.remove(username);
+        if (detached == null)
+            return false;
+        resumeTokens.remove(detached.token());
+        return true;
     }
 
-    public void updateClient(SimpleClient client) {
-        if (connectedClients.containsKey(client.getSocketChannel())) {
-            connectedClients.put(client.getSocketChannel(), client.getUsername());
+    private void dropExpiredSessions() {
+        long now = System.nanoTime();
+        detachedSessions.forEach((username, detached) -> {
+            if (detached.deadlineNanos() - now <= 0 && detachedSessions.remove(username, detached)) {
+                resumeTokens.remove(detached.token());
+                cluster.userOffline(username);
+            }
+        });
+    }
+
+    private record DetachedSession(String token, long deadlineNanos) {
+    }
+
+    private RegisteredUserCredentials credentialsOf(String username) {
+        var registered = userRepository.getAllUsers();
+        if (registered != indexedUsers || registered.size() != indexedCount) {
+            long stamp = usersLock.writeLock();
+            try {
+                indexRegisteredUsers(registered);
+            } finally {
+                usersLock.unlockWrite(stamp);
+            }
+        }
+        return readUser(username, state -> state.credentials);
+    }
+
+    private boolean hasSessions(String username) {
+        Integer sessions = readUser(username, state -> state.sessions);
+        return sessions != null && sessions > 0;
+    }
+
+    /**
+     * Reads from the user's state without locking, unless the map changed during the read.
+     *
+     * @return the value read, null if the user has no state
+     */
+    private <T> T readUser(String username, Function<UserState, T> read) {
+        int id = userIds.find(username);
+        if (id == UserIds.UNKNOWN)
+            return null;
+        long stamp = usersLock.tryOptimisticRead();
+        if (stamp != 0) {
+            var state = users.get(id);
+            T value = state == null ? null : read.apply(state);
+            if (usersLock.validate(stamp))
+                return value;
+        }
+        stamp = usersLock.readLock();
+        try {
+            var state = users.get(id);
+            return state == null ? null : read.apply(state);
+        } finally {
+            usersLock.unlockRead(stamp);
         }
     }
 
+    /**
+     * Indexes the users the repository registered since the last call. Its list only grows, by
+     * {@link #registerNewUser} or a user added to it directly, until it is loaded again as a new list, which
+     * is then indexed from scratch. Must hold the write lock.
+     */
+    private void indexRegisteredUsers(List<RegisteredUserCredentials> registered) {
+        if (registered != indexedUsers) {
+            users.forEachValue(state -> state.credentials = null);
+            indexedCount = 0;
+            indexedUsers = registered;
+        }
+        int count = indexedCount;
+        for (; count < registered.size(); count++) {
+            var credentials = registered.get(count);
+            users.computeIfAbsent(userIds.idOf(credentials.username()), id -> new UserState()).credentials = credentials;
+        }
+        indexedCount = count;
+    }
+
+    /**
+     * Counts the sessions per user as {@link #connectedClients} changes.
+     */
+    private void sessionChanged(String previous, String current) {
+        boolean leaving = StringUtils.isNotBlank(previous);
+        boolean joining = StringUtils.isNotBlank(current);
+        if (!leaving && !joining || leaving && previous.equals(current))
+            return;
+        long stamp = usersLock.writeLock();
+        try {
+            if (leaving) {
+                int id = userIds.find(previous);
+                var state = id == UserIds.UNKNOWN ? null : users.get(id);
+                if (state != null && --state.sessions == 0 && state.credentials == null)
+                    users.remove(id);
+            }
+            if (joining)
+                users.computeIfAbsent(userIds.idOf(current), id -> new UserState()).sessions++;
+        } finally {
+            usersLock.unlockWrite(stamp);
+        }
+    }
+
+    private static final class UserState {
+        RegisteredUserCredentials credentials; // null while not registered
+        int sessions;
+    }
+
+    /**
+     * The logged in user, or an empty name, per session. Keeps the session counts in {@link #users} up to
+     * date; its views are read-only so every change goes through {@link #put} or {@link #remove}.
+     */
+    private final class Sessions extends AbstractMap<SessionKey, String> {
+        private final Map<SessionKey, String> sessions = new ConcurrentHashMap<>();
+
+        @Override
+        public String get(Object session) {
+            return sessions.get(session);
+        }
+
+        @Override
+        public boolean containsKey(Object session) {
+            return sessions.containsKey(session);
+        }
+
+        @Override
+        public boolean containsValue(Object username) {
+            if (username instanceof String name && StringUtils.isNotBlank(name))
+                return hasSessions(name);
+            return sessions.containsValue(username);
+        }
+
+        @Override
+        public String put(SessionKey session, String username) {
+            String previous = sessions.put(session, username);
+            sessionChanged(previous, username);
+            return previous;
+        }
+
+        @Override
+        public String remove(Object session) {
+            String previous = sessions.remove(session);
+            sessionChanged(previous, null);
+            return previous;
+        }
+
+        @Override
+        public int size() {
+            return sessions.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return sessions.isEmpty();
+        }
+
+        @Override
+        public Set<SessionKey> keySet() {
+            return Collections.unmodifiableSet(sessions.keySet());
+        }
+
+        @Override
+        public Collection<String> values() {
+            return Collections.unmodifiableCollection(sessions.values());
+        }
+
+        @Override
+        public Set<Entry<SessionKey, String>> entrySet() {
+            return Collections.unmodifiableMap(sessions).entrySet();
+        }
+    }
 }
@@ -0,0 +1,330 @@
+package simpleserver.tls;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * TLS over a {@link SocketChannel}, driven by an {@link SSLEngine}. Reads and writes plain bytes like the
+ * socket itself and works in blocking as well as non-blocking mode: in non-blocking mode {@link #read} and
+ * {@link #write} return 0 while the handshake waits for the peer or for its delegated tasks, and encrypted
+ * bytes the socket did not take yet stay buffered until {@link #flush}.
+ * <p>
+ * The handshake starts with the first read or write, or an explicit {@link #handshake()}. The engine's
+ * delegated tasks, which do the handshake's key exchange and certificate checks, run on the thread doing the
+ * I/O in blocking mode: that thread could only wait for them, and the server already has one per
+ * connection. In non-blocking mode they run on the given executor, so a selector thread keeps serving its
+ * other channels, and the task listener is told when the handshake can go on.
+ * <p>
+ * Not thread safe: like the socket of a {@code ClientRequestHandler}, a channel is used by one thread at a
+ * time.
+ */
+public class TlsChannel implements ByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Executor taskExecutor;
+    private ByteBuffer netIn;   // received from the socket, not unwrapped yet; write mode
+    // Records wrapped in a row are written together: with separate small writes Nagle's algorithm holds back
+    // all but the first until the peer's delayed acknowledgement
+    private ByteBuffer netOut;  // wrapped, not written to the socket yet; read mode
+    private ByteBuffer appIn;   // unwrapped, not returned by read yet; write mode
+    private Runnable taskListener = () -> {};
+    private CompletableFuture<Void> tasks;
+    private boolean handshakeStarted;
+    private boolean handshaking = true;
+    private boolean inboundDone;
+    private IOException failure;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, Executor taskExecutor) {
+        this.channel = channel;
+        this.engine = engine;
+        this.taskExecutor = taskExecutor;
+        var session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    }
+
+    public SocketChannel getSocketChannel() {
+        return channel;
+    }
+
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    /**
+     * Called on an executor thread when delegated tasks a non-blocking handshake waits for have finished,
+     * e.g. to wake up the selector so the I/O thread continues the handshake.
+     */
+    public void setTaskListener(Runnable taskListener) {
+        this.taskListener = taskListener;
+    }
+
+    /**
+     * Advances the handshake as far as possible. In blocking mode it returns once the handshake is complete.
+     * The last handshake messages stay buffered until the next write, read or {@link #flush}, so they share
+     * a packet with the first data.
+     *
+     * @return true when the handshake is complete
+     * @throws SSLException if the peer is not trusted or the handshake fails otherwise; the channel is then
+     *                      unusable
+     */
+    public boolean handshake() throws IOException {
+        if (failure != null)
+            throw failure;
+        if (!handshaking)
+            return true;
+        try {
+            if (!handshakeStarted) {
+                engine.beginHandshake();
+                handshakeStarted = true;
+            }
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NOT_HANDSHAKING, FINISHED -> {
+                        handshaking = false;
+                        return true;
+                    }
+                    case NEED_TASK -> {
+                        if (!runDelegatedTasks())
+                            return false;
+                    }
+                    case NEED_WRAP -> wrap(EMPTY);
+                    case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                        switch (unwrap()) {
+                            case NEED_INPUT -> {
+                                return false;
+                            }
+                            case CLOSED -> throw new EOFException("Connection closed during the TLS handshake");
+                            case PROGRESS -> {
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!handshake())
+            return 0;
+        while (true) {
+            if (appIn.position() > 0)
+                return transferTo(dst);
+            if (inboundDone)
+                return -1;
+            switch (unwrap()) {
+                case NEED_INPUT -> {
+                    return 0;
+                }
+                case CLOSED -> inboundDone = true;
+                case PROGRESS -> {
+                    // post-handshake messages such as session tickets or key updates
+                    if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                        handshaking = true;
+                        if (!handshake() && appIn.position() == 0)
+                            return 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Encrypts as much of the source as the socket takes. In blocking mode that is all of it.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!handshake())
+            return 0;
+        int consumed = 0;
+        while (src.hasRemaining()) {
+            if (netOut.remaining() >= engine.getSession().getPacketBufferSize() && !flush())
+                break;
+            consumed += wrap(src);
+        }
+        flush();
+        return consumed;
+    }
+
+    /**
+     * Writes encrypted bytes the socket did not take before.
+     *
+     * @return true when nothing is left to write
+     */
+    public boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends the TLS close notification, as far as the socket takes it without blocking, and closes the socket.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (failure == null && !handshaking && !engine.isOutboundDone() && flush()) {
+                engine.closeOutbound();
+                wrap(EMPTY);
+                flush();
+            }
+        } catch (IOException e) {
+            // the peer may be gone already, closing the socket is all that matters
+        } finally {
+            channel.close();
+        }
+    }
+
+    private int wrap(ByteBuffer src) throws IOException {
+        netOut.compact();
+        try {
+            while (true) {
+                var result = engine.wrap(src, netOut);
+                switch (result.getStatus()) {
+                    case OK -> {
+                        return result.bytesConsumed();
+                    }
+                    case BUFFER_OVERFLOW -> netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                    case CLOSED -> {
+                        if (engine.isOutboundDone() && result.bytesProduced() > 0)
+                            return result.bytesConsumed(); // the close notification itself
+                        throw new SSLException("TLS connection is closed");
+                    }
+                    case BUFFER_UNDERFLOW -> throw new IllegalStateException("Underflow while wrapping");
+                }
+            }
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    private Unwrapped unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case OK:
+                return Unwrapped.PROGRESS;
+            case BUFFER_OVERFLOW:
+                appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                return Unwrapped.PROGRESS;
+            case CLOSED:
+                return Unwrapped.CLOSED;
+            default: // BUFFER_UNDERFLOW, the next record is incomplete
+                if (!netIn.hasRemaining())
+                    netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                flush(); // the peer may be waiting for what we have buffered
+                int read = channel.read(netIn);
+                if (read < 0) {
+                    closeInboundQuietly();
+                    return Unwrapped.CLOSED;
+                }
+                return read == 0 ? Unwrapped.NEED_INPUT : Unwrapped.PROGRESS;
+        }
+    }
+
+    /**
+     * Runs the pending delegated tasks. In blocking mode runs them on the calling thread, in non-blocking
+     * mode starts them on the executor, returns and tells the task listener once they are done.
+     *
+     * @return true when the tasks are done
+     */
+    private boolean runDelegatedTasks() throws SSLException {
+        if (channel.isBlocking()) {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null)
+                task.run();
+            return true;
+        }
+
+        if (tasks == null) {
+            List<CompletableFuture<Void>> started = new ArrayList<>();
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null)
+                started.add(runAsync(task));
+            tasks = CompletableFuture.allOf(started.toArray(CompletableFuture[]::new));
+            tasks.thenRun(taskListener);
+        }
+        if (!tasks.isDone())
+            return false;
+
+        try {
+            tasks.join();
+        } catch (CompletionException e) {
+            throw new SSLException("TLS handshake task failed", e.getCause());
+        } finally {
+            tasks = null;
+        }
+        return true;
+    }
+
+    private CompletableFuture<Void> runAsync(Runnable task) {
+        try {
+            return CompletableFuture.runAsync(task, taskExecutor);
+        } catch (RejectedExecutionException e) { // executor shut down
+            task.run();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private int transferTo(ByteBuffer dst) {
+        appIn.flip();
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        dst.put(appIn.slice(appIn.position(), count));
+        appIn.position(appIn.position() + count);
+        appIn.compact();
+        return count;
+    }
+
+    private void closeInboundQuietly() {
+        inboundDone = true;
+        try {
+            engine.closeInbound();
+        } catch (SSLException e) {
+            // the peer closed the socket without a close notification
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimumFree) {
+        var larger = ByteBuffer.allocate(buffer.capacity() + minimumFree);
+        buffer.flip();
+        return larger.put(buffer);
+    }
+
+    private enum Unwrapped {
+        PROGRESS,
+        NEED_INPUT,
+        CLOSED
+    }
+}
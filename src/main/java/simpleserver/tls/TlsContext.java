@@ -0,0 +1,123 @@
+package simpleserver.tls;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The TLS configuration of a server or client: its {@link SSLContext}, which also caches sessions for
+ * resumption, and the thread pool that runs the delegated tasks of non-blocking handshakes. One context
+ * should be shared by all connections, otherwise sessions cannot be resumed.
+ */
+public class TlsContext implements Closeable {
+    private final SSLContext sslContext;
+    private final TlsSettings settings;
+    private final ExecutorService handshakeExecutor;
+
+    private TlsContext(SSLContext sslContext, TlsSettings settings) {
+        this.sslContext = sslContext;
+        this.settings = settings;
+        configureSessionCache(sslContext.getServerSessionContext(), settings);
+        configureSessionCache(sslContext.getClientSessionContext(), settings);
+
+        var threads = new AtomicInteger();
+        this.handshakeExecutor = Executors.newFixedThreadPool(settings.getHandshakeThreads(), task -> {
+            var thread = new Thread(task, "tls-handshake-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @throws IOException if the key store cannot be read or holds no usable key
+     */
+    public static TlsContext forServer(TlsSettings settings) throws IOException {
+        if (settings.getKeyStore().isBlank())
+            throw new IOException("TLS needs a key store with the server's key and certificate");
+        try {
+            var keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(loadKeyStore(settings.getKeyStore(), settings.getKeyStorePassword(), settings.getKeyStoreType()),
+                    settings.getKeyStorePassword().toCharArray());
+            var sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers.getKeyManagers(), null, null);
+            return new TlsContext(sslContext, settings);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to set up TLS: " + e, e);
+        }
+    }
+
+    /**
+     * @throws IOException if the trust store cannot be read
+     */
+    public static TlsContext forClient(TlsSettings settings) throws IOException {
+        try {
+            var sslContext = SSLContext.getInstance("TLS");
+            if (settings.getTrustStore().isBlank()) {
+                sslContext.init(null, null, null);
+            } else {
+                var trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustManagers.init(loadKeyStore(settings.getTrustStore(), settings.getTrustStorePassword(), settings.getKeyStoreType()));
+                sslContext.init(null, trustManagers.getTrustManagers(), null);
+            }
+            return new TlsContext(sslContext, settings);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to set up TLS: " + e, e);
+        }
+    }
+
+    /**
+     * Wraps an accepted connection. The handshake runs with the first read or write.
+     */
+    public TlsChannel serverChannel(SocketChannel channel) {
+        var engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(settings.getProtocols());
+        return new TlsChannel(channel, engine, handshakeExecutor);
+    }
+
+    /**
+     * Wraps a connection to the server. The host and port select the cached session to resume.
+     */
+    public TlsChannel clientChannel(SocketChannel channel, String host, int port) {
+        SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(settings.getProtocols());
+        if (settings.isVerifyHostname()) {
+            var parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+        return new TlsChannel(channel, engine, handshakeExecutor);
+    }
+
+    @Override
+    public void close() {
+        handshakeExecutor.shutdown();
+    }
+
+    private static void configureSessionCache(SSLSessionContext sessions, TlsSettings settings) {
+        sessions.setSessionCacheSize(settings.getSessionCacheSize());
+        sessions.setSessionTimeout(settings.getSessionTimeoutSeconds());
+    }
+
+    private static KeyStore loadKeyStore(String path, String password, String type) throws IOException, GeneralSecurityException {
+        var keyStore = KeyStore.getInstance(type);
+        try (InputStream input = Files.newInputStream(Paths.get(path))) {
+            keyStore.load(input, password.toCharArray());
+        }
+        return keyStore;
+    }
+}
@@ -0,0 +1,60 @@
+package simpleserver.tls;
+
+import lombok.Builder;
+import lombok.Getter;
+import simpleserver.util.ServerConfig;
+
+import java.util.Arrays;
+
+@Getter
+@Builder
+public class TlsSettings {
+    @Builder.Default
+    private final boolean enabled = false;
+    /** Key and certificate chain of the server. */
+    @Builder.Default
+    private final String keyStore = "";
+    @Builder.Default
+    private final String keyStorePassword = "";
+    @Builder.Default
+    private final String keyStoreType = "PKCS12";
+    /** Certificates a client trusts, the JDK's default trust store when empty. */
+    @Builder.Default
+    private final String trustStore = "";
+    @Builder.Default
+    private final String trustStorePassword = "";
+    @Builder.Default
+    private final String[] protocols = {"TLSv1.3", "TLSv1.2"};
+    /** Whether a client checks that the server's certificate was issued for the host it connected to. */
+    @Builder.Default
+    private final boolean verifyHostname = true;
+    /** Threads running the delegated tasks of non-blocking handshakes; blocking channels run them inline. */
+    @Builder.Default
+    private final int handshakeThreads = Runtime.getRuntime().availableProcessors();
+    /** Sessions kept for resumption, so reconnecting clients skip the full key exchange. */
+    @Builder.Default
+    private final int sessionCacheSize = 20_480;
+    @Builder.Default
+    private final int sessionTimeoutSeconds = 86_400;
+
+    public static TlsSettings fromConfig(ServerConfig config) {
+        var defaults = TlsSettings.builder().build();
+        int handshakeThreads = config.getInt("tls.handshakeThreads", 0);
+        return TlsSettings.builder()
+                .enabled(config.getBoolean("tls.enabled", false))
+                .keyStore(config.getString("tls.keyStore", ""))
+                .keyStorePassword(config.getString("tls.keyStorePassword", ""))
+                .keyStoreType(config.getString("tls.keyStoreType", "PKCS12"))
+                .trustStore(config.getString("tls.trustStore", ""))
+                .trustStorePassword(config.getString("tls.trustStorePassword", ""))
+                .protocols(Arrays.stream(config.getString("tls.protocols", String.join(",", defaults.protocols)).split(","))
+                        .map(String::trim)
+                        .filter(protocol -> !protocol.isEmpty())
+                        .toArray(String[]::new))
+                .verifyHostname(config.getBoolean("tls.verifyHostname", true))
+                .handshakeThreads(handshakeThreads > 0 ? handshakeThreads : defaults.handshakeThreads)
+                .sessionCacheSize(config.getInt("tls.sessionCacheSize", 20_480))
+                .sessionTimeoutSeconds(config.getInt("tls.sessionTimeoutSeconds", 86_400))
+                .build();
+    }
+}
@@ -0,0 +1,146 @@
+package simpleserver.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * {@code java.util.logging} handler that hands records to a bounded ring buffer and returns at once.
+ * A background thread drains the buffer into the target handler, so formatting and console I/O happen
+ * off the request threads. When the buffer is full the record is dropped and counted; the number of
+ * dropped records is logged by the drain thread once there is room again.
+ * <p>
+ * Configured in {@code logging.properties}:
+ * <pre>
+ * handlers = simpleserver.util.AsyncLogHandler
+ * simpleserver.util.AsyncLogHandler.capacity = 8192
+ * simpleserver.util.AsyncLogHandler.target = java.util.logging.ConsoleHandler
+ * </pre>
+ */
+public class AsyncLogHandler extends Handler {
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final int DRAIN_BATCH = 256;
+
+    private final Handler target;
+    private final ArrayBlockingQueue<LogRecord> buffer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread drainThread;
+    private volatile boolean closed;
+    private long reportedDrops;
+
+    public AsyncLogHandler() {
+        this(createTarget(), configuredCapacity());
+        String level = LogManager.getLogManager().getProperty(AsyncLogHandler.class.getName() + ".level");
+        if (level != null)
+            setLevel(Level.parse(level.trim()));
+    }
+
+    AsyncLogHandler(Handler target, int capacity) {
+        this.target = target;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.drainThread = new Thread(this::drain, "async-log");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record))
+            return;
+        if (!buffer.offer(record))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * Records dropped because the buffer was full, since the handler was created.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        List<LogRecord> batch = new ArrayList<>(DRAIN_BATCH);
+        while (!closed || !buffer.isEmpty()) {
+            try {
+                LogRecord first = buffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                buffer.drainTo(batch, DRAIN_BATCH - 1);
+                for (LogRecord record : batch)
+                    target.publish(record);
+                reportDrops();
+                target.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                reportError("Unable to publish log records", e, ErrorManager.WRITE_FAILURE);
+            } finally {
+                batch.clear();
+            }
+        }
+        reportDrops();
+        target.flush();
+    }
+
+    private void reportDrops() {
+        long drops = dropped.get();
+        if (drops == reportedDrops)
+            return;
+
+        var warning = new LogRecord(Level.WARNING, "Log buffer was full, dropped {0} log records");
+        warning.setLoggerName(AsyncLogHandler.class.getName());
+        warning.setParameters(new Object[]{drops - reportedDrops});
+        target.publish(warning);
+        reportedDrops = drops;
+    }
+
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    /**
+     * Stops accepting records, waits for the buffered ones to be written and closes the target.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            drainThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+    }
+
+    private static int configuredCapacity() {
+        String capacity = LogManager.getLogManager().getProperty(AsyncLogHandler.class.getName() + ".capacity");
+        try {
+            return capacity == null ? DEFAULT_CAPACITY : Integer.parseInt(capacity.trim());
+        } catch (NumberFormatException e) {
+            return DEFAULT_CAPACITY;
+        }
+    }
+
+    private static Handler createTarget() {
+        String targetClass = LogManager.getLogManager().getProperty(AsyncLogHandler.class.getName() + ".target");
+        if (targetClass == null)
+            return new ConsoleHandler();
+        try {
+            return (Handler) ClassLoader.getSystemClassLoader().loadClass(targetClass.trim()).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            System.err.println("Unable to create log handler " + targetClass + ", using the console: " + e);
+            return new ConsoleHandler();
+        }
+    }
+}
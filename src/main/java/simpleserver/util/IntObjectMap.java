@@ -0,0 +1,180 @@
+package simpleserver.util;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Map from int keys to non-null values with open addressing. Keys and values sit in two parallel arrays,
+ * probed linearly from the key's mixed hash, so there are no entry objects and no boxed keys. The table is a
+ * power of two and kept at most half full; removing an entry shifts the entries after it back instead of
+ * leaving a tombstone.
+ * <p>
+ * Not thread safe. A lookup never fails or loops while another thread modifies the map, though, so it can be
+ * done optimistically, e.g. under a {@link java.util.concurrent.locks.StampedLock}, as long as the result is
+ * validated before it is used.
+ */
+public class IntObjectMap<V> {
+    private static final int MIN_CAPACITY = 8;
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    public IntObjectMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    public IntObjectMap(int expectedSize) {
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize) * 2 - 1) << 1);
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int[] keys = this.keys;
+        Object[] values = this.values;
+        if (keys.length != values.length)
+            return null; // resized meanwhile, only possible for an optimistic reader
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask), probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+            Object value = values[slot];
+            if (value == null)
+                return null;
+            if (keys[slot] == key)
+                return (V) value;
+        }
+        return null;
+    }
+
+    /**
+     * @return the previous value, null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        Objects.requireNonNull(value, "value");
+        int slot = find(key);
+        if (slot >= 0) {
+            var previous = (V) values[slot];
+            values[slot] = value;
+            return previous;
+        }
+        insert(-slot - 1, key, value);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(int key, IntFunction<? extends V> mappingFunction) {
+        int slot = find(key);
+        if (slot >= 0)
+            return (V) values[slot];
+        V value = Objects.requireNonNull(mappingFunction.apply(key), "value");
+        insert(-slot - 1, key, value);
+        return value;
+    }
+
+    /**
+     * @return the removed value, null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int slot = find(key);
+        if (slot < 0)
+            return null;
+        var removed = (V) values[slot];
+        shiftBack(slot);
+        size--;
+        return removed;
+    }
+
+    public void forEachValue(Consumer<? super V> action) {
+        for (Object value : values) {
+            if (value != null)
+                action.accept(castValue(value));
+        }
+    }
+
+    /**
+     * @return the key's slot, or {@code -(free slot) - 1} if the key is missing
+     */
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (values[slot] != null) {
+            if (keys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    private void insert(int slot, int key, V value) {
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length)
+            resize(keys.length * 2);
+    }
+
+    /**
+     * Empties the slot and moves each following entry of the same probe sequence into the hole if its home
+     * slot is not between the hole and where it sits now.
+     */
+    private void shiftBack(int hole) {
+        int mask = keys.length - 1;
+        values[hole] = null;
+        for (int slot = (hole + 1) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            int home = slot(keys[slot], mask);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys[hole] = keys[slot];
+                values[hole] = values[slot];
+                values[slot] = null;
+                hole = slot;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] newKeys = new int[capacity];
+        Object[] newValues = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == null)
+                continue;
+            int slot = slot(oldKeys[i], mask);
+            while (newValues[slot] != null)
+                slot = (slot + 1) & mask;
+            newKeys[slot] = oldKeys[i];
+            newValues[slot] = oldValues[i];
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+
+    /**
+     * Fibonacci hashing, so dense keys such as interned ids spread over the table instead of filling one run.
+     */
+    private static int slot(int key, int mask) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V castValue(Object value) {
+        return (V) value;
+    }
+}
@@ -0,0 +1,98 @@
+package simpleserver.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the style of HdrHistogram. Values below 64ns
+ * get a bucket each; above that every power of two is split into 32 buckets, so a recorded value is off
+ * by at most about 3%. Recording is a single atomic increment and never allocates, so it is cheap enough
+ * for every request.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int LINEAR_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_BUCKETS = LINEAR_BUCKETS / 2;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+        totalNanos.addAndGet(value);
+        maxNanos.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getMeanNanos() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : totalNanos.get() / count;
+    }
+
+    /**
+     * The highest value in the bucket holding the given percentile, capped at the recorded maximum.
+     * Counts recorded concurrently may or may not be included.
+     *
+     * @param percentile between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueInBucket(i), maxNanos.get());
+        }
+        return maxNanos.get();
+    }
+
+    public long getValueAtPercentile(double percentile, TimeUnit unit) {
+        return unit.convert(getValueAtPercentile(percentile), TimeUnit.NANOSECONDS);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> shift) - HALF_BUCKETS;
+        return LINEAR_BUCKETS + (exponent - SUB_BUCKET_BITS) * HALF_BUCKETS + subBucket;
+    }
+
+    static long highestValueInBucket(int index) {
+        if (index < LINEAR_BUCKETS)
+            return index;
+
+        int exponent = (index - LINEAR_BUCKETS) / HALF_BUCKETS + SUB_BUCKET_BITS;
+        int shift = exponent - SUB_BUCKET_BITS + 1;
+        long lowest = (long) (HALF_BUCKETS + (index - LINEAR_BUCKETS) % HALF_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%dus p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus",
+                getCount(), TimeUnit.NANOSECONDS.toMicros(getMeanNanos()),
+                getValueAtPercentile(50, TimeUnit.MICROSECONDS), getValueAtPercentile(90, TimeUnit.MICROSECONDS),
+                getValueAtPercentile(99, TimeUnit.MICROSECONDS), getValueAtPercentile(99.9, TimeUnit.MICROSECONDS),
+                TimeUnit.NANOSECONDS.toMicros(getMaxNanos()));
+    }
+}
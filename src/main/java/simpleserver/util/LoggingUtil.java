@@ -2,7 +2,9 @@ package simpleserver.util;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.logging.LogManager;
+import java.util.logging.Logger;
 
 public class LoggingUtil {
     public static void initLogManager() {
@@ -15,4 +17,14 @@ public class LoggingUtil {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Log records dropped by the {@link AsyncLogHandler} on the root logger, 0 when logging is synchronous.
+     */
+    public static long droppedLogRecords() {
+        return Arrays.stream(Logger.getLogger("").getHandlers())
+                .filter(AsyncLogHandler.class::isInstance)
+                .mapToLong(handler -> ((AsyncLogHandler) handler).getDropped())
+                .sum();
+    }
 }
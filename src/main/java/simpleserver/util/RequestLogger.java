@@ -0,0 +1,61 @@
+package simpleserver.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Logger for the per-request lines on the hot path, which carry whole request and response bodies.
+ * Unlike the SLF4J loggers it neither formats the message nor walks the stack on the calling thread:
+ * the argument is stored in the record and only turned into a string when a handler formats it,
+ * which with {@link AsyncLogHandler} happens on the drain thread. Arguments must therefore not be
+ * changed after they are logged. Patterns use {@link java.text.MessageFormat} placeholders ({@code {0}}).
+ * <p>
+ * Only every n-th line is logged when {@code simpleserver.util.RequestLogger.sampleEvery} in
+ * {@code logging.properties} is greater than 1.
+ */
+public class RequestLogger {
+    private final Logger logger;
+    private final long sampleEvery;
+    private final AtomicLong calls = new AtomicLong();
+
+    RequestLogger(Logger logger, long sampleEvery) {
+        this.logger = logger;
+        this.sampleEvery = Math.max(1, sampleEvery);
+    }
+
+    public static RequestLogger getLogger(Class<?> type) {
+        return new RequestLogger(Logger.getLogger(type.getName()), configuredSampleEvery());
+    }
+
+    public void info(String pattern, Object argument) {
+        log(Level.INFO, pattern, argument);
+    }
+
+    public void debug(String pattern, Object argument) {
+        log(Level.FINE, pattern, argument);
+    }
+
+    private void log(Level level, String pattern, Object argument) {
+        if (!logger.isLoggable(level))
+            return;
+        if (sampleEvery > 1 && calls.getAndIncrement() % sampleEvery != 0)
+            return;
+
+        var record = new LogRecord(level, pattern);
+        record.setLoggerName(logger.getName());
+        record.setParameters(new Object[]{argument});
+        logger.log(record);
+    }
+
+    private static long configuredSampleEvery() {
+        String sampleEvery = LogManager.getLogManager().getProperty(RequestLogger.class.getName() + ".sampleEvery");
+        try {
+            return sampleEvery == null ? 1 : Long.parseLong(sampleEvery.trim());
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+}
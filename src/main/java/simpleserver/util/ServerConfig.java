@@ -0,0 +1,79 @@
+package simpleserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Server settings read from {@code application.properties}. Any key can be overridden
+ * with a JVM system property of the same name, e.g. {@code -Dmessage.batch.maxSize=256}.
+ */
+public class ServerConfig {
+    private final static Logger LOGGER = LoggerFactory.getLogger(ServerConfig.class);
+    private final Properties properties;
+
+    public ServerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    public static ServerConfig load() {
+        Properties properties = new Properties();
+        try (InputStream input = ServerConfig.class.getClassLoader().getResourceAsStream("application.properties")) {
+            if (input != null)
+                properties.load(input);
+            else
+                LOGGER.warn("application.properties not found, using default settings");
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read application.properties, using default settings: {}", e.toString());
+        }
+        return new ServerConfig(properties);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = System.getProperty(key, properties.getProperty(key));
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value for {}, using default: {}", key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value for {}, using default: {}", key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        try {
+            return Double.parseDouble(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value for {}, using default: {}", key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+    }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        try {
+            return Enum.valueOf(type, getString(key, defaultValue.name()).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Invalid value for {}, using default: {}", key, defaultValue);
+            return defaultValue;
+        }
+    }
+}
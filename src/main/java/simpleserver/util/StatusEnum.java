@@ -2,5 +2,9 @@ package simpleserver.util;
 
 public enum StatusEnum {
     SUCCESS,
-    ERROR
+    ERROR,
+    /** The server is temporarily overloaded, the request can be retried. */
+    BUSY,
+    /** The server is still starting up and cannot handle this request yet, it can be retried shortly. */
+    WARMING
 }
@@ -0,0 +1,121 @@
+package simpleserver.client;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AsyncClientTest {
+
+    @Test
+    void correlatesPipelinedResponsesAndDeliversPushes() throws Exception {
+        try (var server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            //given a server that answers two pipelined requests in reverse order and pushes a line in between
+            var serverDone = CompletableFuture.runAsync(() -> {
+                try (var connection = server.accept()) {
+                    var reader = new BufferedReader(Channels.newReader(connection, StandardCharsets.UTF_8));
+                    var writer = new PrintWriter(Channels.newWriter(connection, StandardCharsets.UTF_8), true);
+                    var login = JsonParser.parseString(reader.readLine()).getAsJsonObject();
+                    var ping = JsonParser.parseString(reader.readLine()).getAsJsonObject();
+
+                    writer.println(response(ping, "SUCCESS", "pong"));
+                    writer.println("{\"status\":\"ERROR\",\"message\":\"Ending connection\"}");
+                    writer.println(response(login, "SUCCESS", "Successfully Logged In"));
+                    reader.readLine();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            var pushed = new CompletableFuture<ServerResponse>();
+
+            try (var client = AsyncClient.connect("localhost", port)) {
+                client.setPushListener(pushed::complete);
+
+                //when
+                var login = client.login("alice", "secret");
+                var ping = client.command("ping");
+
+                //then
+                assertThat(ping.get(5, TimeUnit.SECONDS).message()).isEqualTo("pong");
+                assertThat(login.get(5, TimeUnit.SECONDS).isSuccess()).isTrue();
+                assertThat(client.getUsername()).isEqualTo("alice");
+                assertThat(pushed.get(5, TimeUnit.SECONDS).message()).isEqualTo("Ending connection");
+
+                //when the connection is closed with a request in flight
+                var open = client.open();
+                serverDone.get(5, TimeUnit.SECONDS);
+
+                //then
+                assertThatThrownBy(() -> open.get(5, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class);
+            }
+        }
+    }
+
+    @Test
+    void reconnectsAndResumesTheSession() throws Exception {
+        try (var server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            //given a server that drops the connection after the login and expects the token on the next one
+            var resumeRequest = new CompletableFuture<JsonObject>();
+            CompletableFuture.runAsync(() -> {
+                try (var connection = server.accept()) {
+                    var reader = new BufferedReader(Channels.newReader(connection, StandardCharsets.UTF_8));
+                    var writer = new PrintWriter(Channels.newWriter(connection, StandardCharsets.UTF_8), true);
+                    var login = response(JsonParser.parseString(reader.readLine()).getAsJsonObject(), "SUCCESS", "Successfully Logged In");
+                    login.addProperty("resumeToken", "token-1");
+                    writer.println(login);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                try (var connection = server.accept()) {
+                    var reader = new BufferedReader(Channels.newReader(connection, StandardCharsets.UTF_8));
+                    var writer = new PrintWriter(Channels.newWriter(connection, StandardCharsets.UTF_8), true);
+                    var resume = JsonParser.parseString(reader.readLine()).getAsJsonObject();
+                    resumeRequest.complete(resume);
+                    var resumed = response(resume, "SUCCESS", "Session resumed");
+                    resumed.addProperty("resumeToken", "token-2");
+                    writer.println(resumed);
+                    writer.println(response(JsonParser.parseString(reader.readLine()).getAsJsonObject(), "SUCCESS", "PONG"));
+                    reader.readLine();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            try (var client = AsyncClient.connect("localhost", port, new ReconnectPolicy(10, 50, 10))) {
+                assertThat(client.login("alice", "secret").get(5, TimeUnit.SECONDS).isSuccess()).isTrue();
+
+                //when
+                var resume = resumeRequest.get(5, TimeUnit.SECONDS);
+                var ping = client.command("ping");
+
+                //then
+                assertThat(resume.get("request").getAsString()).isEqualTo("resume");
+                assertThat(resume.get("resumeToken").getAsString()).isEqualTo("token-1");
+                assertThat(ping.get(5, TimeUnit.SECONDS).message()).isEqualTo("PONG");
+                assertThat(client.isOpen()).isTrue();
+            }
+        }
+    }
+
+    private static JsonObject response(JsonObject request, String status, String message) {
+        var response = new JsonObject();
+        response.add("id", request.get("id"));
+        response.addProperty("status", status);
+        response.addProperty("message", message);
+        return response;
+    }
+}
@@ -0,0 +1,255 @@
+package simpleserver.cluster;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import simpleserver.dto.Message;
+import simpleserver.service.MessageService;
+import simpleserver.util.JsonResponse;
+import simpleserver.util.StatusEnum;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class ClusterNodeTest {
+    private static final String SECRET = "cluster secret";
+
+    @Test
+    void sharesPresenceAndForwardsMessages() throws IOException {
+        //given two nodes linked to each other
+        int portA = freePort();
+        int portB = freePort();
+        var mailboxesA = mock(MessageService.class);
+        when(mailboxesA.deliverForwarded(any())).thenReturn(JsonResponse.serverResponse(StatusEnum.SUCCESS, "Message sent successfully"));
+        var nodeA = new ClusterNode(settings("a", portA, "b", portB), mailboxesA);
+        var nodeB = new ClusterNode(settings("b", portB, "a", portA), mock(MessageService.class));
+        nodeA.start();
+        nodeB.start();
+
+        //when
+        nodeA.userOnline("alice");
+
+        //then
+        eventually(() -> assertThat(nodeB.nodeOf("alice")).contains("a"));
+        assertThat(nodeA.nodeOf("alice")).isEmpty();
+
+        //when
+        var message = new Message("alice", "bob", "across nodes");
+        boolean queued = nodeB.forward("a", message);
+
+        //then
+        assertThat(queued).isTrue();
+        verify(mailboxesA, timeout(5000)).deliverForwarded(message);
+
+        //when
+        nodeA.userOffline("alice");
+
+        //then
+        eventually(() -> assertThat(nodeB.nodeOf("alice")).isEmpty());
+    }
+
+    @Test
+    void undeliverableMessageIsBouncedToItsSender() throws IOException {
+        //given two nodes, the receiver's mailbox full
+        int portA = freePort();
+        int portB = freePort();
+        var mailboxesA = mock(MessageService.class);
+        when(mailboxesA.deliverForwarded(any())).thenReturn(JsonResponse.serverResponse(StatusEnum.ERROR, "Client Mailbox is full"));
+        var mailboxesB = mock(MessageService.class);
+        var nodeA = new ClusterNode(settings("a", portA, "b", portB), mailboxesA);
+        var nodeB = new ClusterNode(settings("b", portB, "a", portA), mailboxesB);
+        nodeA.start();
+        nodeB.start();
+        nodeB.userOnline("bob");
+
+        //when
+        nodeB.forward("a", new Message("alice", "bob", "across nodes"));
+
+        //then
+        verify(mailboxesB, timeout(5000)).sendMessage(
+                new Message("bob", ClusterNode.NOTICE_SENDER, "Message to alice was not delivered: Client Mailbox is full"));
+        assertThat(nodeA.getUndelivered()).isEqualTo(1);
+        assertThat(nodeB.getBounced()).isEqualTo(1);
+    }
+
+    @Test
+    void messagesSentAgainAfterReconnectingAreDeliveredOnce() throws IOException {
+        //given
+        int port = freePort();
+        var mailboxes = mock(MessageService.class);
+        when(mailboxes.deliverForwarded(any())).thenReturn(JsonResponse.serverResponse(StatusEnum.SUCCESS, "Message sent successfully"));
+        var node = new ClusterNode(settings("b", port, "a", freePort()), mailboxes);
+        node.start();
+        var first = new Message("alice", "bob", "first");
+        var second = new Message("alice", "bob", "second");
+
+        //when the batch is sent again on a new link, followed by the next one
+        try (var oldLink = authenticatedLink(port, "a")) {
+            send(oldLink, messages(7, Map.of(1L, first, 2L, second)));
+        }
+        try (var newLink = authenticatedLink(port, "a")) {
+            send(newLink, messages(7, Map.of(1L, first, 2L, second)));
+            send(newLink, messages(7, Map.of(3L, second)));
+
+            //then
+            verify(mailboxes, timeout(5000)).deliverForwarded(first);
+            verify(mailboxes, timeout(5000).times(2)).deliverForwarded(second);
+            eventually(() -> assertThat(node.getDuplicates()).isEqualTo(2));
+        }
+
+        //when the node restarted, its ids start over
+        try (var restarted = authenticatedLink(port, "a")) {
+            send(restarted, messages(8, Map.of(1L, first)));
+
+            //then
+            verify(mailboxes, timeout(5000).times(2)).deliverForwarded(first);
+        }
+    }
+
+    @Test
+    void linkWithoutValidHelloIsClosedUnapplied() throws IOException {
+        //given
+        int port = freePort();
+        var node = new ClusterNode(settings("b", port, "a", freePort()), mock(MessageService.class));
+        node.start();
+
+        try (var unauthenticated = SocketChannel.open(new InetSocketAddress("localhost", port));
+             var forged = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            //when
+            readChallenge(unauthenticated);
+            send(unauthenticated, presence("mallory"));
+            readChallenge(forged);
+            send(forged, hello("a", LinkAuthentication.proof("wrong secret", "any", "a")));
+
+            //then
+            assertThat(readAfterHandshake(unauthenticated)).isEqualTo(-1);
+            assertThat(readAfterHandshake(forged)).isEqualTo(-1);
+            assertThat(node.nodeOf("mallory")).isEmpty();
+        }
+    }
+
+    @Test
+    void droppedLinkOnlyRemovesItsOwnEntries() throws IOException {
+        //given
+        int port = freePort();
+        var node = new ClusterNode(settings("b", port, "a", freePort()), mock(MessageService.class));
+        node.start();
+        var oldLink = authenticatedLink(port, "a");
+        send(oldLink, presence("alice"));
+        eventually(() -> assertThat(node.nodeOf("alice")).contains("a"));
+
+        try (var newLink = authenticatedLink(port, "a")) {
+            send(newLink, presence("bob"));
+            eventually(() -> assertThat(node.nodeOf("bob")).contains("a"));
+
+            //when
+            send(newLink, presence("alice"));
+            oldLink.close();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
+
+            //then
+            assertThat(node.nodeOf("alice")).contains("a");
+            assertThat(node.nodeOf("bob")).contains("a");
+        }
+    }
+
+    private static SocketChannel authenticatedLink(int port, String node) throws IOException {
+        var channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        send(channel, hello(node, LinkAuthentication.proof(SECRET, readChallenge(channel), node)));
+        return channel;
+    }
+
+    private static String readChallenge(SocketChannel channel) throws IOException {
+        String line = LinkAuthentication.readLine(channel.socket().getInputStream());
+        return JsonParser.parseString(line).getAsJsonObject().get("challenge").getAsString();
+    }
+
+    private static int readAfterHandshake(SocketChannel channel) throws IOException {
+        channel.socket().setSoTimeout(5000);
+        return channel.socket().getInputStream().read();
+    }
+
+    private static JsonObject hello(String node, String proof) {
+        var hello = new JsonObject();
+        hello.addProperty("type", "hello");
+        hello.addProperty("node", node);
+        hello.addProperty("proof", proof);
+        return hello;
+    }
+
+    private static JsonObject presence(String username) {
+        var change = new JsonObject();
+        change.addProperty("user", username);
+        change.addProperty("online", true);
+        var changes = new JsonArray();
+        changes.add(change);
+        var presence = new JsonObject();
+        presence.addProperty("type", "presence");
+        presence.addProperty("snapshot", false);
+        presence.add("changes", changes);
+        return presence;
+    }
+
+    private static JsonObject messages(long incarnation, Map<Long, Message> byId) {
+        var messages = new JsonArray();
+        new TreeMap<>(byId).forEach((id, message) -> {
+            var forwarded = new Gson().toJsonTree(message).getAsJsonObject();
+            forwarded.addProperty("id", id);
+            messages.add(forwarded);
+        });
+        var frame = new JsonObject();
+        frame.addProperty("type", "messages");
+        frame.addProperty("incarnation", incarnation);
+        frame.add("messages", messages);
+        return frame;
+    }
+
+    private static void send(SocketChannel channel, JsonObject frame) throws IOException {
+        var buffer = StandardCharsets.UTF_8.encode(frame + "\n");
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static ClusterSettings settings(String node, int port, String peer, int peerPort) {
+        return ClusterSettings.builder()
+                .nodeId(node)
+                .port(port)
+                .secret(SECRET)
+                .peers(Map.of(peer, InetSocketAddress.createUnresolved("localhost", peerPort)))
+                .reconnectDelayMillis(50)
+                .build();
+    }
+
+    private static void eventually(Runnable assertion) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (true) {
+            try {
+                assertion.run();
+                return;
+            } catch (AssertionError e) {
+                if (System.nanoTime() > deadline)
+                    throw e;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package simpleserver.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import simpleserver.dto.Message;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LogCleanerTest {
+    @TempDir
+    Path logDirectory;
+
+    @Test
+    void compactionDropsOpenedMessagesThenTheirAcks() throws Exception {
+        //given
+        var messageLog = openLogWithTwoMessagesPerSegment();
+        messageLog.append(List.of(
+                LogRecord.message(0, new Message("bob", "amy", "first")),
+                LogRecord.message(1, new Message("bob", "amy", "other")),
+                LogRecord.ack(2, "bob", 0),
+                LogRecord.message(3, new Message("eve", "amy", "third")),
+                LogRecord.message(4, new Message("eve", "amy", "forth"))));
+        var cleaner = new LogCleaner(messageLog, PersistenceSettings.builder()
+                .compactionEnabled(true)
+                .compactionMaxBytesPerSecond(0)
+                .compactionMinDropRatio(0.1)
+                .build());
+
+        //when
+        cleaner.compact();
+        List<Long> afterFirstPass = offsets(messageLog);
+        cleaner.compact();
+
+        //then
+        assertThat(afterFirstPass).containsExactly(1L, 2L, 3L, 4L);
+        assertThat(offsets(messageLog)).containsExactly(1L, 3L, 4L);
+    }
+
+    @Test
+    void compactionHandlesOffsetsFurtherApartThanAnInt() throws Exception {
+        //given
+        long far = 5_000_000_000L;
+        var messageLog = openLogWithTwoMessagesPerSegment();
+        messageLog.append(List.of(
+                LogRecord.message(0, new Message("bob", "amy", "first")),
+                LogRecord.message(far, new Message("bob", "amy", "other")),
+                LogRecord.ack(far + 1, "bob", 0),
+                LogRecord.message(far + 2, new Message("eve", "amy", "third")),
+                LogRecord.message(far + 3, new Message("eve", "amy", "forth"))));
+        var cleaner = new LogCleaner(messageLog, PersistenceSettings.builder()
+                .compactionEnabled(true)
+                .compactionMaxBytesPerSecond(0)
+                .compactionMinDropRatio(0.1)
+                .build());
+
+        //when
+        cleaner.compact();
+
+        //then
+        assertThat(offsets(messageLog)).containsExactly(far, far + 1, far + 2, far + 3);
+    }
+
+    @Test
+    void sizeRetentionDeletesOldestClosedSegments() throws Exception {
+        //given
+        var messageLog = openLogWithTwoMessagesPerSegment();
+        List<LogRecord> records = new ArrayList<>();
+        for (int offset = 0; offset < 6; offset++)
+            records.add(LogRecord.message(offset, new Message("bob", "amy", "text " + offset)));
+        messageLog.append(records);
+        long segmentSize = messageLog.segments().get(0).getSize();
+        var cleaner = new LogCleaner(messageLog, PersistenceSettings.builder()
+                .retentionMaxBytes(segmentSize * 2)
+                .build());
+
+        //when
+        cleaner.applyRetention();
+
+        //then
+        assertThat(messageLog.segments()).extracting(LogSegment::getBaseOffset).containsExactly(2L, 4L);
+        assertThat(offsets(messageLog)).containsExactly(2L, 3L, 4L, 5L);
+    }
+
+    @Test
+    void retentionKeepsSegmentsAfterTheCompactionHorizon() throws Exception {
+        //given
+        var messageLog = openLogWithTwoMessagesPerSegment();
+        List<LogRecord> records = new ArrayList<>();
+        for (int offset = 0; offset < 6; offset++)
+            records.add(LogRecord.message(offset, new Message("bob", "amy", "text " + offset)));
+        messageLog.append(records);
+        var cleaner = new LogCleaner(messageLog, PersistenceSettings.builder()
+                .retentionMaxBytes(1)
+                .build());
+        cleaner.setCompactionHorizon(() -> 2);
+
+        //when
+        cleaner.applyRetention();
+
+        //then
+        assertThat(messageLog.segments()).extracting(LogSegment::getBaseOffset).containsExactly(2L, 4L);
+        assertThat(offsets(messageLog)).containsExactly(2L, 3L, 4L, 5L);
+    }
+
+    private MessageLog openLogWithTwoMessagesPerSegment() throws IOException {
+        int messageSize = RecordCodec.encodedSize(LogRecord.message(0, new Message("bob", "amy", "text 0")));
+        return MessageLog.open(logDirectory, messageSize * 2L);
+    }
+
+    private static List<Long> offsets(MessageLog messageLog) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        messageLog.read(0, record -> offsets.add(record.offset()));
+        return offsets;
+    }
+}
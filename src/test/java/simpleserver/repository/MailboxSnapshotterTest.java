@@ -0,0 +1,109 @@
+package simpleserver.repository;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import simpleserver.client.SimpleClient;
+import simpleserver.dto.Message;
+import simpleserver.dto.StoredMessage;
+import simpleserver.service.MessageService;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailboxSnapshotterTest {
+    @TempDir
+    Path logDirectory;
+
+    @Test
+    void recoversSnapshotPlusRecordsWrittenAfterIt() throws IOException {
+        //given
+        Path snapshotPath = logDirectory.resolve("mailboxes.snapshot");
+        var first = new Message("bob", "amy", "first");
+        var second = new Message("bob", "amy", "second");
+        var third = new Message("eve", "amy", "third");
+
+        try (var messageLog = MessageLog.open(logDirectory, 1024 * 1024)) {
+            messageLog.append(List.of(LogRecord.message(0, first), LogRecord.message(1, second)));
+            new MailboxSnapshotter(messageLog, snapshotPath, 1000).recover();
+            messageLog.append(List.of(LogRecord.ack(2, "bob", 0), LogRecord.message(3, third)));
+        }
+
+        //when
+        MailboxState recovered;
+        try (var messageLog = MessageLog.open(logDirectory, 1024 * 1024)) {
+            assertThat(MailboxState.read(snapshotPath).getLastOffset()).isEqualTo(1);
+            recovered = new MailboxSnapshotter(messageLog, snapshotPath, 1000).recover();
+        }
+
+        //then
+        assertThat(recovered.getLastOffset()).isEqualTo(3);
+        assertThat(recovered.unreadMessages().get("bob")).containsExactly(new StoredMessage(1, second));
+        assertThat(recovered.unreadMessages().get("eve")).containsExactly(new StoredMessage(3, third));
+        assertThat(MailboxState.read(snapshotPath).unreadMessages()).isEqualTo(recovered.unreadMessages());
+    }
+
+    @Test
+    void restartKeepsExactlyTheMessagesNotOpenedUnderConcurrentSenders() throws Exception {
+        var bob = SimpleClient.builder().username("bob").build();
+        for (int round = 0; round < 20; round++) {
+            //given
+            Path directory = logDirectory.resolve("round-" + round);
+            Path snapshotPath = directory.resolve("mailboxes.snapshot");
+            var messageLog = MessageLog.open(directory, 1024 * 1024);
+            var repository = new MessageRepository(messageLog);
+            var writer = new Thread(repository);
+            writer.start();
+            var messageService = new MessageService(repository);
+            messageService.addClient(bob);
+            var start = new CountDownLatch(1);
+            List<Thread> senders = new ArrayList<>();
+            List<Message> sent = new ArrayList<>();
+            for (int s = 0; s < 4; s++) {
+                var message = new Message("bob", "sender" + s, "message " + s);
+                sent.add(message);
+                senders.add(new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    messageService.sendMessage(message);
+                }));
+            }
+            senders.forEach(Thread::start);
+            start.countDown();
+            for (Thread sender : senders)
+                sender.join();
+
+            //when
+            var opened = openedMessage(messageService.openMessage(bob));
+            repository.shutdown();
+            var restarted = new MessageService(null);
+            List<Message> unread = new ArrayList<>();
+            try (var reopened = MessageLog.open(directory, 1024 * 1024)) {
+                var recovered = new MailboxSnapshotter(reopened, snapshotPath, 1000).recover();
+                restarted.setMessageRepository(new MessageRepository(reopened));
+                restarted.restoreMailboxes(recovered.unreadMessages());
+                for (int i = 0; i < 3; i++)
+                    unread.add(openedMessage(restarted.openMessage(bob)));
+            }
+
+            //then
+            var expected = new ArrayList<>(sent);
+            expected.remove(opened);
+            assertThat(unread).containsExactlyInAnyOrderElementsOf(expected);
+            assertThat(restarted.getUnreadMessageCount("bob")).isZero();
+        }
+    }
+
+    private static Message openedMessage(JsonObject response) {
+        return new Gson().fromJson(response.get("messageObject").getAsString(), Message.class);
+    }
+}
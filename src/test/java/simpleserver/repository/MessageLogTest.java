@@ -0,0 +1,121 @@
+package simpleserver.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import simpleserver.dto.Message;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageLogTest {
+    @TempDir
+    Path logDirectory;
+
+    @Test
+    void appendedRecordsAreReadBackAfterReopening() throws IOException {
+        //given
+        try (var log = MessageLog.open(logDirectory, 1024 * 1024)) {
+            log.append(records(0, 3));
+        }
+
+        //when
+        List<LogRecord> recovered = new ArrayList<>();
+        try (var log = MessageLog.open(logDirectory, 1024 * 1024)) {
+            log.read(0, recovered::add);
+
+            //then
+            assertThat(log.nextOffset()).isEqualTo(3);
+        }
+        assertThat(recovered).extracting(LogRecord::offset).containsExactly(0L, 1L, 2L);
+        assertThat(recovered.get(1).message()).isEqualTo(new Message("receiver", "sender", "message 1"));
+    }
+
+    @Test
+    void rollsToNewSegmentAtSizeLimit() throws IOException {
+        //given
+        int recordSize = RecordCodec.encodedSize(records(0, 1).get(0));
+
+        //when
+        try (var log = MessageLog.open(logDirectory, recordSize * 2L)) {
+            log.append(records(0, 5));
+
+            //then
+            assertThat(log.segments()).extracting(LogSegment::getBaseOffset).containsExactly(0L, 2L, 4L);
+            List<LogRecord> fromThree = new ArrayList<>();
+            log.read(3, fromThree::add);
+            assertThat(fromThree).extracting(LogRecord::offset).containsExactly(3L, 4L);
+        }
+    }
+
+    @Test
+    void recoveryTruncatesTornRecord() throws IOException {
+        //given
+        try (var log = MessageLog.open(logDirectory, 1024 * 1024)) {
+            log.append(records(0, 2));
+        }
+        Path segment = LogSegment.pathFor(logDirectory, 0);
+        long validLength;
+        try (var file = new RandomAccessFile(segment.toFile(), "rw")) {
+            validLength = file.length();
+            file.seek(validLength);
+            file.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+        }
+
+        //when
+        try (var log = MessageLog.open(logDirectory, 1024 * 1024)) {
+            log.append(records(2, 1));
+        }
+
+        //then
+        List<LogRecord> recovered = new ArrayList<>();
+        try (var log = MessageLog.open(logDirectory, 1024 * 1024)) {
+            log.read(0, recovered::add);
+        }
+        assertThat(recovered).extracting(LogRecord::offset).containsExactly(0L, 1L, 2L);
+    }
+
+    @Test
+    void exportCopiesOnlyTheUsersRecords(@TempDir Path exportDirectory) throws IOException {
+        //given
+        var toAlice = LogRecord.message(0, new Message("alice", "bob", "hi alice"));
+        var toBob = LogRecord.message(1, new Message("bob", "carol", "hi bob"));
+        var fromAlice = LogRecord.message(2, new Message("bob", "alice", "hi back"));
+        var aliceOpened = LogRecord.ack(3, "alice", 0);
+        Path exported = LogSegment.pathFor(exportDirectory, 0);
+
+        try (var log = MessageLog.open(logDirectory, RecordCodec.encodedSize(toAlice) * 2L)) {
+            log.append(List.of(toAlice, toBob, fromAlice));
+            try (var export = log.export("alice")) {
+                assertThat(export.getRecords()).isEqualTo(2);
+            }
+            log.append(List.of(aliceOpened));
+
+            //when
+            try (var export = log.export("alice");
+                 var output = FileChannel.open(exported, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long transferred = export.transferTo(output);
+
+                //then
+                assertThat(transferred).isEqualTo(export.getBytes());
+            }
+        }
+        List<LogRecord> copied = new ArrayList<>();
+        new LogSegment(exported, 0, Files.size(exported)).read(0, copied::add);
+        assertThat(copied).containsExactly(toAlice, fromAlice, aliceOpened);
+    }
+
+    private static List<LogRecord> records(long firstOffset, int count) {
+        return LongStream.range(firstOffset, firstOffset + count)
+                .mapToObj(offset -> LogRecord.message(offset, new Message("receiver", "sender", "message " + offset)))
+                .toList();
+    }
+}
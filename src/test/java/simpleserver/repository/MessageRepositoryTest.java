@@ -0,0 +1,237 @@
+package simpleserver.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import simpleserver.dto.Message;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MessageRepositoryTest {
+    @TempDir
+    Path logDirectory;
+
+    @Test
+    void rejectsWhenQueueIsFull() throws IOException {
+        //given
+        var repository = new MessageRepository(MessageLog.open(logDirectory, 1024 * 1024), PersistenceSettings.builder()
+                .queueCapacity(2)
+                .overloadPolicy(OverloadPolicy.REJECT)
+                .build());
+        repository.saveMessage(message(0));
+        repository.saveMessage(message(1));
+
+        //when, then
+        assertThatThrownBy(() -> repository.saveMessage(message(2))).isInstanceOf(PersistenceBusyException.class);
+        assertThat(repository.getQueueStatistics().getRejected()).isEqualTo(1);
+        assertThat(repository.getQueueStatistics().getDepth()).isEqualTo(2);
+    }
+
+    @Test
+    void spilledMessagesAreWrittenInOrder() throws Exception {
+        //given
+        var messageLog = MessageLog.open(logDirectory, 1024 * 1024);
+        var repository = new MessageRepository(messageLog, PersistenceSettings.builder()
+                .queueCapacity(2)
+                .overloadPolicy(OverloadPolicy.SPILL)
+                .spillCapacity(10)
+                .build());
+        List<CompletableFuture<Long>> persisted = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            persisted.add(repository.saveMessage(message(i)).persisted());
+
+        //when
+        var writer = new Thread(repository);
+        writer.start();
+        CompletableFuture.allOf(persisted.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        writer.interrupt();
+        writer.join();
+
+        //then
+        List<LogRecord> written = new ArrayList<>();
+        messageLog.read(0, written::add);
+        assertThat(repository.getQueueStatistics().getSpilled()).isEqualTo(4);
+        assertThat(written).extracting(record -> record.message().message())
+                .containsExactly("message 0", "message 1", "message 2", "message 3", "message 4", "message 5");
+    }
+
+    @Test
+    void bulkIsWrittenWithConsecutiveOffsets() throws Exception {
+        //given
+        var messageLog = MessageLog.open(logDirectory, 1024 * 1024);
+        var repository = new MessageRepository(messageLog, PersistenceSettings.builder()
+                .queueCapacity(2)
+                .overloadPolicy(OverloadPolicy.REJECT)
+                .build());
+        var bulk = repository.saveMessages(List.of(message(0), message(1), message(2)));
+        var single = repository.saveMessage(message(3));
+
+        //when
+        var writer = new Thread(repository);
+        writer.start();
+        long lastOfBulk = bulk.persisted().get(5, TimeUnit.SECONDS);
+        single.persisted().get(5, TimeUnit.SECONDS);
+        writer.interrupt();
+        writer.join();
+
+        //then
+        List<LogRecord> written = new ArrayList<>();
+        messageLog.read(0, written::add);
+        assertThat(bulk.firstOffset()).isZero();
+        assertThat(lastOfBulk).isEqualTo(2);
+        assertThat(single.firstOffset()).isEqualTo(3);
+        assertThat(written).extracting(LogRecord::offset).containsExactly(0L, 1L, 2L, 3L);
+        assertThat(written).extracting(record -> record.message().message())
+                .containsExactly("message 0", "message 1", "message 2", "message 3");
+    }
+
+    @Test
+    void oversizedMessageIsRefusedAndLaterRecordsSurviveRecovery() throws Exception {
+        //given
+        var messageLog = MessageLog.open(logDirectory, 4 * 1024 * 1024);
+        var repository = new MessageRepository(messageLog);
+        var first = repository.saveMessage(message(0));
+        var oversized = new Message("receiver", "sender", "x".repeat(RecordCodec.MAX_BODY_SIZE + 1));
+
+        //when
+        assertThatThrownBy(() -> repository.saveMessage(oversized)).isInstanceOf(RecordCodec.RecordTooLargeException.class);
+        var last = repository.saveMessage(message(1));
+        var writer = new Thread(repository);
+        writer.start();
+        first.persisted().get(5, TimeUnit.SECONDS);
+        last.persisted().get(5, TimeUnit.SECONDS);
+        writer.interrupt();
+        writer.join();
+
+        //then
+        List<LogRecord> recovered = new ArrayList<>();
+        MessageLog.open(logDirectory, 4 * 1024 * 1024).read(0, recovered::add);
+        assertThat(recovered).extracting(LogRecord::offset).containsExactly(0L, 1L);
+        assertThat(recovered).extracting(record -> record.message().message()).containsExactly("message 0", "message 1");
+    }
+
+    @Test
+    void blockedSenderJoinsTheBatchBeingCollected() throws Exception {
+        //given
+        var messageLog = MessageLog.open(logDirectory, 1024 * 1024);
+        var repository = new MessageRepository(messageLog, PersistenceSettings.builder()
+                .queueCapacity(1)
+                .overloadPolicy(OverloadPolicy.BLOCK)
+                .blockMillis(5000)
+                .maxBatchLatencyMillis(1000)
+                .build());
+        var first = repository.saveMessage(message(0));
+        var second = new CompletableFuture<CompletableFuture<Long>>();
+        var sender = new Thread(() -> second.complete(repository.saveMessage(message(1)).persisted()));
+        sender.start();
+        while (repository.getQueueStatistics().getBlocked() == 0)
+            Thread.onSpinWait();
+
+        //when
+        var writer = new Thread(repository);
+        writer.start();
+        first.persisted().get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+        writer.interrupt();
+        writer.join();
+
+        //then
+        assertThat(repository.getStatistics().getBatches()).isEqualTo(1);
+        assertThat(repository.getStatistics().getMessages()).isEqualTo(2);
+    }
+
+    @Test
+    void concurrentSendersAreBatchedWithContiguousOffsets() throws Exception {
+        //given
+        var messageLog = MessageLog.open(logDirectory, 1024 * 1024);
+        var repository = new MessageRepository(messageLog, PersistenceSettings.builder()
+                .queueCapacity(50)
+                .overloadPolicy(OverloadPolicy.BLOCK)
+                .blockMillis(5000)
+                .maxBatchSize(32)
+                .maxBatchLatencyMillis(5)
+                .build());
+        var writer = new Thread(repository);
+        writer.start();
+        int senderCount = 8;
+        int messagesPerSender = 250;
+        List<CompletableFuture<Long>> persisted = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> senders = new ArrayList<>();
+        for (int s = 0; s < senderCount; s++) {
+            String sender = "sender" + s;
+            senders.add(new Thread(() -> {
+                for (int i = 0; i < messagesPerSender; i++)
+                    persisted.add(repository.saveMessage(new Message("receiver", sender, String.valueOf(i))).persisted());
+            }));
+        }
+
+        //when
+        senders.forEach(Thread::start);
+        for (Thread sender : senders)
+            sender.join();
+        CompletableFuture.allOf(persisted.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        writer.interrupt();
+        writer.join();
+
+        //then
+        int total = senderCount * messagesPerSender;
+        List<LogRecord> written = new ArrayList<>();
+        messageLog.read(0, written::add);
+        assertThat(written).extracting(LogRecord::offset)
+                .containsExactly(LongStream.range(0, total).boxed().toArray(Long[]::new));
+        for (int s = 0; s < senderCount; s++) {
+            String sender = "sender" + s;
+            assertThat(written.stream().filter(record -> record.message().senderId().equals(sender))
+                    .map(record -> record.message().message()))
+                    .containsExactly(IntStream.range(0, messagesPerSender).mapToObj(String::valueOf).toArray(String[]::new));
+        }
+        var statistics = repository.getStatistics();
+        assertThat(statistics.getMessages()).isEqualTo(total);
+        assertThat(statistics.getLargestBatch()).isLessThanOrEqualTo(32);
+        assertThat(statistics.getBatches()).isBetween((long) total / 32, (long) total - 1);
+    }
+
+    @Test
+    void writeStatisticsCountBatchesBytesAndSyncs() throws Exception {
+        //given
+        var messageLog = MessageLog.open(logDirectory, 1024 * 1024);
+        var repository = new MessageRepository(messageLog, PersistenceSettings.builder()
+                .queueCapacity(10)
+                .maxBatchSize(2)
+                .durabilityPolicy(DurabilityPolicy.BEFORE_ACK)
+                .build());
+        List<CompletableFuture<Long>> persisted = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            persisted.add(repository.saveMessage(message(i)).persisted());
+
+        //when
+        var writer = new Thread(repository);
+        writer.start();
+        CompletableFuture.allOf(persisted.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        writer.interrupt();
+        writer.join();
+
+        //then
+        var statistics = repository.getStatistics();
+        assertThat(statistics.getBatches()).isEqualTo(3);
+        assertThat(statistics.getMessages()).isEqualTo(5);
+        assertThat(statistics.getLargestBatch()).isEqualTo(2);
+        assertThat(statistics.getAverageBatchSize()).isEqualTo(5 / 3.0);
+        assertThat(statistics.getBytes()).isEqualTo(5L * RecordCodec.encodedSize(LogRecord.message(0, message(0))));
+        assertThat(statistics.getSyncs()).isEqualTo(3);
+    }
+
+    private static Message message(int number) {
+        return new Message("receiver", "sender", "message " + number);
+    }
+}
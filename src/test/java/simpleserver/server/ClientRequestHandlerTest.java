@@ -0,0 +1,295 @@
+package simpleserver.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import simpleserver.client.SimpleClient;
+import simpleserver.client.UserAuthority;
+import simpleserver.dto.Message;
+import simpleserver.dto.RegisteredUserCredentials;
+import simpleserver.repository.UserRepository;
+import simpleserver.service.MessageService;
+import simpleserver.service.SessionKey;
+import simpleserver.service.UserService;
+import simpleserver.util.JsonResponse;
+import simpleserver.util.StatusEnum;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ClientRequestHandlerTest {
+    @Mock
+    UserRepository userRepository;
+    @Mock
+    MessageService messageService;
+    @Mock
+    ClientResponder responder;
+    private UserService userService;
+    private InMemorySocketChannel channel;
+    private ClientRequestHandler handler;
+
+    @BeforeEach
+    void setup() {
+        when(userRepository.getAllUsers()).thenReturn(new ArrayList<>(List.of(
+                new RegisteredUserCredentials("alice", "secret"),
+                new RegisteredUserCredentials("bob", "secret"),
+                new RegisteredUserCredentials("admin", "secret", UserAuthority.ADMIN))));
+        userService = new UserService(messageService, userRepository);
+        channel = new InMemorySocketChannel();
+        userService.addConnection(channel);
+        handler = new ClientRequestHandler(responder, channel, userService, messageService, new ServerMetrics());
+    }
+
+    @Test
+    void multiplexesSessionsOnOneConnection() {
+        //given
+        var clients = ArgumentCaptor.forClass(SimpleClient.class);
+
+        //when
+        handler.handleRequest(login("alice", "a").toString());
+        handler.handleRequest(login("bob", "b").toString());
+
+        //then
+        verify(responder, times(2)).respond(clients.capture(), any(JsonObject.class), any());
+        assertThat(clients.getAllValues()).extracting(SimpleClient::getSessionId).containsExactly("a", "b");
+        assertThat(userService.getConnectedClients())
+                .containsEntry(new SessionKey(channel, "a"), "alice")
+                .containsEntry(new SessionKey(channel, "b"), "bob")
+                .containsEntry(SessionKey.of(channel), "");
+
+        //when
+        handler.handleRequest(request("logout", "alice", "a").toString());
+
+        //then
+        assertThat(userService.userIsConnected("alice")).isFalse();
+        assertThat(userService.userIsConnected("bob")).isTrue();
+
+        //when
+        userService.disconnectClient(channel);
+
+        //then
+        assertThat(userService.getConnectedClients()).isEmpty();
+    }
+
+    @Test
+    void partialLineDoesNotHoldTheMessagingLane() throws Exception {
+        //given
+        var lanes = new RequestLanes(1, TimeUnit.SECONDS.toMillis(5), 16);
+        when(messageService.openMessage(any())).thenReturn(JsonResponse.serverResponse(StatusEnum.SUCCESS, "No new messages"));
+        try (var server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             var peer = SocketChannel.open(server.getLocalAddress());
+             var accepted = server.accept()) {
+            var socketHandler = new ClientRequestHandler(responder, accepted, userService, messageService, new ServerMetrics());
+            socketHandler.setLanes(lanes);
+            var handlerThread = new Thread(socketHandler);
+            handlerThread.start();
+            var login = login("alice", null);
+            login.remove("session");
+            var open = request("open", "alice", null);
+            open.remove("session");
+
+            //when
+            peer.write(StandardCharsets.UTF_8.encode(login + "\n" + open + "\n{\"request\": \"op"));
+            verify(responder, timeout(5000).times(2)).respond(any(SimpleClient.class), any(JsonObject.class), any());
+
+            //then
+            assertThat(lanes.newTurn().enter(() -> false)).isEqualTo(RequestLanes.Admission.ADMITTED);
+            peer.close();
+            handlerThread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    @Test
+    void claimingToBeAdminWithoutLoggingInIsRejected() {
+        //given
+        var responses = ArgumentCaptor.forClass(JsonObject.class);
+
+        //when
+        handler.handleRequest(untagged(request("stats", "admin")).toString());
+
+        //then
+        verify(responder).respond(any(SimpleClient.class), responses.capture(), any());
+        verify(responder, never()).respond(any(SimpleClient.class), eq("stats"), any());
+        assertThat(responses.getValue().get("status").getAsString()).isEqualTo(StatusEnum.ERROR.name());
+        assertThat(userService.getConnectedClients()).containsEntry(SessionKey.of(channel), "");
+
+        //when
+        handler.handleRequest(untagged(login("admin", null)).toString());
+        handler.handleRequest(untagged(request("stats", "admin")).toString());
+
+        //then
+        verify(responder).respond(any(SimpleClient.class), eq("stats"), any());
+    }
+
+    @Test
+    void exportByUserWhoIsNotAdminIsRefusedWithoutBytes() throws Exception {
+        //given
+        var responses = ArgumentCaptor.forClass(JsonObject.class);
+        handler.handleRequest(untagged(login("alice", null)).toString());
+        var export = untagged(request("export", "admin"));
+        export.addProperty("exportUser", "bob");
+
+        //when
+        handler.handleRequest(export.toString());
+
+        //then
+        verify(responder, times(2)).respond(any(SimpleClient.class), responses.capture(), any());
+        assertThat(responses.getValue().get("status").getAsString()).isEqualTo(StatusEnum.ERROR.name());
+        assertThat(responses.getValue().get("message").getAsString()).isEqualTo("Only administrators can export messages");
+        assertThat(channel.getBytesWritten()).isZero();
+        verify(messageService, never()).exportMessages(any());
+    }
+
+    @Test
+    void resumeWithTokenThatIsNotAStringIsRejectedAndKeepsTheConnection() {
+        //given
+        var responses = ArgumentCaptor.forClass(JsonObject.class);
+        handler.handleRequest(login("alice", "a").toString());
+        var tokens = List.of(JsonNull.INSTANCE, new JsonObject(), new JsonArray());
+
+        //when
+        for (var token : tokens) {
+            var resume = request("resume", "", "b");
+            resume.add("resumeToken", token);
+            handler.handleRequest(resume.toString());
+        }
+
+        //then
+        verify(responder, times(4)).respond(any(SimpleClient.class), responses.capture(), any());
+        assertThat(responses.getAllValues().subList(1, 4)).allSatisfy(response -> {
+            assertThat(response.get("status").getAsString()).isEqualTo(StatusEnum.ERROR.name());
+            assertThat(response.get("message").getAsString()).isEqualTo("Resume token is invalid or expired");
+        });
+        assertThat(userService.getConnectedClients()).containsEntry(new SessionKey(channel, "a"), "alice");
+    }
+
+    @Test
+    void requestWithMissingFieldsIsRejectedInItsSessionOnly() {
+        //given
+        var responses = ArgumentCaptor.forClass(JsonObject.class);
+        handler.handleRequest(login("alice", "a").toString());
+        var withoutUser = request("stats", "", "b");
+        withoutUser.remove("user");
+        var loginWithNullPassword = login("bob", "b");
+        loginWithNullPassword.add("loginPassword", JsonNull.INSTANCE);
+        var registerWithNullPassword = request("register", "", "b");
+        registerWithNullPassword.addProperty("registerUsername", "carol");
+        registerWithNullPassword.add("registerPassword", JsonNull.INSTANCE);
+        var messageWithoutObject = request("message", "bob", "b");
+
+        //when
+        for (var request : List.of(withoutUser, loginWithNullPassword, registerWithNullPassword, messageWithoutObject))
+            handler.handleRequest(request.toString());
+
+        //then
+        verify(responder, times(5)).respond(any(SimpleClient.class), responses.capture(), any());
+        assertThat(responses.getAllValues().subList(1, 5)).allSatisfy(response -> {
+            assertThat(response.get("status").getAsString()).isEqualTo(StatusEnum.ERROR.name());
+            assertThat(response.get("message").getAsString()).isEqualTo("The server could not parse this message");
+        });
+        assertThat(userService.getConnectedClients()).containsEntry(new SessionKey(channel, "a"), "alice");
+        verify(messageService, never()).sendMessage(any());
+    }
+
+    @Test
+    void bulkFromUserClaimingToBeAdminIsRefused() {
+        //given
+        var responses = ArgumentCaptor.forClass(JsonObject.class);
+        handler.handleRequest(untagged(login("alice", null)).toString());
+        var bulk = untagged(request("messages", "admin"));
+        bulk.add("messages", new JsonArray());
+        bulk.getAsJsonArray("messages").add(message("bob", "admin", "hello"));
+
+        //when
+        handler.handleRequest(bulk.toString());
+
+        //then
+        verify(responder, times(2)).respond(any(SimpleClient.class), responses.capture(), any());
+        assertThat(responses.getValue().get("status").getAsString()).isEqualTo(StatusEnum.ERROR.name());
+        assertThat(responses.getValue().get("message").getAsString()).isEqualTo("Only administrators can send bulk messages");
+        verify(messageService, never()).sendMessages(any());
+    }
+
+    @Test
+    void bulkCountsSentMessagesAndListsOnlyTheRejectedOnes() {
+        //given
+        var responses = ArgumentCaptor.forClass(JsonObject.class);
+        when(messageService.sendMessages(any())).thenReturn(new JsonObject[]{
+                JsonResponse.serverResponse(StatusEnum.SUCCESS, "Message sent successfully")});
+        handler.handleRequest(login("bob", "b").toString());
+        handler.handleRequest(untagged(login("admin", null)).toString());
+        var bulk = untagged(request("messages", "admin"));
+        var messages = new JsonArray();
+        messages.add(message("bob", "backend", "hello"));
+        messages.add(message("", "backend", "no recipient"));
+        messages.add(message("carol", "backend", "nobody home"));
+        bulk.add("messages", messages);
+
+        //when
+        handler.handleRequest(bulk.toString());
+
+        //then
+        verify(responder, times(3)).respond(any(SimpleClient.class), responses.capture(), any());
+        var response = responses.getValue();
+        assertThat(response.get("status").getAsString()).isEqualTo(StatusEnum.SUCCESS.name());
+        assertThat(response.get("message").getAsString()).isEqualTo("Sent 1 of 3 messages");
+        assertThat(response.get("sent").getAsInt()).isEqualTo(1);
+        var rejected = response.getAsJsonArray("rejected");
+        assertThat(rejected).hasSize(2);
+        assertThat(rejected.get(0).getAsJsonObject().get("index").getAsInt()).isEqualTo(1);
+        assertThat(rejected.get(0).getAsJsonObject().get("message").getAsString()).isEqualTo("Message not formatted properly");
+        assertThat(rejected.get(1).getAsJsonObject().get("index").getAsInt()).isEqualTo(2);
+        assertThat(rejected.get(1).getAsJsonObject().get("message").getAsString())
+                .isEqualTo("Recipient is not logged in or registered");
+        verify(messageService).sendMessages(List.of(new Message("bob", "backend", "hello")));
+    }
+
+    private static JsonObject message(String receiverId, String senderId, String text) {
+        var message = new JsonObject();
+        message.addProperty("receiverId", receiverId);
+        message.addProperty("senderId", senderId);
+        message.addProperty("message", text);
+        return message;
+    }
+
+    private static JsonObject untagged(JsonObject request) {
+        request.remove("session");
+        return request;
+    }
+
+    private static JsonObject request(String requestType, String username) {
+        return request(requestType, username, null);
+    }
+
+    private static JsonObject login(String username, String session) {
+        var login = request("login", "", session);
+        login.addProperty("loginUsername", username);
+        login.addProperty("loginPassword", "secret");
+        return login;
+    }
+
+    private static JsonObject request(String requestType, String username, String session) {
+        var request = new JsonObject();
+        request.addProperty("session", session);
+        request.addProperty("user", JsonResponse.userResponse(username, "secret", UserAuthority.USER, false).toString());
+        request.addProperty("request", requestType);
+        return request;
+    }
+}
@@ -0,0 +1,36 @@
+package simpleserver.server;
+
+import org.junit.jupiter.api.Test;
+import simpleserver.util.JsonResponse;
+import simpleserver.util.StatusEnum;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ClientResponderTest {
+
+    @Test
+    void resumeTokenIsMaskedInALoggedCopy() {
+        //given
+        var response = JsonResponse.serverResponse(StatusEnum.SUCCESS, "Session resumed");
+        response.addProperty("resumeToken", "secret-token");
+
+        //when
+        var logged = ClientResponder.withoutSecrets(response);
+
+        //then
+        assertThat(logged.toString()).doesNotContain("secret-token").contains("Session resumed");
+        assertThat(response.get("resumeToken").getAsString()).isEqualTo("secret-token");
+    }
+
+    @Test
+    void responseWithoutTokenIsLoggedAsIs() {
+        //given
+        var response = JsonResponse.serverResponse(StatusEnum.SUCCESS, "Message sent successfully");
+
+        //when
+        var logged = ClientResponder.withoutSecrets(response);
+
+        //then
+        assertThat(logged).isSameAs(response);
+    }
+}
@@ -0,0 +1,126 @@
+package simpleserver.server;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Set;
+
+/**
+ * Connected, blocking socket channel without a socket. Writes are counted and discarded and reads see
+ * end of stream, so the request path can be driven without any network I/O.
+ */
+class InMemorySocketChannel extends SocketChannel {
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 5000);
+    private long bytesWritten;
+
+    InMemorySocketChannel() {
+        super(SelectorProvider.provider());
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public int write(ByteBuffer source) {
+        int written = source.remaining();
+        source.position(source.limit());
+        bytesWritten += written;
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) {
+        long written = 0;
+        for (int i = offset; i < offset + length; i++)
+            written += write(sources[i]);
+        return written;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) {
+        return -1;
+    }
+
+    @Override
+    public long read(ByteBuffer[] destinations, int offset, int length) {
+        return -1;
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local) {
+        return this;
+    }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) {
+        return null;
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return Set.of();
+    }
+
+    @Override
+    public SocketChannel shutdownInput() {
+        return this;
+    }
+
+    @Override
+    public SocketChannel shutdownOutput() {
+        return this;
+    }
+
+    @Override
+    public Socket socket() {
+        throw new UnsupportedOperationException("In-memory channel has no socket");
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isConnectionPending() {
+        return false;
+    }
+
+    @Override
+    public boolean connect(SocketAddress remote) {
+        return true;
+    }
+
+    @Override
+    public boolean finishConnect() {
+        return true;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return ADDRESS;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return ADDRESS;
+    }
+
+    @Override
+    protected void implCloseSelectableChannel() {
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block) {
+    }
+}
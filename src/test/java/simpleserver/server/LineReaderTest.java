@@ -0,0 +1,26 @@
+package simpleserver.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LineReaderTest {
+
+    @Test
+    void readsLinesLikeBufferedReaderAndSeesOnlyCompleteOnes() throws IOException {
+        //given
+        var reader = new LineReader(new StringReader("first\r\nsecond\nthird\rpartial"));
+
+        //when //then
+        assertThat(reader.readLine()).isEqualTo("first");
+        assertThat(reader.hasLine()).isTrue();
+        assertThat(reader.readLine()).isEqualTo("second");
+        assertThat(reader.readLine()).isEqualTo("third");
+        assertThat(reader.hasLine()).isFalse();
+        assertThat(reader.readLine()).isEqualTo("partial");
+        assertThat(reader.readLine()).isNull();
+    }
+}
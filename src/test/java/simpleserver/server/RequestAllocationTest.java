@@ -0,0 +1,175 @@
+package simpleserver.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import simpleserver.client.UserAuthority;
+import simpleserver.dto.Message;
+import simpleserver.repository.MessageLog;
+import simpleserver.repository.MessageRepository;
+import simpleserver.repository.PersistenceSettings;
+import simpleserver.repository.UserRepository;
+import simpleserver.service.MessageService;
+import simpleserver.service.UserService;
+import simpleserver.util.JsonResponse;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Allocation budgets of the request path. Requests are pushed through {@link ClientRequestHandler} over an
+ * {@link InMemorySocketChannel} and the bytes allocated by the calling thread are averaged per request.
+ * Work done on other threads, such as the message writer, is not counted, and logging is switched off so
+ * that the budgets do not depend on the logging configuration.
+ * <p>
+ * A test fails when a change makes a request type allocate more than its budget. When a change lowers the
+ * allocation of a request type for good, lower its budget with it.
+ */
+class RequestAllocationTest {
+    private static final int WARMUP_REQUESTS = 20_000;
+    private static final int MEASURED_REQUESTS = 5_000;
+
+    // Bytes per request. Most of it is the PrintWriter stack that ClientResponder creates for every response.
+    private static final long PING_BUDGET = 36 * 1024;
+    private static final long MESSAGE_BUDGET = 42 * 1024;
+    private static final long OPEN_BUDGET = 38 * 1024;
+    private static final long LOGIN_BUDGET = 38 * 1024;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static Level rootLevel;
+
+    @TempDir
+    Path directory;
+    private Thread writer;
+    private UserService userService;
+    private InMemorySocketChannel channel;
+    private ClientRequestHandler handler;
+
+    @BeforeAll
+    static void silenceLogging() {
+        rootLevel = Logger.getLogger("").getLevel();
+        Logger.getLogger("").setLevel(Level.OFF);
+    }
+
+    @AfterAll
+    static void restoreLogging() {
+        Logger.getLogger("").setLevel(rootLevel);
+    }
+
+    @BeforeEach
+    void setup() throws IOException {
+        var messageRepository = new MessageRepository(MessageLog.open(directory.resolve("messages"), 64 * 1024 * 1024),
+                PersistenceSettings.builder().queueCapacity(4096).build());
+        writer = new Thread(messageRepository, "message-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        var messageService = new MessageService(messageRepository);
+        userService = new UserService(messageService, new UserRepository(directory.resolve("users.json").toString()));
+        var metrics = new ServerMetrics();
+        var responder = new ClientResponder(new ServerRequests(LocalDateTime.now(), metrics));
+
+        channel = new InMemorySocketChannel();
+        userService.registerNewUser("alice", "secret");
+        userService.loginUser(channel, "alice", "secret");
+        handler = new ClientRequestHandler(responder, channel, userService, messageService, metrics);
+        handler.handleRequest(request("ping").toString());
+    }
+
+    @AfterEach
+    void stopWriter() throws InterruptedException {
+        writer.interrupt();
+        writer.join();
+    }
+
+    @Test
+    void pingStaysWithinBudget() {
+        //given
+        String ping = request("ping").toString();
+
+        //when
+        long bytesPerRequest = allocatedPerRequest(() -> handler.handleRequest(ping));
+
+        //then
+        assertThat(bytesPerRequest).as("bytes allocated per ping").isLessThanOrEqualTo(PING_BUDGET);
+    }
+
+    @Test
+    void messageAndOpenStayWithinBudget() {
+        //given
+        var message = request("message");
+        message.addProperty("messageObject", new Gson().toJson(new Message("alice", "alice", "allocation budget")));
+        String send = message.toString();
+        String open = request("open").toString();
+
+        //when
+        long bytesPerPair = allocatedPerRequest(() -> {
+            handler.handleRequest(send);
+            handler.handleRequest(open);
+        });
+
+        //then
+        assertThat(bytesPerPair).as("bytes allocated per message and open").isLessThanOrEqualTo(MESSAGE_BUDGET + OPEN_BUDGET);
+    }
+
+    @Test
+    void openOfEmptyMailboxStaysWithinBudget() {
+        //given
+        String open = request("open").toString();
+
+        //when
+        long bytesPerRequest = allocatedPerRequest(() -> handler.handleRequest(open));
+
+        //then
+        assertThat(bytesPerRequest).as("bytes allocated per open").isLessThanOrEqualTo(OPEN_BUDGET);
+    }
+
+    @Test
+    void loginStaysWithinBudget() {
+        //given
+        var login = request("login");
+        login.addProperty("loginUsername", "alice");
+        login.addProperty("loginPassword", "secret");
+        String loginRequest = login.toString();
+
+        //when
+        long bytesPerRequest = allocatedPerRequest(() -> {
+            userService.disconnectClient(channel);
+            handler.handleRequest(loginRequest);
+        });
+
+        //then
+        assertThat(bytesPerRequest).as("bytes allocated per login").isLessThanOrEqualTo(LOGIN_BUDGET);
+    }
+
+    private static long allocatedPerRequest(Runnable request) {
+        for (int i = 0; i < WARMUP_REQUESTS; i++)
+            request.run();
+
+        long threadId = Thread.currentThread().getId();
+        long before = THREADS.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_REQUESTS; i++)
+            request.run();
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - before;
+        return allocated / MEASURED_REQUESTS;
+    }
+
+    private static JsonObject request(String type) {
+        var request = new JsonObject();
+        request.addProperty("user", JsonResponse.userResponse("alice", "secret", UserAuthority.USER, true).toString());
+        request.addProperty("request", type);
+        return request;
+    }
+}
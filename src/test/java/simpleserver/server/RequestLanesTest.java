@@ -0,0 +1,58 @@
+package simpleserver.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RequestLanesTest {
+
+    @Test
+    void fullMessagingLaneRejectsUsersButNotAdministrators() {
+        //given
+        var lanes = new RequestLanes(1, 10, 16);
+        var first = lanes.newTurn();
+        first.enter(() -> false);
+
+        //when
+        var user = lanes.newTurn().enter(() -> false);
+        var admin = lanes.newTurn().enter(() -> true);
+        var adminExport = lanes.newTurn().enterHeavy();
+
+        //then
+        assertThat(user).isEqualTo(RequestLanes.Admission.REJECTED);
+        assertThat(admin).isEqualTo(RequestLanes.Admission.BYPASSED);
+        assertThat(adminExport).isEqualTo(RequestLanes.Admission.REJECTED);
+        assertThat(lanes.getRejected()).isEqualTo(2);
+
+        //when
+        first.end();
+
+        //then
+        assertThat(lanes.newTurn().enter(() -> false)).isEqualTo(RequestLanes.Admission.ADMITTED);
+    }
+
+    @Test
+    void connectionGoesBehindWaitingConnectionsAfterItsQuantum() throws Exception {
+        //given
+        var lanes = new RequestLanes(1, TimeUnit.SECONDS.toMillis(5), 3);
+        var chatty = lanes.newTurn();
+        for (int i = 0; i < 3; i++)
+            assertThat(chatty.enter(() -> false)).isEqualTo(RequestLanes.Admission.ADMITTED);
+        var quiet = lanes.newTurn();
+        var quietAdmitted = CompletableFuture.supplyAsync(() -> quiet.enter(() -> false));
+        while (lanes.getWaiting() == 0)
+            Thread.onSpinWait();
+
+        //when
+        var chattyFourth = CompletableFuture.supplyAsync(() -> chatty.enter(() -> false));
+
+        //then
+        assertThat(quietAdmitted.get(5, TimeUnit.SECONDS)).isEqualTo(RequestLanes.Admission.ADMITTED);
+        assertThat(chattyFourth).isNotDone();
+        quiet.end();
+        assertThat(chattyFourth.get(5, TimeUnit.SECONDS)).isEqualTo(RequestLanes.Admission.ADMITTED);
+    }
+}
@@ -0,0 +1,36 @@
+package simpleserver.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ServerMetricsTest {
+
+    @Test
+    void recordsPerRequestTypeAndGauges() {
+        //given
+        var metrics = new ServerMetrics();
+        metrics.registerGauge("connections", () -> 3);
+
+        //when
+        var ping = metrics.forRequest("ping");
+        ping.started();
+        ping.finished(TimeUnit.MILLISECONDS.toNanos(2), true);
+        var unknown = metrics.forRequest("not-a-command");
+        unknown.started();
+        unknown.finished(1000, false);
+        metrics.forRequest("message").started();
+
+        //then
+        var json = metrics.toJson();
+        assertThat(json.getAsJsonObject("gauges").get("connections").getAsLong()).isEqualTo(3);
+        var requests = json.getAsJsonObject("requests");
+        assertThat(requests.keySet()).containsExactly("message", "ping", ServerMetrics.OTHER);
+        assertThat(requests.getAsJsonObject("ping").get("count").getAsLong()).isEqualTo(1);
+        assertThat(requests.getAsJsonObject("ping").get("maxMicros").getAsLong()).isEqualTo(2000);
+        assertThat(requests.getAsJsonObject("message").get("inFlight").getAsInt()).isEqualTo(1);
+        assertThat(requests.getAsJsonObject(ServerMetrics.OTHER).get("failures").getAsLong()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,42 @@
+package simpleserver.server;
+
+import org.junit.jupiter.api.Test;
+import simpleserver.util.StatusEnum;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StartupStagesTest {
+
+    @Test
+    void holdsBackRequestsUntilTheirStageIsDone() {
+        //given
+        var users = new CompletableFuture<Void>();
+        var messages = new CompletableFuture<Void>();
+        var startupStages = new StartupStages(users, messages);
+        var serverRequests = new ServerRequests(LocalDateTime.now(), new ServerMetrics());
+        serverRequests.setStartupStages(startupStages);
+
+        //when //then
+        assertThat(startupStages.canHandle("ping")).isTrue();
+        assertThat(startupStages.canHandle("login")).isFalse();
+        assertThat(serverRequests.getResponse("ping").get("status").getAsString()).isEqualTo(StatusEnum.WARMING.toString());
+
+        //when
+        users.complete(null);
+
+        //then
+        assertThat(startupStages.canHandle("login")).isTrue();
+        assertThat(startupStages.canHandle("message")).isFalse();
+        assertThat(serverRequests.getResponse("info").getAsJsonObject("stages").get("messages").getAsString()).isEqualTo("warming");
+
+        //when
+        messages.complete(null);
+
+        //then
+        assertThat(startupStages.canHandle("message")).isTrue();
+        assertThat(serverRequests.getResponse("ping").get("status").getAsString()).isEqualTo(StatusEnum.SUCCESS.toString());
+    }
+}
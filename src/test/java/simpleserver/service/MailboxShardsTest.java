@@ -0,0 +1,86 @@
+package simpleserver.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import simpleserver.dto.Message;
+import simpleserver.dto.StoredMessage;
+import simpleserver.util.IntObjectMap;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MailboxShardsTest {
+    private static final int USER = 7;
+    private final MailboxShards shards = new MailboxShards(4);
+
+    @AfterEach
+    void tearDown() {
+        shards.close();
+    }
+
+    @Test
+    void tasksForOneUserRunInOrderOnOneThread() throws InterruptedException {
+        //given
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int sender = t;
+            senders.add(new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    var message = new StoredMessage(i, new Message("user", "sender" + sender, String.valueOf(i)));
+                    shards.call(USER, mailboxes -> {
+                        threads.add(Thread.currentThread().getName());
+                        return mailboxes.computeIfAbsent(USER, id -> new LinkedList<>()).add(message);
+                    });
+                }
+            }));
+        }
+
+        //when
+        senders.forEach(Thread::start);
+        for (Thread sender : senders)
+            sender.join();
+
+        //then
+        List<Message> mailbox = shards.call(USER, mailboxes -> mailboxes.get(USER).stream().map(StoredMessage::message).toList());
+        assertThat(mailbox).hasSize(4000);
+        assertThat(threads).containsExactly("mailbox-shard-" + shards.indexOf(USER));
+        for (int t = 0; t < 4; t++) {
+            String sender = "sender" + t;
+            assertThat(mailbox.stream().filter(message -> message.senderId().equals(sender)).map(Message::message))
+                    .containsExactly(IntStream.range(0, 1000).mapToObj(String::valueOf).toArray(String[]::new));
+        }
+    }
+
+    @Test
+    void callAllVisitsEveryShard() {
+        //given
+        for (int i = 0; i < 100; i++) {
+            int userId = i;
+            shards.call(userId, mailboxes -> mailboxes.put(userId, new LinkedList<>()));
+        }
+
+        //when
+        List<Integer> sizes = shards.callAll(IntObjectMap::size);
+
+        //then
+        assertThat(sizes).containsExactly(25, 25, 25, 25);
+    }
+
+    @Test
+    void taskFailureIsRethrownToCaller() {
+        //when //then
+        assertThatThrownBy(() -> shards.call(USER, mailboxes -> mailboxes.get(USER + 1).size()))
+                .isInstanceOf(CompletionException.class)
+                .hasCauseInstanceOf(NullPointerException.class);
+        assertThat(shards.<String>call(USER, mailboxes -> "still running")).isEqualTo("still running");
+    }
+}
@@ -6,15 +6,23 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import simpleserver.client.SimpleClient;
 import simpleserver.dto.Message;
+import simpleserver.dto.StoredMessage;
 import simpleserver.repository.MessageRepository;
+import simpleserver.repository.PersistenceBusyException;
+import simpleserver.repository.QueuedRecords;
+import simpleserver.repository.RecordCodec;
+import simpleserver.util.IntObjectMap;
 import simpleserver.util.StatusEnum;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
-import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -25,25 +33,28 @@ class MessageServiceTest {
     @Mock
     MessageRepository messageRepository;
 
+    @Spy
+    UserIds userIds = new UserIds();
+
     @InjectMocks
     MessageService messageService;
 
     private SimpleClient connectedUser;
-    private HashMap<SimpleClient, LinkedList<Message>> unreadMessages;
+    private IntObjectMap<LinkedList<StoredMessage>> unreadMessages;
 
     @BeforeEach
     void setup() throws NoSuchFieldException, IllegalAccessException{
         Field unreadMessagesField = MessageService.class.getDeclaredField("unreadMessages");
         unreadMessagesField.setAccessible(true);
 
-        unreadMessages = (HashMap<SimpleClient, LinkedList<Message>>) unreadMessagesField.get(messageService);
+        unreadMessages = (IntObjectMap<LinkedList<StoredMessage>>) unreadMessagesField.get(messageService);
 
 
         this.connectedUser = SimpleClient.builder()
                 .username("connectedUser")
                 .build();
 
-        unreadMessages.put(connectedUser, new LinkedList<>());
+        unreadMessages.put(userIds.idOf(connectedUser.getUsername()), new LinkedList<>());
     }
 
     @Test
@@ -56,8 +67,8 @@ class MessageServiceTest {
         messageService.addClient(newUser);
 
         //then
-        assertThat(unreadMessages.get(newUser)).isNotNull();
-        assertThat(unreadMessages.get(newUser)).hasSize(0);
+        assertThat(mailboxOf(newUser)).isNotNull();
+        assertThat(mailboxOf(newUser)).hasSize(0);
 
     }
 
@@ -65,26 +76,72 @@ class MessageServiceTest {
     void sendMessageSuccessful() {
         //given
         Message inputMessage = new Message("connectedUser", "sender", "message Payload");
+        when(messageRepository.saveMessage(inputMessage)).thenReturn(queuedAt(7));
 
-        var unreadMessageSize = unreadMessages.get(connectedUser).size();
+        var unreadMessageSize = mailboxOf(connectedUser).size();
 
         //when
         var jsonResponse = messageService.sendMessage(inputMessage);
 
         //then
         Mockito.verify(messageRepository, times(1)).saveMessage(inputMessage);
-        assertThat(unreadMessages.get(connectedUser).size()).isEqualTo(unreadMessageSize + 1);
+        assertThat(mailboxOf(connectedUser).size()).isEqualTo(unreadMessageSize + 1);
+        assertThat(mailboxOf(connectedUser).getLast()).isEqualTo(new StoredMessage(7, inputMessage));
         assertThat(jsonResponse.has("status")).isTrue();
         assertThat(jsonResponse.has("message")).isTrue();
         assertThat(jsonResponse.get("status").getAsString()).isEqualTo(StatusEnum.SUCCESS.toString());
     }
 
+    @Test
+    void sendMessageTooLargeToStore() {
+        //given
+        Message inputMessage = new Message("connectedUser", "sender", "message Payload");
+        when(messageRepository.saveMessage(inputMessage)).thenThrow(new RecordCodec.RecordTooLargeException("too large"));
+
+        //when
+        var jsonResponse = messageService.sendMessage(inputMessage);
+
+        //then
+        assertThat(jsonResponse.get("status").getAsString()).isEqualTo(StatusEnum.ERROR.toString());
+        assertThat(mailboxOf(connectedUser)).isEmpty();
+    }
+
+    @Test
+    void sendMessageWaitsForDurableWrite() {
+        //given
+        Message inputMessage = new Message("connectedUser", "sender", "message Payload");
+        when(messageRepository.saveMessage(inputMessage)).thenReturn(new QueuedRecords(0, CompletableFuture.failedFuture(new IOException("disk full"))));
+        when(messageRepository.acknowledgesAfterSync()).thenReturn(true);
+        when(messageRepository.getAckTimeoutMillis()).thenReturn(100L);
+
+        //when
+        var jsonResponse = messageService.sendMessage(inputMessage);
+
+        //then
+        assertThat(jsonResponse.get("status").getAsString()).isEqualTo(StatusEnum.ERROR.toString());
+    }
+
+    @Test
+    void sendMessageRepositoryBusy() {
+        //given
+        Message inputMessage = new Message("connectedUser", "sender", "message Payload");
+        when(messageRepository.saveMessage(inputMessage)).thenThrow(new PersistenceBusyException("Message queue is full"));
+        var unreadMessageSize = mailboxOf(connectedUser).size();
+
+        //when
+        var jsonResponse = messageService.sendMessage(inputMessage);
+
+        //then
+        assertThat(mailboxOf(connectedUser).size()).isEqualTo(unreadMessageSize);
+        assertThat(jsonResponse.get("status").getAsString()).isEqualTo(StatusEnum.BUSY.toString());
+    }
+
     @Test
     void sendMessageMailboxFull() {
         //given
 
-        IntStream.rangeClosed(0, 4).forEach(message -> unreadMessages.get(connectedUser).add(mock(Message.class)));
-        var unreadMessageSize = unreadMessages.get(connectedUser).size();
+        IntStream.rangeClosed(0, 4).forEach(offset -> mailboxOf(connectedUser).add(new StoredMessage(offset, mock(Message.class))));
+        var unreadMessageSize = mailboxOf(connectedUser).size();
         Message inputMessage = new Message("connectedUser", "sender", "message Payload");
 
         //when
@@ -92,19 +149,39 @@ class MessageServiceTest {
 
         //then
         verifyNoInteractions(messageRepository);
-        assertThat(unreadMessages.get(connectedUser).size()).isEqualTo(unreadMessageSize);
+        assertThat(mailboxOf(connectedUser).size()).isEqualTo(unreadMessageSize);
         assertThat(jsonResponse.has("status")).isTrue();
         assertThat(jsonResponse.has("message")).isTrue();
         assertThat(jsonResponse.get("status").getAsString()).isEqualTo(StatusEnum.ERROR.toString());
     }
 
 
+    @Test
+    void sendMessagesStoresWhatFitsWithOneAppend() {
+        //given
+        IntStream.rangeClosed(0, 3).forEach(offset -> mailboxOf(connectedUser).add(new StoredMessage(offset, mock(Message.class))));
+        var first = new Message("connectedUser", "backend", "first");
+        var second = new Message("connectedUser", "backend", "second");
+        var toNewUser = new Message("newUser", "backend", "hello");
+        when(messageRepository.saveMessages(List.of(first, toNewUser))).thenReturn(queuedAt(4));
+
+        //when
+        var results = messageService.sendMessages(List.of(first, second, toNewUser));
+
+        //then
+        verify(messageRepository, times(1)).saveMessages(any());
+        assertThat(results).extracting(result -> result.get("status").getAsString())
+                .containsExactly(StatusEnum.SUCCESS.toString(), StatusEnum.ERROR.toString(), StatusEnum.SUCCESS.toString());
+        assertThat(mailboxOf(connectedUser)).hasSize(5).endsWith(new StoredMessage(4, first));
+        assertThat(messageService.getUnreadMessageCount("newUser")).isEqualTo(1);
+    }
+
     @Test
     void openMessageSuccessful() {
         //given
         var expectedMessage = new Message(connectedUser.getUsername(), "sender", "message Payload");
 
-        unreadMessages.get(connectedUser).add(expectedMessage);
+        mailboxOf(connectedUser).add(new StoredMessage(3, expectedMessage));
 
 
         //when
@@ -113,6 +190,24 @@ class MessageServiceTest {
         //then
         assertThat(jsonResponse.has("messageObject")).isTrue();
         assertThat(jsonResponse.get("message").getAsString()).isEqualTo("New message");
+        verify(messageRepository).acknowledgeMessage(connectedUser.getUsername(), 3);
+    }
+
+    @Test
+    void bulkMessageSavedBeforeASingleOneIsOpenedFirst() {
+        //given
+        var fromBulk = new Message("connectedUser", "backend", "bulk");
+        var single = new Message("connectedUser", "sender", "single");
+        when(messageRepository.saveMessages(List.of(fromBulk))).thenReturn(queuedAt(4));
+        mailboxOf(connectedUser).add(new StoredMessage(5, single));
+
+        //when
+        messageService.sendMessages(List.of(fromBulk));
+        messageService.openMessage(connectedUser);
+
+        //then
+        verify(messageRepository).acknowledgeMessage(connectedUser.getUsername(), 4);
+        assertThat(mailboxOf(connectedUser)).containsExactly(new StoredMessage(5, single));
     }
 
     @Test
@@ -126,4 +221,56 @@ class MessageServiceTest {
         assertThat(jsonResponse.has("messageObject")).isFalse();
         assertThat(jsonResponse.get("message").getAsString()).isEqualTo("No new messages");
     }
-}
\ No newline at end of file
+
+    @Test
+    void sendAndOpenMessageOnShards() {
+        //given
+        var sharded = new MessageService(messageRepository);
+        var shards = new MailboxShards(2);
+        sharded.setShards(shards);
+        sharded.addClient(connectedUser);
+        var expectedMessage = new Message(connectedUser.getUsername(), "sender", "message Payload");
+        when(messageRepository.saveMessage(expectedMessage)).thenReturn(queuedAt(1));
+
+        //when
+        var sendResponse = sharded.sendMessage(expectedMessage);
+        var unread = sharded.getUnreadMessageCount(connectedUser.getUsername());
+        var openResponse = sharded.openMessage(connectedUser);
+        var unreadAfterOpen = sharded.getUnreadMessageCount();
+        shards.close();
+
+        //then
+        assertThat(sendResponse.get("status").getAsString()).isEqualTo(StatusEnum.SUCCESS.toString());
+        assertThat(unread).isEqualTo(1);
+        assertThat(openResponse.get("message").getAsString()).isEqualTo("New message");
+        assertThat(unreadAfterOpen).isZero();
+        verify(messageRepository).acknowledgeMessage(connectedUser.getUsername(), 1);
+    }
+
+    @Test
+    void lookupsOfUnknownUsersDoNotInternTheirNames() {
+        //given
+        var stranger = SimpleClient.builder()
+                .username("stranger")
+                .build();
+        int knownIds = userIds.size();
+
+        //when
+        var openResponse = messageService.openMessage(stranger);
+        var unread = messageService.getUnreadMessageCount("stranger");
+
+        //then
+        assertThat(openResponse.get("message").getAsString()).isEqualTo("No new messages");
+        assertThat(unread).isZero();
+        assertThat(userIds.size()).isEqualTo(knownIds);
+        assertThat(userIds.find("stranger")).isEqualTo(UserIds.UNKNOWN);
+    }
+
+    private LinkedList<StoredMessage> mailboxOf(SimpleClient client) {
+        return unreadMessages.get(userIds.find(client.getUsername()));
+    }
+
+    private static QueuedRecords queuedAt(long firstOffset) {
+        return new QueuedRecords(firstOffset, CompletableFuture.completedFuture(firstOffset));
+    }
+}
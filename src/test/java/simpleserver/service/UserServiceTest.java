@@ -6,8 +6,10 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import simpleserver.client.SimpleClient;
+import simpleserver.client.UserAuthority;
 import simpleserver.dto.RegisteredUserCredentials;
 import simpleserver.repository.UserRepository;
 
@@ -27,6 +29,8 @@ class UserServiceTest {
     UserRepository userRepository;
     @Mock
     MessageService messageService;
+    @Spy
+    UserIds userIds = new UserIds();
     @InjectMocks
     UserService userService;
 
@@ -43,7 +47,7 @@ class UserServiceTest {
                         .password("password")
                         .build();
 
-        userService.getConnectedClients().put(mock(SocketChannel.class), "connectedUser");
+        userService.getConnectedClients().put(SessionKey.of(mock(SocketChannel.class)), "connectedUser");
     }
 
     @Test
@@ -143,19 +147,81 @@ class UserServiceTest {
         assertThat(result).isFalse();
     }
 
+    @Test
+    void isAdminUsesStoredAuthority() {
+        //given
+        when(userRepository.getAllUsers()).thenReturn(new ArrayList<>(List.of(
+                new RegisteredUserCredentials("admin", "password", UserAuthority.ADMIN),
+                new RegisteredUserCredentials("plainUser", "password"))));
+        SocketChannel adminChannel = mock(SocketChannel.class);
+        SocketChannel userChannel = mock(SocketChannel.class);
+        SocketChannel claimingChannel = mock(SocketChannel.class);
+        userService.loginUser(adminChannel, "admin", "password");
+        userService.loginUser(userChannel, "plainUser", "password");
+        userService.getConnectedClients().put(SessionKey.of(claimingChannel), "admin");
+
+        //when, then
+        assertThat(userService.isAdmin(adminChannel)).isTrue();
+        assertThat(userService.isAdmin(userChannel)).isFalse();
+        assertThat(userService.isAdmin(claimingChannel)).isFalse();
+        assertThat(userService.isAdmin(mock(SocketChannel.class))).isFalse();
+    }
+
     @Test
     void disconnectClient() {
         //given
         var connectedClients = userService.getConnectedClients();
         SocketChannel mockChannel = mock(SocketChannel.class);
-        connectedClients.put(mockChannel, "user");
+        connectedClients.put(SessionKey.of(mockChannel), "user");
+        connectedClients.put(new SessionKey(mockChannel, "bot-1"), "bot");
 
-        assertTrue(connectedClients.containsKey(mockChannel));
+        assertTrue(connectedClients.containsKey(SessionKey.of(mockChannel)));
 
         //when
         userService.disconnectClient(mockChannel);
 
         //then
-        assertThat(connectedClients.containsKey(mockChannel)).isFalse();
+        assertThat(connectedClients).doesNotContainKeys(SessionKey.of(mockChannel), new SessionKey(mockChannel, "bot-1"));
+    }
+
+    @Test
+    void resumeSessionWithinGraceWindow() {
+        //given
+        when(userRepository.getAllUsers()).thenReturn(new ArrayList<>(List.of(new RegisteredUserCredentials("registeredUser", "password"))));
+        SocketChannel droppedChannel = mock(SocketChannel.class);
+        userService.loginUser(droppedChannel, "registeredUser", "password");
+        String token = userService.issueResumeToken(SessionKey.of(droppedChannel));
+
+        //when
+        userService.disconnectClient(droppedChannel);
+
+        //then
+        assertThat(userService.userIsConnected("registeredUser")).isTrue();
+
+        //when
+        var newSession = SessionKey.of(mock(SocketChannel.class));
+        var resumed = userService.resumeSession(newSession, token);
+
+        //then
+        assertThat(resumed).contains("registeredUser");
+        assertThat(userService.getConnectedClients()).containsEntry(newSession, "registeredUser");
+        assertThat(userService.resumeSession(SessionKey.of(mock(SocketChannel.class)), token)).isEmpty();
+    }
+
+    @Test
+    void resumeSessionAfterGraceWindowFails() {
+        //given
+        when(userRepository.getAllUsers()).thenReturn(new ArrayList<>(List.of(new RegisteredUserCredentials("registeredUser", "password"))));
+        userService.setResumeGraceMillis(0);
+        SocketChannel droppedChannel = mock(SocketChannel.class);
+        userService.loginUser(droppedChannel, "registeredUser", "password");
+        String token = userService.issueResumeToken(SessionKey.of(droppedChannel));
+
+        //when
+        userService.disconnectClient(droppedChannel);
+
+        //then
+        assertThat(userService.userIsConnected("registeredUser")).isFalse();
+        assertThat(userService.resumeSession(SessionKey.of(mock(SocketChannel.class)), token)).isEmpty();
     }
-}
\ No newline at end of file
+}
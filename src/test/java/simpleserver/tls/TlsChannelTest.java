@@ -0,0 +1,136 @@
+package simpleserver.tls;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import simpleserver.client.AsyncClient;
+import simpleserver.client.ReconnectPolicy;
+import simpleserver.dto.RegisteredUserCredentials;
+import simpleserver.repository.UserRepository;
+import simpleserver.server.ClientRequestHandler;
+import simpleserver.server.ClientResponder;
+import simpleserver.server.ServerMetrics;
+import simpleserver.server.ServerRequests;
+import simpleserver.service.MessageService;
+import simpleserver.service.UserService;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TlsChannelTest {
+    private static final String PASSWORD = "changeit";
+
+    @TempDir
+    static Path directory;
+    private static String keyStore;
+    private static TlsContext serverTls;
+    private static ServerSocketChannel listener;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        keyStore = directory.resolve("server.p12").toString();
+        var keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "2",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-keystore", keyStore, "-storetype", "PKCS12", "-storepass", PASSWORD)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectErrorStream(true)
+                .start();
+        assertThat(keytool.waitFor(30, TimeUnit.SECONDS) && keytool.exitValue() == 0).isTrue();
+
+        serverTls = TlsContext.forServer(TlsSettings.builder()
+                .enabled(true)
+                .keyStore(keyStore)
+                .keyStorePassword(PASSWORD)
+                .handshakeThreads(2)
+                .build());
+        var userRepository = mock(UserRepository.class);
+        when(userRepository.getAllUsers()).thenReturn(new ArrayList<>(List.of(new RegisteredUserCredentials("alice", "secret"))));
+        var messageService = new MessageService(null);
+        var userService = new UserService(messageService, userRepository);
+        var responder = new ClientResponder(new ServerRequests(LocalDateTime.now(), new ServerMetrics()));
+
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        var acceptor = new Thread(() -> {
+            while (listener.isOpen()) {
+                try {
+                    SocketChannel connection = listener.accept();
+                    userService.addConnection(connection);
+                    new Thread(new ClientRequestHandler(responder, connection, serverTls.serverChannel(connection),
+                            userService, messageService, new ServerMetrics())).start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterAll
+    static void stopServer() throws IOException {
+        listener.close();
+        serverTls.close();
+    }
+
+    @Test
+    void servesRequestsOverTlsAndResumesSessions() throws Exception {
+        //given
+        int port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+        try (var clientTls = TlsContext.forClient(TlsSettings.builder().trustStore(keyStore).trustStorePassword(PASSWORD).build())) {
+            try (var client = AsyncClient.connect("localhost", port, ReconnectPolicy.DISABLED, clientTls)) {
+                //when
+                var login = client.login("alice", "secret").get(5, TimeUnit.SECONDS);
+                var ping = client.command("ping").get(5, TimeUnit.SECONDS);
+
+                //then
+                assertThat(login.isSuccess()).isTrue();
+                assertThat(ping.message()).isEqualTo("PONG");
+            }
+
+            //when the next connections find the ticket the server sent over the first one
+            Thread.sleep(10);
+            long reconnected = System.currentTimeMillis();
+            var resumed = handshake(clientTls, port);
+            var full = handshake(clientTls, port);
+
+            //then a resumed session keeps its creation time; tickets are used once, so the last one is new
+            assertThat(resumed.getSession().getProtocol()).isEqualTo("TLSv1.3");
+            assertThat(resumed.getSession().getCreationTime()).isLessThan(reconnected);
+            assertThat(full.getSession().getCreationTime()).isGreaterThanOrEqualTo(reconnected);
+            resumed.close();
+            full.close();
+        }
+    }
+
+    @Test
+    void rejectsUntrustedServer() throws Exception {
+        //given
+        int port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+        try (var clientTls = TlsContext.forClient(TlsSettings.builder().build())) {
+            //when //then
+            assertThatThrownBy(() -> AsyncClient.connect("localhost", port, ReconnectPolicy.DISABLED, clientTls))
+                    .isInstanceOf(SSLException.class);
+        }
+    }
+
+    private static TlsChannel handshake(TlsContext tls, int port) throws IOException {
+        var channel = tls.clientChannel(SocketChannel.open(new InetSocketAddress("localhost", port)), "localhost", port);
+        channel.handshake();
+        return channel;
+    }
+}
@@ -0,0 +1,70 @@
+package simpleserver.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AsyncLogHandlerTest {
+
+    @Test
+    void dropsAndCountsRecordsWhenBufferIsFull() throws InterruptedException {
+        //given
+        var firstReceived = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var target = new BlockingHandler(firstReceived, release);
+        var handler = new AsyncLogHandler(target, 2);
+
+        handler.publish(new LogRecord(Level.INFO, "first"));
+        assertThat(firstReceived.await(5, TimeUnit.SECONDS)).isTrue();
+
+        //when
+        for (int i = 0; i < 5; i++)
+            handler.publish(new LogRecord(Level.INFO, "record " + i));
+        release.countDown();
+        handler.close();
+
+        //then
+        assertThat(handler.getDropped()).isEqualTo(3);
+        assertThat(target.published).extracting(LogRecord::getMessage)
+                .containsExactly("first", "Log buffer was full, dropped {0} log records", "record 0", "record 1");
+        assertThat(target.published.get(1).getParameters()).containsExactly(3L);
+    }
+
+    private static class BlockingHandler extends Handler {
+        private final List<LogRecord> published = new CopyOnWriteArrayList<>();
+        private final CountDownLatch firstReceived;
+        private final CountDownLatch release;
+
+        BlockingHandler(CountDownLatch firstReceived, CountDownLatch release) {
+            this.firstReceived = firstReceived;
+            this.release = release;
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            published.add(record);
+            firstReceived.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package simpleserver.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IntObjectMapTest {
+
+    @Test
+    void behavesLikeHashMapUnderRandomPutsAndRemoves() {
+        //given
+        var map = new IntObjectMap<String>();
+        var expected = new HashMap<Integer, String>();
+        var random = new Random(42);
+
+        //when
+        for (int i = 0; i < 100_000; i++) {
+            int key = random.nextInt(2_000) - 1_000;
+            if (random.nextInt(3) == 0)
+                assertThat(map.remove(key)).isEqualTo(expected.remove(key));
+            else
+                assertThat(map.put(key, "v" + i)).isEqualTo(expected.put(key, "v" + i));
+        }
+
+        //then
+        assertThat(map.size()).isEqualTo(expected.size());
+        for (int key = -1_000; key < 1_000; key++)
+            assertThat(map.get(key)).isEqualTo(expected.get(key));
+        var values = new HashMap<String, Integer>();
+        map.forEachValue(value -> values.merge(value, 1, Integer::sum));
+        assertThat(values).hasSize(expected.size());
+    }
+
+    @Test
+    void computeIfAbsentKeepsExistingValue() {
+        //given
+        var map = new IntObjectMap<StringBuilder>();
+        map.computeIfAbsent(7, key -> new StringBuilder("first"));
+
+        //when
+        var value = map.computeIfAbsent(7, key -> new StringBuilder("second"));
+
+        //then
+        assertThat(value).hasToString("first");
+        assertThat(map.size()).isEqualTo(1);
+        assertThat(map.containsKey(7)).isTrue();
+        assertThat(map.containsKey(8)).isFalse();
+    }
+}
@@ -0,0 +1,40 @@
+package simpleserver.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class LatencyHistogramTest {
+
+    @Test
+    void percentilesAreWithinBucketPrecision() {
+        //given
+        var histogram = new LatencyHistogram();
+
+        //when
+        for (long value = 1; value <= 100_000; value++)
+            histogram.record(value * 1000);
+
+        //then
+        assertThat(histogram.getCount()).isEqualTo(100_000);
+        assertThat(histogram.getMaxNanos()).isEqualTo(100_000_000);
+        assertThat((double) histogram.getValueAtPercentile(50)).isCloseTo(50_000_000, within(50_000_000 * 0.035));
+        assertThat((double) histogram.getValueAtPercentile(99)).isCloseTo(99_000_000, within(99_000_000 * 0.035));
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(100_000_000);
+    }
+
+    @Test
+    void bucketsCoverEveryValue() {
+        //given
+        long[] values = {0, 63, 64, 65, 127, 128, 1_000_000_007L, Long.MAX_VALUE};
+
+        //when, then
+        for (long value : values) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertThat(LatencyHistogram.highestValueInBucket(index)).isGreaterThanOrEqualTo(value);
+            if (index > 0)
+                assertThat(LatencyHistogram.highestValueInBucket(index - 1)).isLessThan(value);
+        }
+    }
+}